@@ -1,44 +1,95 @@
+package fts;
+
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
 
 public class FullTextSearchAnimation extends JPanel {
-    private final String[] docs = {
+    private static final String[] DEFAULT_DOCS = {
         "The quick brown fox jumps over the lazy dog",
         "A lazy cat sleeps peacefully in the warm sun",
         "The brown dog runs quickly through the green park",
         "Quick reflexes help the clever fox survive in nature",
     };
+    private static final int SAMPLE_SIZE = 20;
     
-    private final Set<String> stopWords = new HashSet<>(Arrays.asList(
-        "a", "an", "and", "are", "as", "at", "be", "by", "for", "from", "has", 
-        "he", "in", "is", "it", "its", "of", "on", "that", "the", "to", "was", 
-        "will", "with", "or", "but", "not", "this", "these", "they", "them", 
-        "their", "have", "had", "do", "does", "did", "can", "could", "should", 
-        "would", "may", "might", "must", "shall", "we", "you", "i", "me", "my", 
-        "our", "us", "his", "her", "him", "she"
-    ));
+    // compressed in blocks, only the docs on screen are ever decompressed
+    private final DocStore docs;
     
-    private final Map<String, Set<Integer>> invertedIndex = new HashMap<>();
+    // the index the animation is building, searches never see it until it's done
+    private InvertedIndex invertedIndex = new InvertedIndex(true);
+    // builds the index, holds the one searches run against and runs them, see SearchEngine
+    private final SearchEngine engine = new SearchEngine(ForkJoinPool.commonPool(), new Metrics(), true);
+    private static final java.nio.file.Path DEFAULT_INDEX_FILE = java.nio.file.Paths.get("fts-index.seg");
+    private final java.nio.file.Path indexFile;
     private String query = "";
+    // what the query turned into once prefixes, wildcards and typos were spelled out, if anything
+    private String expandedQuery = "";
+    private Set<String> queryTerms = new HashSet<>();
     private final JTextField searchField = new JTextField(15);  
     private final JButton buildButton = new JButton("Build Index");
     private final JButton clearButton = new JButton("Clear");
-    private boolean indexBuilt = false;
-    private Set<Integer> currentResults = new HashSet<>();
+    private final JComboBox<String> speedBox = new JComboBox<>(SPEEDS);
+    private final JButton skipButton = new JButton("Skip 10% >>");
+    private final JToggleButton metricsButton = new JToggleButton("Metrics");
+    private BitSet currentResults = new BitSet();
+    private TopDocs rankedResults = TopDocs.EMPTY;
+    // with --shards searches go to the shards instead, and each hit shows the shard it came from
+    private ShardedSearcher shards;
+    private int[] rankedShards;
+    private String shardNote = "";
+    private List<String> suggestions = new ArrayList<>();
+
+    // searches run on their own threads. every keystroke bumps the generation, which stops older
+    // searches early and keeps them from publishing. while one is still running the next waits
+    // for a pause in typing, otherwise it starts right away
+    private final ExecutorService searchExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final AtomicLong searchGeneration = new AtomicLong();
+    // a finished index is written out off the EDT, one build at a time since saves share temp files
+    private final ExecutorService saveExecutor =
+        Executors.newSingleThreadExecutor(Thread.ofVirtual().name("index-save").factory());
+    private final AtomicInteger searchesRunning = new AtomicInteger();
+    private final javax.swing.Timer searchDebounce;
+    private static final int DEBOUNCE_MS = 40;
+    // keystrokes still waiting for a result as {generation, nanoTime}, and where their latency goes
+    private final ArrayDeque<long[]> pendingKeystrokes = new ArrayDeque<>();
+    private LongConsumer keystrokeLatency = nanos -> {};
+
+    // the metrics overlay, refreshed once a second from the last second's worth of metrics
+    private static final Rectangle METRICS_OVERLAY = new Rectangle(1330, 90, 260, 150);
+    private final javax.swing.Timer metricsTimer;
+    private Metrics.Snapshot lastMetrics;
+    private Metrics.Snapshot metricsWindow;
+    private int lastDocIndex; // where the animated build was at the last refresh
+    private double playbackDocsPerSecond;
     
     // stuff for the animation
     private boolean isBuilding = false;
     private int currentDocIndex = -1;
     private String currentToken = "";
-    private Set<String> currentTokens = new HashSet<>();
     private final javax.swing.Timer animationTimer;
-    private final java.util.List<String> animationSteps = new ArrayList<>();
-    private int currentStep = 0;
+    private IndexBuildEvents buildEvents; // the build being played, generated step by step
+    private long buildStartTime = 0;
     private long stepStartTime = 0;
     private final int STEP_DURATION = 500;
+
+    // playback: steps per STEP_DURATION, the last one also skips docs so the build takes at most COMPRESSED_MS
+    private static final String[] SPEEDS = {"Speed 1x", "Speed 4x", "Speed 16x", "Speed 64x", "Speed 256x", "Finish within 30s"};
+    private static final int[] SPEED_FACTORS = {1, 4, 16, 64, 256, 64};
+    private static final long COMPRESSED_MS = 30_000;
     
     // colors
     private final Color PRIMARY_COLOR = new Color(51, 122, 183);
@@ -46,19 +97,100 @@ public class FullTextSearchAnimation extends JPanel {
     private final Color HIGHLIGHT_COLOR = new Color(255, 235, 59, 150);
     private final Color DOCUMENT_COLOR = new Color(248, 249, 250);
     private final Color BORDER_COLOR = new Color(222, 226, 230);
+    private static final Color BUILDING_COLOR = new Color(255, 152, 0);
+    private static final Color TOKEN_COLOR = new Color(255, 87, 34);
+    private static final Color PROCESSED_COLOR = new Color(200, 230, 200);
+    private static final Color PROCESSED_BORDER_COLOR = new Color(76, 175, 80);
+    private static final Color MATCH_COLOR = new Color(255, 193, 7, 100);
+    private static final Color QUERY_ROW_COLOR = new Color(255, 193, 7, 120);
+    private static final Color RANK_COLOR = new Color(92, 184, 92).darker();
+    private static final Color SCROLL_TRACK_COLOR = new Color(240, 241, 243);
+    private static final Color SCROLL_THUMB_COLOR = new Color(190, 195, 200);
+    private static final Color OVERLAY_COLOR = new Color(33, 37, 41, 220);
+
+    // fonts and strokes, made once rather than on every paint
+    private static final Font TITLE_FONT = new Font("SansSerif", Font.BOLD, 28);
+    private static final Font STATUS_FONT = new Font("SansSerif", Font.PLAIN, 16);
+    private static final Font SECTION_FONT = new Font("SansSerif", Font.BOLD, 22);
+    private static final Font INDEX_TITLE_FONT = new Font("SansSerif", Font.BOLD, 26);
+    private static final Font DOC_TITLE_FONT = new Font("SansSerif", Font.BOLD, 16);
+    private static final Font TEXT_FONT = new Font("SansSerif", Font.PLAIN, 14);
+    private static final Font BOLD_TEXT_FONT = TEXT_FONT.deriveFont(Font.BOLD);
+    private static final Font SMALL_FONT = new Font("SansSerif", Font.PLAIN, 12);
+    private static final Font NOTE_FONT = new Font("SansSerif", Font.ITALIC, 16);
+    private static final Font PLACEHOLDER_FONT = new Font("SansSerif", Font.ITALIC, 18);
+    private static final Font RESULT_FONT = new Font("SansSerif", Font.BOLD, 18);
+    private static final Font RANKED_FONT = new Font("SansSerif", Font.PLAIN, 16);
+    private static final Font PROGRESS_FONT = new Font("SansSerif", Font.BOLD, 18);
+    private static final Font INDEX_FONT = new Font("Monospaced", Font.PLAIN, 16);
+    private static final Font INDEX_BOLD_FONT = INDEX_FONT.deriveFont(Font.BOLD);
+    private static final BasicStroke THIN_STROKE = new BasicStroke(2);
+    private static final BasicStroke MEDIUM_STROKE = new BasicStroke(3);
+    private static final BasicStroke THICK_STROKE = new BasicStroke(4);
+
+    /** the regions the panel is drawn in, each cached as an image until something in it changes */
+    private enum Layer {
+        HEADER(690, 0, 910, 80),
+        DOCUMENTS(40, 64, 640, 876), // the suggestions line and the doc list
+        INDEX(690, 80, 910, 770),
+        RESULTS(690, 850, 910, 110),
+        STATS(40, 940, 640, 60);
+
+        final Rectangle bounds;
+
+        Layer(int x, int y, int width, int height) {
+            bounds = new Rectangle(x, y, width, height);
+        }
+    }
+
+    private final EnumMap<Layer, BufferedImage> layers = new EnumMap<>(Layer.class);
+    private final EnumSet<Layer> dirtyLayers = EnumSet.allOf(Layer.class);
+
+    // the doc list and the index are windows onto lists of any length, scrolled by row
+    private static final int DOC_LIST_Y = 150;
+    private static final int DOC_HEIGHT = 100;
+    private static final int DOC_SPACING = 120;
+    private static final int DOC_ROWS = 6;
+    private static final int SNIPPET_CHARS = 140;
+    private static final int SNIPPET_LINE_HEIGHT = 20;
+    private static final int TERM_LIST_Y = 155;
+    private static final int TERM_ROW_HEIGHT = 26;
+    private static final int TERM_ROWS = 24;
+    private static final int INDEX_X = 700;
+    private static final int INDEX_ROW_WIDTH = 600;
+    private static final Rectangle DOC_SCROLL_BAR = new Rectangle(658, DOC_LIST_Y, 8, DOC_ROWS * DOC_SPACING - 20);
+    private static final Rectangle TERM_SCROLL_BAR =
+        new Rectangle(INDEX_X + INDEX_ROW_WIDTH + 8, TERM_LIST_Y - 18, 8, TERM_ROWS * TERM_ROW_HEIGHT);
+    private int docScroll = 0;
+    private int termScroll = 0;
 
     public FullTextSearchAnimation() {
+        this(DEFAULT_DOCS);
+    }
+    
+    /** animates over the given docs, e.g. a sample drawn from a much bigger corpus */
+    public FullTextSearchAnimation(String[] docs) {
+        this(DocStore.of(docs), DEFAULT_INDEX_FILE);
+    }
+
+    /** animates over every doc of a store, keeping the index it builds in indexFile */
+    FullTextSearchAnimation(DocStore docs, java.nio.file.Path indexFile) {
+        this.docs = docs;
+        this.indexFile = indexFile;
         setPreferredSize(new Dimension(1600, 1000));
         setBackground(Color.WHITE);
         setLayout(null);
         
         // timer for the stepping animation
         animationTimer = new javax.swing.Timer(50, e -> {
-            if (isBuilding && System.currentTimeMillis() - stepStartTime > STEP_DURATION) {
-                nextAnimationStep();
+            if (isBuilding) {
+                playback(System.currentTimeMillis());
             }
-            repaint();
+            repaintLive();
         });
+        searchDebounce = new javax.swing.Timer(DEBOUNCE_MS, e -> startSearch());
+        searchDebounce.setRepeats(false);
+        metricsTimer = new javax.swing.Timer(1000, e -> refreshMetrics());
 
         // set up search field
         searchField.setBounds(50, 20, 300, 40);
@@ -67,10 +199,21 @@ public class FullTextSearchAnimation extends JPanel {
             BorderFactory.createLineBorder(BORDER_COLOR, 2),
             BorderFactory.createEmptyBorder(8, 15, 8, 15)
         ));
+        searchField.setFocusTraversalKeysEnabled(false); // tab completes instead of moving focus
         searchField.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                if (e.getKeyCode() == KeyEvent.VK_TAB) {
+                    acceptSuggestion();
+                    e.consume();
+                }
+            }
+
             @Override
             public void keyReleased(KeyEvent e) {
-                performSearch();
+                if (e.getKeyCode() != KeyEvent.VK_TAB) {
+                    keystroke(System.nanoTime());
+                }
             }
         });
 
@@ -94,9 +237,32 @@ public class FullTextSearchAnimation extends JPanel {
             }
         });
 
+        // playback controls, under the doc list
+        speedBox.setBounds(50, 895, 190, 30);
+        skipButton.setBounds(250, 895, 140, 30);
+        speedBox.setFont(new Font("SansSerif", Font.PLAIN, 14));
+        skipButton.setFont(new Font("SansSerif", Font.BOLD, 14));
+        skipButton.setEnabled(false);
+        speedBox.addActionListener(e -> {
+            // the new speed counts from now, not from when the build started
+            buildStartTime = System.currentTimeMillis() - (long) (buildProgress() * COMPRESSED_MS);
+        });
+        skipButton.addActionListener(e -> {
+            if (isBuilding) {
+                skipAhead(currentDocIndex + Math.max(1, docs.size() / 10));
+            }
+        });
+        metricsButton.setBounds(400, 895, 110, 30);
+        metricsButton.setFont(new Font("SansSerif", Font.BOLD, 14));
+        metricsButton.addActionListener(e -> toggleMetrics(metricsButton.isSelected()));
+
         add(searchField);
         add(buildButton);
         add(clearButton);
+        add(speedBox);
+        add(skipButton);
+        add(metricsButton);
+        installScrolling();
         
         // placeholder text stuff
         searchField.setText("Enter search term...");
@@ -118,81 +284,135 @@ public class FullTextSearchAnimation extends JPanel {
                 }
             }
         });
+        
+        loadSavedIndex();
+    }
+    
+    /**
+     * picks up the index saved by the last build, as long as it was built from these docs
+     */
+    private void loadSavedIndex() {
+        if (!java.nio.file.Files.exists(indexFile)) return;
+        try {
+            MappedIndexReader reader = SegmentFile.open(indexFile);
+            if (reader.fingerprint() != docs.fingerprint()) {
+                System.err.println(indexFile + " was built from different documents, ignoring it");
+                return;
+            }
+            reader.verifyChecksums();
+            publishIndex(reader, true);
+            buildButton.setText("Rebuild Index");
+        } catch (java.io.IOException e) {
+            System.err.println("ignoring saved index: " + e.getMessage());
+        }
+    }
+    
+    /** writes the index just published, which nothing changes any more, in the background */
+    private void saveIndex() {
+        InvertedIndex finished = invertedIndex;
+        long fingerprint = docs.fingerprint();
+        saveExecutor.execute(() -> {
+            try {
+                SegmentFile.write(finished, fingerprint, indexFile);
+            } catch (java.io.IOException | RuntimeException e) {
+                System.err.println("couldn't save index: " + e.getMessage());
+            }
+        });
     }
     
     private void startAnimatedIndexBuilding() {
         isBuilding = true;
-        indexBuilt = false;
-        invertedIndex.clear();
-        currentResults.clear();
+        // a fresh index to build into, the published one keeps serving searches meanwhile
+        invertedIndex = new InvertedIndex(true);
+        buildEvents = new IndexBuildEvents(docs, invertedIndex);
         currentDocIndex = -1;
         currentToken = "";
-        currentTokens.clear();
-        animationSteps.clear();
-        currentStep = 0;
-        
-        // build the list of animation steps
-        for (int i = 0; i < docs.length; i++) {
-            animationSteps.add("PROCESS_DOC:" + i);
-            Set<String> tokens = tokenizeAndFilter(docs[i]);
-            for (String token : tokens) {
-                animationSteps.add("ADD_TOKEN:" + i + ":" + token);
-            }
-        }
-        animationSteps.add("COMPLETE");
         
         buildButton.setText("Building...");
         buildButton.setEnabled(false);
-        searchField.setEnabled(false);
+        skipButton.setEnabled(true);
+        docScroll = 0;
+        termScroll = 0;
+        markAllDirty();
         
-        stepStartTime = System.currentTimeMillis();
+        buildStartTime = stepStartTime = System.currentTimeMillis();
         animationTimer.start();
     }
-    
-    private void nextAnimationStep() {
-        if (currentStep >= animationSteps.size()) {
+
+    /**
+     * plays however many steps are due by now at the chosen speed. in the compressed mode it also
+     * skips ahead to wherever the build should be for it to take COMPRESSED_MS overall, and only
+     * the doc it lands on is played step by step
+     */
+    private void playback(long now) {
+        int speed = speedBox.getSelectedIndex();
+        if (speed == SPEEDS.length - 1) {
+            int due = (int) Math.min(docs.size(), docs.size() * (now - buildStartTime) / COMPRESSED_MS);
+            if (due > currentDocIndex + 1) {
+                skipAhead(due);
+                if (!isBuilding) return;
+            }
+        }
+        long stepMillis = Math.max(1, STEP_DURATION / SPEED_FACTORS[speed]);
+        // a stalled timer doesn't get to replay everything it missed in one go
+        stepStartTime = Math.max(stepStartTime, now - 10 * stepMillis);
+        while (isBuilding && now - stepStartTime >= stepMillis) {
+            nextAnimationStep();
+            stepStartTime += stepMillis;
+        }
+    }
+
+    private double buildProgress() {
+        return buildEvents == null ? 0 : buildEvents.progress();
+    }
+
+    /** indexes every doc before target without playing them, and carries on playing from there */
+    private void skipAhead(int target) {
+        buildEvents.skipTo(target);
+        currentToken = "";
+        if (target >= docs.size()) {
             completeAnimation();
             return;
         }
-        
-        String step = animationSteps.get(currentStep);
-        String[] parts = step.split(":");
-        
-        switch (parts[0]) {
-            case "PROCESS_DOC":
-                currentDocIndex = Integer.parseInt(parts[1]);
-                currentTokens = tokenizeAndFilter(docs[currentDocIndex]);
+        nextAnimationStep(); // start the doc it landed on
+        markDirty(Layer.HEADER, Layer.DOCUMENTS, Layer.INDEX);
+    }
+    
+    private void nextAnimationStep() {
+        long event = buildEvents.next();
+        switch (IndexBuildEvents.kind(event)) {
+            case IndexBuildEvents.START_DOC -> {
+                currentDocIndex = IndexBuildEvents.doc(event);
                 currentToken = "";
-                break;
-                
-            case "ADD_TOKEN":
-                int docId = Integer.parseInt(parts[1]);
-                currentToken = parts[2];
-                invertedIndex.computeIfAbsent(currentToken, k -> new HashSet<>()).add(docId);
-                break;
-                
-            case "COMPLETE":
-                completeAnimation();
-                return;
+                // the previous doc turns green and the list follows the one being processed
+                docScroll = Math.max(0, reveal(currentDocIndex, docScroll, DOC_ROWS));
+                markDirty(Layer.HEADER, Layer.DOCUMENTS);
+            }
+            case IndexBuildEvents.ADD_TERM -> {
+                currentToken = buildEvents.term(event);
+                // a new term shifts the rows below it, so the whole window is redrawn
+                termScroll = Math.max(0, reveal(invertedIndex.ord(currentToken), termScroll, TERM_ROWS));
+                markDirty(Layer.HEADER, Layer.INDEX);
+            }
+            default -> completeAnimation();
         }
-        
-        currentStep++;
-        stepStartTime = System.currentTimeMillis();
     }
     
     private void completeAnimation() {
         isBuilding = false;
-        indexBuilt = true;
+        invertedIndex.finish();
+        publishIndex(invertedIndex, false);
+        saveIndex();
+        buildEvents = null;
         currentDocIndex = -1;
         currentToken = "";
-        currentTokens.clear();
         
         buildButton.setText("Rebuild Index");
         buildButton.setEnabled(true);
-        searchField.setEnabled(true);
+        skipButton.setEnabled(false);
         
         animationTimer.stop();
-        performSearch();
+        searchNow();
     }
     
     private void resetAnimation() {
@@ -201,384 +421,1239 @@ public class FullTextSearchAnimation extends JPanel {
         }
         
         isBuilding = false;
-        indexBuilt = false;
-        invertedIndex.clear();
-        currentResults.clear();
+        cancelSearch();
+        publishIndex(null, false);
+        invertedIndex = new InvertedIndex(true);
+        currentResults = new BitSet();
+        rankedResults = TopDocs.EMPTY;
+        rankedShards = null;
+        shardNote = "";
+        buildEvents = null;
         currentDocIndex = -1;
         currentToken = "";
-        currentTokens.clear();
-        animationSteps.clear();
-        currentStep = 0;
         
         searchField.setText("");
         query = "";
+        expandedQuery = "";
+        // published results can be shared with the cache, so they're replaced rather than cleared
+        queryTerms = new HashSet<>();
+        suggestions = new ArrayList<>();
         buildButton.setText("Build Index");
         buildButton.setEnabled(true);
-        searchField.setEnabled(true);
+        docScroll = 0;
+        termScroll = 0;
         
-        repaint();
+        markAllDirty();
     }
 
-    private void performSearch() {
-        if (!indexBuilt) return;
-        
-        String searchText = searchField.getText().trim().toLowerCase();
-        if (searchText.isEmpty() || searchText.equals("enter search term...")) {
-            query = "";
-            currentResults.clear();
+    /** a key changed the search text: stop whatever is running and search again */
+    private void keystroke(long pressedAt) {
+        pendingKeystrokes.add(new long[] {searchGeneration.incrementAndGet(), pressedAt});
+        if (searchesRunning.get() == 0) {
+            startSearch();
         } else {
-            // use the same tokenization for search too
-            Set<String> queryTokens = tokenizeAndFilter(searchText);
-            
-            if (queryTokens.isEmpty()) {
-                query = searchText; // keep original if no tokens left
-                currentResults.clear();
-            } else {
-                // just use first token for now (TODO: handle multiple words)
-                query = queryTokens.iterator().next();
-                currentResults = invertedIndex.getOrDefault(query, new HashSet<>());
-            }
+            searchDebounce.restart();
         }
-        repaint();
     }
 
-    private void buildIndex() {
-        invertedIndex.clear();
-        for (int i = 0; i < docs.length; i++) {
-            Set<String> tokens = tokenizeAndFilter(docs[i]);
-            for (String token : tokens) {
-                invertedIndex.computeIfAbsent(token, k -> new HashSet<>()).add(i);
+    private void searchNow() {
+        searchGeneration.incrementAndGet();
+        startSearch();
+    }
+
+    /** swaps in a finished index (or none) for searches to read, see SearchEngine.publish */
+    private void publishIndex(IndexReader reader, boolean fromFile) {
+        engine.publish(reader, fromFile);
+        markAllDirty();
+    }
+
+
+    /** the index is being cleared, anything running or pending is for the old one */
+    private void cancelSearch() {
+        searchDebounce.stop();
+        searchGeneration.incrementAndGet();
+        pendingKeystrokes.clear();
+    }
+
+    private void startSearch() {
+        searchDebounce.stop();
+        IndexSnapshot index = engine.snapshot();
+        if (index.reader == null && shards == null) return;
+        long generation = searchGeneration.get();
+        String text = searchField.getText().equals("Enter search term...") ? "" : searchField.getText();
+        BooleanSupplier stale = () -> searchGeneration.get() != generation;
+        searchesRunning.incrementAndGet();
+        searchExecutor.execute(() -> {
+            SearchResult result;
+            try {
+                SearchResult found = shards != null
+                                     ? shards.search(text, QueryServer.DEFAULT_TIMEOUT_MS * 1_000_000L, true, stale)
+                                     : engine.search(index, text, stale);
+                // the shards can answer before this panel has an index, there's just nothing to suggest from yet
+                result = index.reader == null ? found : found.withSuggestions(SearchEngine.suggestions(index.reader, text));
+            } catch (CancellationException e) {
+                return;
+            } catch (RuntimeException e) {
+                // still answer this generation, or the old results stay up and its keystrokes never drain
+                System.err.println("search for \"" + text + "\" failed: " + e);
+                result = new SearchResult();
+                result.query = text;
+            } finally {
+                searchesRunning.decrementAndGet();
             }
+            SearchResult shown = result;
+            SwingUtilities.invokeLater(() -> publish(generation, shown));
+        });
+    }
+
+    /** on the EDT, shows result unless a newer search has started since */
+    private void publish(long generation, SearchResult result) {
+        if (generation != searchGeneration.get()) return;
+        query = result.query;
+        expandedQuery = result.expandedQuery;
+        queryTerms = result.terms;
+        currentResults = result.results;
+        rankedResults = result.ranked;
+        rankedShards = result.rankedShards;
+        int answered = result.shardCount - result.missingShards.size();
+        shardNote = result.rankedShards == null ? ""
+                    : answered == result.shardCount ? result.shardCount + " shards"
+                    : answered + " of " + result.shardCount + " shards in time";
+        suggestions = result.suggestions;
+        long now = System.nanoTime();
+        while (!pendingKeystrokes.isEmpty() && pendingKeystrokes.peek()[0] <= generation) {
+            keystrokeLatency.accept(now - pendingKeystrokes.poll()[1]);
         }
+        markDirty(Layer.DOCUMENTS, Layer.INDEX, Layer.RESULTS, Layer.STATS);
     }
-    
+
+
+
+    /** tab swaps the word being typed for the top suggestion */
+    private void acceptSuggestion() {
+        if (suggestions.isEmpty()) return;
+        String text = searchField.getText();
+        searchField.setText(text.substring(0, text.lastIndexOf(' ') + 1) + suggestions.get(0) + " ");
+        searchNow();
+    }
+
+    private void buildIndex() {
+        invertedIndex = engine.build(docs);
+        markAllDirty();
+    }
+
     /**
-     * break text into words and filter out stop words
+     * scatters searches over shards from now on. they have to hold the same docs under the same
+     * ids. they search before this panel's own index is built, which is then only used for the
+     * suggestions and the animation
      */
-    private Set<String> tokenizeAndFilter(String text) {
-        Set<String> tokens = new HashSet<>();
-        
-        // lowercase and split on anything that's not a word character
-        String[] words = text.toLowerCase().split("\\W+");
-        
-        for (String word : words) {
-            // skip empty strings, stop words, and single letters
-            if (!word.isEmpty() && !stopWords.contains(word) && word.length() > 1) {
-                // basic stemming
-                String stemmed = simpleStem(word);
-                tokens.add(stemmed);
-            }
-        }
-        
-        return tokens;
+    void searchShards(ShardedSearcher shards) {
+        this.shards = shards;
     }
     
     /**
-     * really basic stemming - just chops off common endings
+     * the panel is drawn as a few cached layers that are only redrawn after something they show
+     * changed, plus the doc and term being indexed, which pulse and are drawn fresh every frame
      */
-    private String simpleStem(String word) {
-        // strip off common suffixes
-        if (word.endsWith("ing") && word.length() > 5) {
-            return word.substring(0, word.length() - 3);
+    @Override
+    protected void paintComponent(Graphics g) {
+        FrameEvent event = new FrameEvent();
+        event.begin();
+        long start = System.nanoTime();
+        super.paintComponent(g);
+        Graphics2D g2d = (Graphics2D) g;
+        double scaleX = g2d.getTransform().getScaleX();
+        double scaleY = g2d.getTransform().getScaleY();
+        Rectangle clip = g2d.getClipBounds();
+        for (Layer layer : Layer.values()) {
+            if (clip != null && !clip.intersects(layer.bounds)) continue;
+            BufferedImage image = layers.get(layer);
+            int width = (int) Math.ceil(layer.bounds.width * scaleX);
+            int height = (int) Math.ceil(layer.bounds.height * scaleY);
+            if (image == null || image.getWidth() != width || image.getHeight() != height) {
+                image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                layers.put(layer, image);
+                dirtyLayers.add(layer);
+            }
+            if (dirtyLayers.remove(layer)) {
+                event.layersRedrawn++;
+                Graphics2D lg = image.createGraphics();
+                lg.setColor(getBackground());
+                lg.fillRect(0, 0, width, height);
+                lg.scale(scaleX, scaleY);
+                lg.translate(-layer.bounds.x, -layer.bounds.y);
+                lg.clip(layer.bounds);
+                drawLayer(lg, layer);
+                lg.dispose();
+            }
+            g2d.drawImage(image, layer.bounds.x, layer.bounds.y, layer.bounds.width, layer.bounds.height, null);
+        }
+        applyHints(g2d);
+        drawLive(g2d);
+        if (metricsButton.isSelected()) drawMetrics(g2d);
+        engine.metrics().frames.record(System.nanoTime() - start);
+        event.commit();
+    }
+
+    private static void applyHints(Graphics2D g) {
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+    }
+
+    private void drawLayer(Graphics2D g, Layer layer) {
+        applyHints(g);
+        switch (layer) {
+            case HEADER -> drawHeader(g);
+            case DOCUMENTS -> {
+                drawSuggestions(g);
+                drawDocuments(g);
+            }
+            case INDEX -> drawInvertedIndex(g);
+            case RESULTS -> drawSearchResults(g);
+            case STATS -> drawCacheStats(g);
         }
-        if (word.endsWith("ed") && word.length() > 4) {
-            return word.substring(0, word.length() - 2);
+    }
+
+    /** the pulsing doc card and index row, left out of the cached layers */
+    private void drawLive(Graphics2D g) {
+        if (!isBuilding) return;
+        if (isDocumentVisible(currentDocIndex)) {
+            drawDocument(g, currentDocIndex, documentY(currentDocIndex));
         }
-        if (word.endsWith("er") && word.length() > 4) {
-            return word.substring(0, word.length() - 2);
+        int row = currentTokenRow();
+        if (row >= 0) {
+            drawIndexRow(g, invertedIndex, currentToken, termY(row));
         }
-        if (word.endsWith("est") && word.length() > 5) {
-            return word.substring(0, word.length() - 3);
+    }
+
+    /** only the live parts change between animation frames, so only they get repainted */
+    private void repaintLive() {
+        if (!isBuilding) return;
+        if (isDocumentVisible(currentDocIndex)) {
+            repaint(48, documentY(currentDocIndex) - 2, 604, DOC_HEIGHT + 4);
         }
-        if (word.endsWith("ly") && word.length() > 4) {
-            return word.substring(0, word.length() - 2);
+        int row = currentTokenRow();
+        if (row >= 0) {
+            repaint(INDEX_X, termY(row) - 18, INDEX_ROW_WIDTH, TERM_ROW_HEIGHT);
         }
-        if (word.endsWith("s") && word.length() > 3 && !word.endsWith("ss")) {
-            return word.substring(0, word.length() - 1);
+    }
+
+    private void markDirty(Layer... changed) {
+        for (Layer layer : changed) {
+            dirtyLayers.add(layer);
+            repaint(layer.bounds);
         }
-        return word;
     }
 
-    @Override
-    protected void paintComponent(Graphics g) {
-        super.paintComponent(g);
-        Graphics2D g2d = (Graphics2D) g;
-        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
-        
-        drawHeader(g2d);
-        drawDocuments(g2d);
-        drawInvertedIndex(g2d);
-        drawSearchResults(g2d);
+    private void markAllDirty() {
+        markDirty(Layer.values());
+    }
+
+    /** what the index view shows: the index being built, else the one searches use */
+    private IndexReader shownIndex() {
+        return isBuilding ? invertedIndex : engine.snapshot().reader;
+    }
+
+    private boolean isDocumentVisible(int doc) {
+        return doc >= docScroll && doc < docScroll + DOC_ROWS && doc < docs.size();
+    }
+
+    private int documentY(int doc) {
+        return DOC_LIST_Y + (doc - docScroll) * DOC_SPACING;
+    }
+
+    private int termY(int row) {
+        return TERM_LIST_Y + row * TERM_ROW_HEIGHT;
+    }
+
+    /** the row the token being added sits on, or -1 if it's scrolled out of view */
+    private int currentTokenRow() {
+        if (!isBuilding || currentToken.isEmpty()) return -1;
+        int row = invertedIndex.ord(currentToken) - termScroll;
+        return row >= 0 && row < TERM_ROWS ? row : -1;
+    }
+
+    private void scrollDocumentsTo(int first) {
+        int clamped = Math.max(0, Math.min(first, docs.size() - DOC_ROWS));
+        if (clamped == docScroll) return;
+        docScroll = clamped;
+        markDirty(Layer.DOCUMENTS);
+    }
+
+    private void scrollTermsTo(int first) {
+        IndexReader shown = shownIndex();
+        int clamped = Math.max(0, Math.min(first, (shown == null ? 0 : shown.termCount()) - TERM_ROWS));
+        if (clamped == termScroll) return;
+        termScroll = clamped;
+        markDirty(Layer.INDEX);
+    }
+
+    /** scrolls just far enough to bring item into a window of rows starting at first */
+    private static int reveal(int item, int first, int rows) {
+        if (item < first) return item;
+        if (item >= first + rows) return item - rows + 1;
+        return first;
+    }
+
+    /** wheel over a list scrolls it, pressing or dragging on its scroll bar jumps there */
+    private void installScrolling() {
+        addMouseWheelListener(e -> {
+            if (Layer.DOCUMENTS.bounds.contains(e.getPoint())) {
+                scrollDocumentsTo(docScroll + e.getWheelRotation());
+            } else if (Layer.INDEX.bounds.contains(e.getPoint())) {
+                scrollTermsTo(termScroll + e.getWheelRotation() * 3);
+            }
+        });
+        MouseAdapter drag = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                mouseDragged(e);
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (DOC_SCROLL_BAR.contains(e.getPoint())) {
+                    scrollDocumentsTo(scrollBarPosition(DOC_SCROLL_BAR, e.getY(), docs.size(), DOC_ROWS));
+                } else if (TERM_SCROLL_BAR.contains(e.getPoint()) && shownIndex() != null) {
+                    scrollTermsTo(scrollBarPosition(TERM_SCROLL_BAR, e.getY(), shownIndex().termCount(), TERM_ROWS));
+                }
+            }
+        };
+        addMouseListener(drag);
+        addMouseMotionListener(drag);
+    }
+
+    private static int scrollBarPosition(Rectangle bar, int y, int total, int rows) {
+        double fraction = (y - bar.y) / (double) bar.height;
+        return (int) (fraction * total) - rows / 2;
+    }
+
+    private static void drawScrollBar(Graphics2D g, Rectangle bar, int first, int rows, int total) {
+        if (total <= rows) return;
+        g.setColor(SCROLL_TRACK_COLOR);
+        g.fillRoundRect(bar.x, bar.y, bar.width, bar.height, bar.width, bar.width);
+        int thumb = Math.max(20, (int) ((long) bar.height * rows / total));
+        int top = bar.y + (int) ((long) (bar.height - thumb) * first / Math.max(1, total - rows));
+        g.setColor(SCROLL_THUMB_COLOR);
+        g.fillRoundRect(bar.x, top, bar.width, thumb, bar.width, bar.width);
+    }
+
+    private void drawCacheStats(Graphics2D g) {
+        g.setFont(SMALL_FONT);
+        g.setColor(Color.GRAY);
+        g.drawString("doc store: " + docs.stats(), 50, 953);
+        if (engine.snapshot().reader == null) return;
+        SearchEngine.Stats stats = engine.stats();
+        g.drawString("result cache: " + stats.resultCache, 50, 970);
+        g.drawString("filter cache: " + stats.filterCache, 50, 987);
+    }
+
+    private void toggleMetrics(boolean on) {
+        if (on) {
+            lastMetrics = engine.metrics().snapshot();
+            metricsWindow = null;
+            lastDocIndex = currentDocIndex;
+            playbackDocsPerSecond = 0;
+            metricsTimer.start();
+        } else {
+            metricsTimer.stop();
+        }
+        repaint(METRICS_OVERLAY);
+    }
+
+    /** takes the last second's metrics for the overlay */
+    private void refreshMetrics() {
+        Metrics.Snapshot now = engine.metrics().snapshot();
+        metricsWindow = now.since(lastMetrics);
+        playbackDocsPerSecond = isBuilding ? Math.max(0, currentDocIndex - lastDocIndex) / metricsWindow.seconds() : 0;
+        lastMetrics = now;
+        lastDocIndex = currentDocIndex;
+        repaint(METRICS_OVERLAY);
+    }
+
+    /**
+     * qps and query latency over the last second, build throughput and frame times. drawn over
+     * the cached layers, so switching it on and off doesn't redraw anything else
+     */
+    private void drawMetrics(Graphics2D g) {
+        Rectangle box = METRICS_OVERLAY;
+        g.setColor(OVERLAY_COLOR);
+        g.fillRoundRect(box.x, box.y, box.width, box.height, 10, 10);
+        g.setFont(SMALL_FONT);
+        g.setColor(Color.WHITE);
+        int x = box.x + 12;
+        int y = box.y + 22;
+        if (metricsWindow == null) {
+            g.drawString("collecting...", x, y);
+            return;
+        }
+        LatencyHistogram.Snapshot queries = metricsWindow.queries;
+        LatencyHistogram.Snapshot frames = metricsWindow.frames;
+        Metrics.Snapshot total = lastMetrics;
+        String build;
+        if (isBuilding) {
+            build = String.format("playing %,.0f docs/s", playbackDocsPerSecond);
+        } else if (total.builds.count > 0) {
+            build = String.format("%,.0f docs/s", total.buildDocsPerSecond());
+        } else {
+            build = "-";
+        }
+        g.drawString(String.format("queries  %,.1f qps, %,d cancelled", metricsWindow.queriesPerSecond(),
+                                   metricsWindow.cancelledQueries), x, y);
+        g.drawString(String.format("latency  p50 %.2f  p99 %.2f ms", queries.percentile(0.5) / 1e6,
+                                   queries.percentile(0.99) / 1e6), x, y + 22);
+        g.drawString("build    " + build, x, y + 44);
+        g.drawString(String.format("frames   %,.0f fps", metricsWindow.framesPerSecond()), x, y + 66);
+        g.drawString(String.format("frame    p50 %.2f  p99 %.2f ms", frames.percentile(0.5) / 1e6,
+                                   frames.percentile(0.99) / 1e6), x, y + 88);
+        g.drawString(String.format("all time %,d queries, p99 %.2f ms", total.queries.count,
+                                   total.queries.percentile(0.99) / 1e6), x, y + 110);
+    }
+
+    private void drawSuggestions(Graphics2D g) {
+        IndexReader index = engine.snapshot().reader;
+        if (suggestions.isEmpty() || index == null) return;
+        g.setFont(TEXT_FONT);
+        g.setColor(Color.GRAY);
+        StringBuilder line = new StringBuilder("Tab: ");
+        for (String suggestion : suggestions) {
+            Postings postings = index.postings(suggestion); // gone if a new index came in since
+            line.append(suggestion).append(" (").append(postings == null ? 0 : postings.docFreq()).append(")   ");
+        }
+        g.drawString(line.toString(), 55, 82);
     }
     
     private void drawHeader(Graphics2D g) {
-        g.setFont(new Font("SansSerif", Font.BOLD, 28));
+        g.setFont(TITLE_FONT);
         g.setColor(PRIMARY_COLOR);
         g.drawString("Full-Text Search with Stop Words & Stemming", 700, 40);
         
-        g.setFont(new Font("SansSerif", Font.PLAIN, 16));
+        g.setFont(STATUS_FONT);
         if (isBuilding) {
-            g.setColor(new Color(255, 152, 0)); // orange while building
+            g.setColor(BUILDING_COLOR); // orange while building
             g.drawString("Building index... Processing Doc " + (currentDocIndex + 1) + 
                         (currentToken.isEmpty() ? "" : " - Token: \"" + currentToken + "\""), 700, 65);
-        } else if (!indexBuilt) {
+        } else if (engine.snapshot().reader == null) {
             g.setColor(Color.GRAY);
             g.drawString("Click 'Build Index' to start (removes stop words, applies stemming)", 700, 65);
+        } else if (engine.snapshot().fromFile) {
+            g.setColor(SUCCESS_COLOR);
+            g.drawString("Index loaded from " + indexFile + " (memory-mapped), ready to search", 700, 65);
         } else {
             g.setColor(SUCCESS_COLOR);
             g.drawString("Index built! Filtered stop words and applied basic stemming...", 700, 65);
         }
     }
     
+    /** only the docs scrolled into view are laid out, however many there are */
     private void drawDocuments(Graphics2D g) {
-        g.setFont(new Font("SansSerif", Font.BOLD, 22));
+        g.setFont(SECTION_FONT);
         g.setColor(Color.BLACK);
         g.drawString("Documents:", 50, 120);
         
-        // only show a few docs so they fit nicely on screen
-        int maxDocsToShow = Math.min(docs.length, 4); 
-        int docHeight = 100; 
-        int spacing = 120; 
+        int last = Math.min(docs.size(), docScroll + DOC_ROWS);
+        for (int i = docScroll; i < last; i++) {
+            if (isBuilding && i == currentDocIndex) continue; // drawn live, it pulses
+            drawDocument(g, i, documentY(i));
+        }
         
-        for (int i = 0; i < maxDocsToShow; i++) {
-            int y = 150 + i * spacing;
-            
-            // figure out what state this doc is in
-            boolean isCurrentlyProcessing = isBuilding && i == currentDocIndex;
-            boolean isProcessed = isBuilding ? i < currentDocIndex : false;
-            boolean isMatching = currentResults.contains(i);
-            
-            // draw the background based on state
-            if (isCurrentlyProcessing) {
-                // pulse effect for the one being processed
-                long time = System.currentTimeMillis();
-                float pulse = (float) (0.5 + 0.5 * Math.sin(time * 0.01));
-                Color processingColor = new Color(255, 193, 7, (int)(100 + 50 * pulse));
-                g.setColor(processingColor);
-                g.fillRoundRect(50, y, 600, docHeight, 12, 12);
-                g.setColor(new Color(255, 152, 0));
-                g.setStroke(new BasicStroke(4));
-                g.drawRoundRect(50, y, 600, docHeight, 12, 12);
-            } else if (isProcessed) {
-                // green for done
-                g.setColor(new Color(200, 230, 200));
-                g.fillRoundRect(50, y, 600, docHeight, 12, 12);
-                g.setColor(new Color(76, 175, 80));
-                g.setStroke(new BasicStroke(2));
-                g.drawRoundRect(50, y, 600, docHeight, 12, 12);
-            } else if (isMatching) {
-                g.setColor(HIGHLIGHT_COLOR);
-                g.fillRoundRect(50, y, 600, docHeight, 12, 12);
-                g.setColor(SUCCESS_COLOR);
-                g.setStroke(new BasicStroke(3));
-                g.drawRoundRect(50, y, 600, docHeight, 12, 12);
+        // where we are in the list
+        if (docs.size() > DOC_ROWS) {
+            drawScrollBar(g, DOC_SCROLL_BAR, docScroll, DOC_ROWS, docs.size());
+            g.setFont(NOTE_FONT);
+            g.setColor(Color.GRAY);
+            g.drawString(String.format("Docs %,d-%,d of %,d, scroll for more", docScroll + 1, last, docs.size()),
+                         70, DOC_LIST_Y + DOC_ROWS * DOC_SPACING + 5);
+        }
+    }
+
+    private void drawDocument(Graphics2D g, int i, int y) {
+        // figure out what state this doc is in
+        boolean isCurrentlyProcessing = isBuilding && i == currentDocIndex;
+        boolean isProcessed = isBuilding ? i < currentDocIndex : false;
+        boolean isMatching = currentResults.get(i);
+        
+        // draw the background based on state
+        if (isCurrentlyProcessing) {
+            // pulse effect for the one being processed
+            long time = System.currentTimeMillis();
+            float pulse = (float) (0.5 + 0.5 * Math.sin(time * 0.01));
+            Color processingColor = new Color(255, 193, 7, (int)(100 + 50 * pulse));
+            g.setColor(processingColor);
+            g.fillRoundRect(50, y, 600, DOC_HEIGHT, 12, 12);
+            g.setColor(BUILDING_COLOR);
+            g.setStroke(THICK_STROKE);
+            g.drawRoundRect(50, y, 600, DOC_HEIGHT, 12, 12);
+        } else if (isProcessed) {
+            // green for done
+            g.setColor(PROCESSED_COLOR);
+            g.fillRoundRect(50, y, 600, DOC_HEIGHT, 12, 12);
+            g.setColor(PROCESSED_BORDER_COLOR);
+            g.setStroke(THIN_STROKE);
+            g.drawRoundRect(50, y, 600, DOC_HEIGHT, 12, 12);
+        } else if (isMatching) {
+            g.setColor(HIGHLIGHT_COLOR);
+            g.fillRoundRect(50, y, 600, DOC_HEIGHT, 12, 12);
+            g.setColor(SUCCESS_COLOR);
+            g.setStroke(MEDIUM_STROKE);
+            g.drawRoundRect(50, y, 600, DOC_HEIGHT, 12, 12);
+        } else {
+            g.setColor(DOCUMENT_COLOR);
+            g.fillRoundRect(50, y, 600, DOC_HEIGHT, 12, 12);
+            g.setColor(BORDER_COLOR);
+            g.setStroke(THIN_STROKE);
+            g.drawRoundRect(50, y, 600, DOC_HEIGHT, 12, 12);
+        }
+        
+        // doc title
+        g.setFont(DOC_TITLE_FONT);
+        g.setColor(PRIMARY_COLOR);
+        g.drawString("Doc " + (i + 1), 70, y + 30);
+        
+        // bm25 score and rank for docs that made the top k
+        int rank = rankedResults.rankOf(i);
+        if (isMatching && rank >= 0) {
+            g.setFont(TEXT_FONT);
+            g.setColor(RANK_COLOR);
+            String score = "#" + (rank + 1) + "  score " + formatScore(rankedResults.scores[rank], 3);
+            if (rankedShards != null) {
+                g.drawString("shard " + rankedShards[rank] + "   " + score, 430, y + 30);
             } else {
-                g.setColor(DOCUMENT_COLOR);
-                g.fillRoundRect(50, y, 600, docHeight, 12, 12);
-                g.setColor(BORDER_COLOR);
-                g.setStroke(new BasicStroke(2));
-                g.drawRoundRect(50, y, 600, docHeight, 12, 12);
+                g.drawString(score, 500, y + 30);
             }
-            
-            // doc title
-            g.setFont(new Font("SansSerif", Font.BOLD, 16));
-            g.setColor(PRIMARY_COLOR);
-            g.drawString("Doc " + (i + 1), 70, y + 30);
-            
-            // if we're processing this doc, show the tokens
-            if (isCurrentlyProcessing && !currentTokens.isEmpty()) {
-                g.setFont(new Font("SansSerif", Font.PLAIN, 14));
-                g.setColor(new Color(255, 87, 34));
-                StringBuilder tokensStr = new StringBuilder("Tokens: ");
-                for (String token : currentTokens) {
-                    if (token.equals(currentToken)) {
-                        tokensStr.append("[").append(token).append("] ");
-                    } else {
-                        tokensStr.append(token).append(" ");
-                    }
-                }
-                String tokenDisplay = tokensStr.toString();
-                if (tokenDisplay.length() > 60) {
-                    tokenDisplay = tokenDisplay.substring(0, 57) + "...";
-                }
-                g.drawString(tokenDisplay, 70, y + 55);
-                
-                // show original text too
-                g.setFont(new Font("SansSerif", Font.PLAIN, 12));
-                g.setColor(Color.GRAY);
-                String docText = docs[i];
-                if (docText.length() > 55) {
-                    docText = docText.substring(0, 52) + "...";
-                }
-                g.drawString("Original: " + docText, 70, y + 75);
-            } else {
-                g.setFont(new Font("SansSerif", Font.PLAIN, 14));
-                g.setColor(Color.BLACK);
-                
-                // cut off long text and highlight matches
-                String docText = docs[i];
-                if (docText.length() > 60) {
-                    docText = docText.substring(0, 57) + "...";
-                }
-                
-                if (!query.isEmpty() && currentResults.contains(i)) {
-                    drawHighlightedText(g, docText, query, 70, y + 55);
+        }
+        
+        // if we're processing this doc, show the tokens
+        if (isCurrentlyProcessing && buildEvents.currentTerms().length > 0) {
+            g.setFont(TEXT_FONT);
+            g.setColor(TOKEN_COLOR);
+            StringBuilder tokensStr = new StringBuilder("Tokens: ");
+            for (String token : buildEvents.currentTerms()) {
+                if (token.equals(currentToken)) {
+                    tokensStr.append("[").append(token).append("] ");
                 } else {
-                    g.drawString(docText, 70, y + 55);
-                }
-                
-                // wrap to second line if needed
-                if (!query.isEmpty() && currentResults.contains(i) && docs[i].length() > 60) {
-                    g.setFont(new Font("SansSerif", Font.PLAIN, 12));
-                    String remainingText = docs[i].substring(57);
-                    if (remainingText.length() > 60) {
-                        remainingText = remainingText.substring(0, 57) + "...";
-                    }
-                    g.drawString(remainingText, 70, y + 75);
+                    tokensStr.append(token).append(" ");
                 }
             }
-        }
-        
-        // show if there are more docs
-        if (docs.length > maxDocsToShow) {
-            g.setFont(new Font("SansSerif", Font.ITALIC, 16));
+            String tokenDisplay = tokensStr.toString();
+            if (tokenDisplay.length() > 60) {
+                tokenDisplay = tokenDisplay.substring(0, 57) + "...";
+            }
+            g.drawString(tokenDisplay, 70, y + 55);
+            
+            // show original text too
+            g.setFont(SMALL_FONT);
             g.setColor(Color.GRAY);
-            g.drawString("... and " + (docs.length - maxDocsToShow) + " more documents", 70, 150 + maxDocsToShow * spacing + 20);
+            String docText = docs.get(i);
+            if (docText.length() > 55) {
+                docText = docText.substring(0, 52) + "...";
+            }
+            g.drawString("Original: " + docText, 70, y + 75);
+        } else if (!query.isEmpty() && isMatching) {
+            // the part of the doc that best shows the match, over two lines
+            Snippet snippet = engine.snippet(engine.snapshot(), i, docs.get(i), query, queryTerms, SNIPPET_CHARS);
+            drawSnippet(g, snippet, 70, y + 55, 570);
+        } else {
+            g.setFont(TEXT_FONT);
+            g.setColor(Color.BLACK);
+            String docText = docs.get(i);
+            if (docText.length() > 60) {
+                docText = docText.substring(0, 57) + "...";
+            }
+            g.drawString(docText, 70, y + 55);
         }
     }
-    
-    private void drawHighlightedText(Graphics2D g, String text, String highlight, int x, int y) {
-        String[] words = text.split(" ");
-        int currentX = x;
-        FontMetrics fm = g.getFontMetrics();
-        
-        for (String word : words) {
-            if (word.toLowerCase().contains(highlight.toLowerCase())) {
-                // Draw highlighted background
-                int wordWidth = fm.stringWidth(word);
-                g.setColor(new Color(255, 193, 7, 100));
-                g.fillRect(currentX - 2, y - fm.getAscent(), wordWidth + 4, fm.getHeight());
-                
-                // Draw word in bold
-                Font originalFont = g.getFont();
-                g.setFont(originalFont.deriveFont(Font.BOLD));
-                g.setColor(Color.BLACK);
-                g.drawString(word, currentX, y);
-                g.setFont(originalFont);
+
+    /**
+     * lays the snippet out piece by piece, a piece being a word or a match, wrapping onto a second
+     * line. each piece is measured in the font it's drawn in, so bold matches don't overlap the
+     * text after them
+     */
+    private void drawSnippet(Graphics2D g, Snippet snippet, int x, int y, int width) {
+        FontMetrics plain = g.getFontMetrics(TEXT_FONT);
+        FontMetrics bold = g.getFontMetrics(BOLD_TEXT_FONT);
+        String text = snippet.text;
+        int[] highlights = snippet.highlights;
+        int ellipsis = plain.stringWidth("...");
+        int cx = x;
+        int line = 0;
+        g.setColor(Color.BLACK);
+        if (snippet.startsInside) {
+            g.setFont(TEXT_FONT);
+            g.drawString("...", cx, y);
+            cx += ellipsis;
+        }
+        int h = 0;
+        for (int pos = 0; pos < text.length(); ) {
+            while (h < highlights.length && highlights[h] < pos) h += 2;
+            boolean match = h < highlights.length && highlights[h] == pos;
+            int end;
+            if (match) {
+                end = highlights[h + 1];
+                h += 2;
             } else {
-                g.setColor(Color.BLACK);
-                g.drawString(word, currentX, y);
+                int space = text.indexOf(' ', pos);
+                end = space < 0 ? text.length() : space + 1;
+                if (h < highlights.length) end = Math.min(end, highlights[h]);
+            }
+            String piece = text.substring(pos, end);
+            FontMetrics metrics = match ? bold : plain;
+            int pieceWidth = metrics.stringWidth(piece);
+            boolean wordStart = pos == 0 || text.charAt(pos - 1) == ' ';
+            if (wordStart && cx > x && cx + pieceWidth > x + width - ellipsis) {
+                if (++line == 2) {
+                    g.setFont(TEXT_FONT);
+                    g.setColor(Color.BLACK);
+                    g.drawString("...", cx, y);
+                    return;
+                }
+                cx = x;
+                y += SNIPPET_LINE_HEIGHT;
+            }
+            if (match) {
+                g.setColor(MATCH_COLOR);
+                g.fillRect(cx - 1, y - metrics.getAscent(), pieceWidth + 2, metrics.getHeight());
             }
-            currentX += fm.stringWidth(word + " ");
+            g.setFont(match ? BOLD_TEXT_FONT : TEXT_FONT);
+            g.setColor(Color.BLACK);
+            g.drawString(piece, cx, y);
+            cx += pieceWidth;
+            pos = end;
+        }
+        if (snippet.endsInside) {
+            g.setFont(TEXT_FONT);
+            g.drawString("...", cx, y);
         }
     }
     
+    /** a window of TERM_ROWS terms read straight from the sorted dictionary at the scroll position */
     private void drawInvertedIndex(Graphics2D g) {
-        g.setFont(new Font("SansSerif", Font.BOLD, 26));
+        g.setFont(INDEX_TITLE_FONT);
         g.setColor(Color.BLACK);
         g.drawString("Inverted Index:", 700, 120);
         
-        if (!indexBuilt && !isBuilding) {
-            g.setFont(new Font("SansSerif", Font.ITALIC, 18));
+        IndexReader shown = shownIndex();
+        if (shown == null) {
+            g.setFont(PLACEHOLDER_FONT);
             g.setColor(Color.GRAY);
             g.drawString("Index will appear here during building...", 720, 155);
             return;
         }
         
-        // keep them in order
-        List<Map.Entry<String, Set<Integer>>> sortedEntries = new ArrayList<>(invertedIndex.entrySet());
-        sortedEntries.sort(Map.Entry.comparingByKey());
-        
-        int y = 155;
-        int maxEntries = 18; // slightly fewer to accommodate larger text
-        int entriesShown = 0;
-        g.setFont(new Font("Monospaced", Font.PLAIN, 16));
-        
-        for (Map.Entry<String, Set<Integer>> entry : sortedEntries) {
-            if (entriesShown >= maxEntries) break;
-            
-            String word = entry.getKey();
-            Set<Integer> docIds = entry.getValue();
-            
-            // highlight the current token or search term
-            boolean isCurrentToken = isBuilding && word.equals(currentToken);
-            boolean isQueryToken = word.equals(query);
-            
-            if (isCurrentToken) {
-                // pulse the one being added
-                long time = System.currentTimeMillis();
-                float pulse = (float) (0.5 + 0.5 * Math.sin(time * 0.02));
-                Color tokenColor = new Color(255, 193, 7, (int)(80 + 70 * pulse));
-                g.setColor(tokenColor);
-                g.fillRect(700, y - 18, 400, 24);
-                g.setColor(new Color(255, 87, 34));
-                g.setFont(g.getFont().deriveFont(Font.BOLD));
-            } else if (isQueryToken) {
-                g.setColor(new Color(255, 193, 7, 120));
-                g.fillRect(700, y - 18, 400, 24);
-                g.setColor(PRIMARY_COLOR);
-                g.setFont(g.getFont().deriveFont(Font.BOLD));
-            } else {
-                g.setColor(Color.BLACK);
-                g.setFont(new Font("Monospaced", Font.PLAIN, 16));
-            }
-            
-            String indexEntry = String.format("%-15s → %s", word, docIds.toString());
-            g.drawString(indexEntry, 720, y);
-            y += 26;
-            entriesShown++;
+        int termCount = shown.termCount();
+        int first = Math.max(0, Math.min(termScroll, termCount - TERM_ROWS));
+        int row = 0;
+        for (Iterator<String> terms = shown.sortedTermIterator(first); terms.hasNext() && row < TERM_ROWS; row++) {
+            String word = terms.next();
+            if (isBuilding && word.equals(currentToken)) continue; // drawn live, it pulses
+            drawIndexRow(g, shown, word, termY(row));
         }
+        int y = termY(Math.min(row, TERM_ROWS));
         
-        // show if there are more terms
-        if (sortedEntries.size() > maxEntries) {
-            g.setFont(new Font("SansSerif", Font.ITALIC, 16));
+        // where we are in the dictionary
+        if (termCount > TERM_ROWS) {
+            drawScrollBar(g, TERM_SCROLL_BAR, first, TERM_ROWS, termCount);
+            g.setFont(NOTE_FONT);
             g.setColor(Color.GRAY);
-            g.drawString("... and " + (sortedEntries.size() - maxEntries) + " more terms", 720, y + 15);
+            g.drawString(String.format("Terms %,d-%,d of %,d, scroll for more", first + 1, first + row, termCount),
+                         720, y + 15);
         }
         
         // progress bar
         if (isBuilding) {
-            g.setFont(new Font("SansSerif", Font.BOLD, 18));
-            g.setColor(new Color(255, 152, 0));
-            int progress = (int) ((double) currentStep / animationSteps.size() * 100);
+            g.setFont(PROGRESS_FONT);
+            g.setColor(BUILDING_COLOR);
+            int progress = (int) (buildProgress() * 100);
             g.drawString("Building progress: " + progress + "%", 700, y + 40);
         }
     }
+
+    private void drawIndexRow(Graphics2D g, IndexReader shown, String word, int y) {
+        // highlight the current token or search term
+        boolean isCurrentToken = isBuilding && word.equals(currentToken);
+        boolean isQueryToken = queryTerms.contains(word);
+        
+        if (isCurrentToken) {
+            // pulse the one being added
+            long time = System.currentTimeMillis();
+            float pulse = (float) (0.5 + 0.5 * Math.sin(time * 0.02));
+            Color tokenColor = new Color(255, 193, 7, (int)(80 + 70 * pulse));
+            g.setColor(tokenColor);
+            g.fillRect(INDEX_X, y - 18, INDEX_ROW_WIDTH, 24);
+            g.setColor(TOKEN_COLOR);
+            g.setFont(INDEX_BOLD_FONT);
+        } else if (isQueryToken) {
+            g.setColor(QUERY_ROW_COLOR);
+            g.fillRect(INDEX_X, y - 18, INDEX_ROW_WIDTH, 24);
+            g.setColor(PRIMARY_COLOR);
+            g.setFont(INDEX_BOLD_FONT);
+        } else {
+            g.setColor(Color.BLACK);
+            g.setFont(INDEX_FONT);
+        }
+        g.drawString(indexEntry(word, shown.postings(word)), 720, y);
+    }
+
+    /** "term            → [0, 2, 5, ...] 1,234 docs", only decoding the doc ids that fit */
+    private static String indexEntry(String word, Postings postings) {
+        StringBuilder entry = new StringBuilder(word);
+        while (entry.length() < 15) entry.append(' ');
+        entry.append(" → [");
+        DocIterator docIds = postings.iterator();
+        int shownIds = 0;
+        for (int doc = docIds.nextDoc(); doc != DocIterator.NO_MORE_DOCS; doc = docIds.nextDoc()) {
+            if (entry.length() > 36) {
+                entry.append(", ...");
+                break;
+            }
+            if (shownIds++ > 0) entry.append(", ");
+            entry.append(doc);
+        }
+        entry.append(']');
+        if (shownIds < postings.docFreq()) {
+            entry.append(String.format(" %,d docs", postings.docFreq()));
+        }
+        return entry.toString();
+    }
+
+    /** the first few set bits, "{0, 2, 3, ...}", instead of printing a huge result set */
+    private static String preview(BitSet bits) {
+        StringBuilder preview = new StringBuilder("{");
+        for (int doc = bits.nextSetBit(0); doc >= 0; doc = bits.nextSetBit(doc + 1)) {
+            if (preview.length() > 40) {
+                preview.append(", ...");
+                break;
+            }
+            if (preview.length() > 1) preview.append(", ");
+            preview.append(doc);
+        }
+        return preview.append('}').toString();
+    }
+
+    /** the score with a fixed number of decimals, without going through String.format */
+    private static String formatScore(float score, int decimals) {
+        long scale = decimals == 3 ? 1000 : 100;
+        long scaled = Math.round(score * scale);
+        String fraction = Long.toString(scaled % scale + scale).substring(1);
+        return scaled / scale + "." + fraction;
+    }
     
     private void drawSearchResults(Graphics2D g) {
-        if (query.isEmpty() || (!indexBuilt && !isBuilding)) return;
+        boolean searchable = engine.snapshot().reader != null || shards != null;
+        if (query.isEmpty() || (!searchable && !isBuilding)) return;
         
-        g.setFont(new Font("SansSerif", Font.BOLD, 18));
+        g.setFont(RESULT_FONT);
         g.setColor(SUCCESS_COLOR);
         
         if (currentResults.isEmpty()) {
-            if (isBuilding) {
+            if (!searchable) {
                 g.setColor(Color.GRAY);
                 g.drawString("Search will be available after indexing completes...", 700, 880);
             } else {
-                g.drawString("No results found for: \"" + query + "\"", 700, 880);
+                g.drawString("No results found for: \"" + query + "\"" + (shardNote.isEmpty() ? "" : " (" + shardNote + ")"),
+                             700, 880);
             }
         } else {
-            g.drawString("Found \"" + query + "\" in " + currentResults.size() + 
-                        " document(s): " + currentResults, 700, 880);
+            g.drawString("Found \"" + query + "\" in " + String.format("%,d", currentResults.cardinality()) + 
+                        " document(s): " + preview(currentResults) + (isBuilding ? " (previous index)" : ""), 700, 880);
             
             // list which docs matched
-            g.setFont(new Font("SansSerif", Font.PLAIN, 16));
+            g.setFont(RANKED_FONT);
             g.setColor(Color.DARK_GRAY);
-            StringBuilder matchingDocs = new StringBuilder("Matching documents: ");
-            for (Integer docId : currentResults) {
-                matchingDocs.append("Doc ").append(docId + 1).append(" ");
+            StringBuilder matchingDocs = new StringBuilder(shardNote.isEmpty() ? "Ranked (BM25): "
+                                                           : "Ranked (BM25, " + shardNote + "): ");
+            for (int r = 0; r < rankedResults.size() && matchingDocs.length() < 90; r++) {
+                matchingDocs.append("Doc ").append(rankedResults.docs[r] + 1)
+                            .append(" (").append(rankedShards != null ? "shard " + rankedShards[r] + ", " : "")
+                            .append(formatScore(rankedResults.scores[r], 2)).append(")  ");
             }
             g.drawString(matchingDocs.toString(), 700, 910);
+            if (!expandedQuery.isEmpty()) {
+                // the variants that actually matched are highlighted in the index and documents too
+                String matched = expandedQuery.length() > 110 ? expandedQuery.substring(0, 107) + "..." : expandedQuery;
+                g.setColor(PRIMARY_COLOR);
+                g.drawString("Matched terms: " + matched, 700, 940);
+            }
         }
     }
 
-    public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> {
-            JFrame frame = new JFrame("Full-Text Search Animation");
-            frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-            frame.setContentPane(new FullTextSearchAnimation());
+    /**
+     * compares bytes per posting of boxed HashSet postings vs PostingsList on a generated corpus
+     */
+    static void printMemoryReport(int numDocs) {
+        SyntheticCorpus corpus = new SyntheticCorpus(50_000, 1.0, 42);
+        int[][] docTerms = new int[numDocs][];
+        long postingCount = 0;
+        for (int i = 0; i < numDocs; i++) {
+            docTerms[i] = corpus.nextDocumentTerms(40);
+            postingCount += docTerms[i].length;
+        }
+        String[] vocab = corpus.vocabulary();
+
+        long boxedBytes = retainedBytes(() -> {
+            Map<String, Set<Integer>> boxed = new HashMap<>();
+            for (int i = 0; i < numDocs; i++) {
+                for (int term : docTerms[i]) {
+                    boxed.computeIfAbsent(vocab[term], k -> new HashSet<>()).add(i);
+                }
+            }
+            return boxed;
+        });
+        long[] encodedBytes = new long[1];
+        long compressedBytes = retainedBytes(() -> {
+            Map<String, PostingsList> compressed = new HashMap<>();
+            for (int i = 0; i < numDocs; i++) {
+                for (int term : docTerms[i]) {
+                    compressed.computeIfAbsent(vocab[term], k -> new PostingsList()).add(i, 1, docTerms[i].length);
+                }
+            }
+            for (PostingsList postings : compressed.values()) {
+                postings.trim();
+                encodedBytes[0] += postings.sizeInBytes();
+            }
+            return compressed;
+        });
+
+        System.out.printf("docs: %,d  postings: %,d%n", numDocs, postingCount);
+        System.out.printf("Map<String, Set<Integer>>   %,14d bytes  %6.2f bytes/posting%n",
+                          boxedBytes, (double) boxedBytes / postingCount);
+        System.out.printf("Map<String, PostingsList>   %,14d bytes  %6.2f bytes/posting%n",
+                          compressedBytes, (double) compressedBytes / postingCount);
+        System.out.printf("  postings lists only       %,14d bytes  %6.2f bytes/posting%n",
+                          encodedBytes[0], (double) encodedBytes[0] / postingCount);
+    }
+
+    /** heap held by whatever the supplier builds: used heap while it's alive minus after it's dropped */
+    private static long retainedBytes(java.util.function.Supplier<Object> builder) {
+        Object[] holder = { builder.get() };
+        long withIt = usedHeap();
+        holder[0] = null;
+        return withIt - usedHeap();
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /**
+     * times ParallelIndexBuilder on a generated corpus at 1, 2, 4... threads up to the core count
+     */
+    static void printBuildReport(int numDocs) {
+        SyntheticCorpus corpus = new SyntheticCorpus(50_000, 1.0, 42);
+        String[] texts = new String[numDocs];
+        for (int i = 0; i < numDocs; i++) {
+            texts[i] = corpus.nextDocument(40);
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        double baseline = 0;
+        for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                ParallelIndexBuilder builder = new ParallelIndexBuilder(pool);
+                builder.build(texts); // warm up
+                InvertedIndex index = builder.build(texts);
+                if (threads == 1) baseline = builder.docsPerSecond();
+                System.out.printf("threads: %2d  segments: %3d  terms: %,d  %,12.0f docs/sec  speedup %.2fx%n",
+                                  threads, builder.segmentCount(), index.terms().size(),
+                                  builder.docsPerSecond(), builder.docsPerSecond() / baseline);
+            } finally {
+                pool.shutdown();
+            }
+            if (threads == cores) break;
+        }
+    }
+
+    /**
+     * keeps adding, updating and deleting generated documents on a SegmentedIndex, and every round
+     * prints the segment count and how long a batch of searches takes against the latest snapshot
+     */
+    static void printUpdateReport(int numOps) {
+        SyntheticCorpus corpus = new SyntheticCorpus(50_000, 1.0, 42);
+        java.util.Random random = new java.util.Random(42);
+        List<Integer> live = new ArrayList<>();
+        String[] vocabulary = corpus.vocabulary();
+        try (SegmentedIndex index = new SegmentedIndex(1_000, 10)) {
+            int round = numOps / 10;
+            for (int op = 1; op <= numOps; op++) {
+                int kind = random.nextInt(10);
+                if (kind < 6 || live.isEmpty()) {
+                    live.add(index.addDocument(corpus.nextDocument(40)));
+                } else {
+                    int slot = random.nextInt(live.size());
+                    int docId = live.get(slot);
+                    if (kind < 8) {
+                        index.deleteDocument(docId);
+                        live.set(slot, live.get(live.size() - 1));
+                        live.remove(live.size() - 1);
+                    } else {
+                        live.set(slot, index.updateDocument(docId, corpus.nextDocument(40)));
+                    }
+                }
+                if (op % 500 == 0) index.refresh();
+                if (op % round == 0) {
+                    SegmentedIndex.Snapshot snapshot = index.snapshot();
+                    long start = System.nanoTime();
+                    for (int q = 0; q < 100; q++) {
+                        Query query = new OrQuery(List.of(new TermQuery(vocabulary[random.nextInt(100)]),
+                                                          new TermQuery(vocabulary[random.nextInt(100)])));
+                        Bm25Searcher.search(snapshot, query, SearchEngine.TOP_K);
+                    }
+                    System.out.printf("ops: %,9d  live docs: %,8d  segments: %3d  %8.1f us/query%n",
+                                      op, live.size(), index.segmentCount(), (System.nanoTime() - start) / 100e3);
+                }
+            }
+        }
+    }
+
+    /**
+     * latency while typing queries into the panel over a big generated index, searching on the EDT
+     * for every key (how it used to work) vs off it with debounce and cancellation. input is how long
+     * a key waits for the EDT, result is until results for that text or newer are shown, and after
+     * pause is the result latency of the last key typed before stopping
+     */
+    static void printLatencyReport(int numDocs) throws Exception {
+        SyntheticCorpus corpus = new SyntheticCorpus(50_000, 1.0, 42);
+        String[] texts = new String[numDocs];
+        for (int i = 0; i < numDocs; i++) {
+            texts[i] = corpus.nextDocument(40);
+        }
+        String[] vocabulary = corpus.vocabulary();
+        java.util.Random random = new java.util.Random(42);
+        List<String> typed = new ArrayList<>();
+        for (int q = 0; q < 30; q++) {
+            String a = vocabulary[random.nextInt(20)], b = vocabulary[random.nextInt(20)];
+            switch (q % 5) {
+                case 0 -> typed.add(a + " " + b);
+                case 1 -> typed.add(a + " OR " + b + " OR " + vocabulary[random.nextInt(20)]);
+                case 2 -> typed.add(a.substring(0, Math.min(3, a.length())) + "* " + b);
+                case 3 -> typed.add("\"" + a + " " + b + "\"");
+                default -> typed.add(a.length() > 3 ? a.charAt(0) + a.substring(2) + " " + b : a + " " + b);
+            }
+        }
+        FullTextSearchAnimation[] panel = new FullTextSearchAnimation[1];
+        SwingUtilities.invokeAndWait(() -> {
+            panel[0] = new FullTextSearchAnimation(texts);
+            panel[0].buildIndex();
+        });
+        FullTextSearchAnimation p = panel[0];
+        for (boolean offEdt : new boolean[] {false, true}) {
+            List<Long> input = Collections.synchronizedList(new ArrayList<>());
+            List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+            List<Long> afterPause = new ArrayList<>();
+            for (int round = 0; round < 2; round++) { // first round is warm up
+                input.clear();
+                latencies.clear();
+                afterPause.clear();
+                SwingUtilities.invokeAndWait(() -> {
+                    p.keystrokeLatency = latencies::add;
+                    p.publishIndex(p.invertedIndex, false); // start cold, only repeats within the round hit the caches
+                });
+                for (String text : typed) {
+                    for (int i = 1; i <= text.length(); i++) {
+                        String prefix = text.substring(0, i);
+                        long pressedAt = System.nanoTime();
+                        SwingUtilities.invokeLater(() -> {
+                            input.add(System.nanoTime() - pressedAt);
+                            p.searchField.setText(prefix);
+                            if (offEdt) {
+                                p.keystroke(pressedAt);
+                            } else {
+                                p.pendingKeystrokes.add(new long[] {p.searchGeneration.incrementAndGet(), pressedAt});
+                                IndexSnapshot index = p.engine.snapshot();
+                                p.publish(p.searchGeneration.get(), p.engine.search(index, prefix, () -> false)
+                                    .withSuggestions(SearchEngine.suggestions(index.reader, prefix)));
+                            }
+                        });
+                        Thread.sleep(60); // a quick typist
+                    }
+                    Thread.sleep(500);
+                    afterPause.add(latencies.get(latencies.size() - 1));
+                }
+            }
+            System.out.printf("%-32s keystrokes: %4d  input %s  result %s  after pause %s%n",
+                              offEdt ? "off the EDT, cancel + debounce" : "on the EDT, every keystroke",
+                              latencies.size(), percentiles(input), percentiles(latencies), percentiles(afterPause));
+        }
+        System.out.println(p.engine.stats());
+        p.searchExecutor.shutdownNow();
+    }
+
+    private static String percentiles(List<Long> nanos) {
+        long[] sorted = nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+        return String.format("p50 %6.1f / p99 %6.1f ms", sorted[sorted.length / 2] / 1e6,
+                             sorted[Math.min(sorted.length - 1, (int) (sorted.length * 0.99))] / 1e6);
+    }
+
+    /**
+     * allocated bytes and throughput per document for the String analysis path vs the streaming
+     * tokenizer, measured with the per-thread allocation counter
+     */
+    static void printTokenizerReport(int numDocs) {
+        SyntheticCorpus corpus = new SyntheticCorpus(50_000, 1.0, 42);
+        String[] texts = new String[numDocs];
+        for (int i = 0; i < numDocs; i++) {
+            texts[i] = corpus.nextDocument(40);
+        }
+        Tokenizer tokenizer = new Tokenizer();
+        int[] sink = new int[1];
+        Tokenizer.TokenConsumer count = (buffer, length) -> sink[0] += length;
+
+        for (int round = 0; round < 2; round++) { // first round is warm up
+            boolean print = round == 1;
+            measure(print, "Analyzer.analyze (Strings)", numDocs, () -> {
+                for (String text : texts) sink[0] += Analyzer.analyze(text).size();
+            });
+            measure(print, "Tokenizer.tokenize", numDocs, () -> {
+                for (String text : texts) tokenizer.tokenize(text, count);
+            });
+            measure(print, "index via String terms", numDocs, () -> {
+                InvertedIndex index = new InvertedIndex();
+                for (int i = 0; i < texts.length; i++) index.addDocument(i, Analyzer.termPositions(texts[i]));
+            });
+            measure(print, "index via CharSequence", numDocs, () -> {
+                InvertedIndex index = new InvertedIndex();
+                for (int i = 0; i < texts.length; i++) index.addDocument(i, texts[i]);
+            });
+        }
+    }
+
+    private static void measure(boolean print, String label, int numDocs, Runnable work) {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        work.run();
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        if (print) {
+            System.out.printf("%-28s %,12.0f docs/sec  %,10.1f bytes allocated/doc%n",
+                              label, numDocs * 1e9 / elapsed, (double) allocated / numDocs);
+        }
+    }
+
+    /**
+     * indexes a corpus path (directory of text files, .jsonl, or one doc per line) into a segment
+     * file within a memory budget, then prints throughput and peak heap. the docs themselves go
+     * into a DocStore next to it, x.seg -> x.docs, which --corpus opens
+     */
+    static void ingest(String corpus, String output, long budgetMb) {
+        java.nio.file.Path segment = java.nio.file.Paths.get(output);
+        try (DocumentSource source = DocumentSource.open(java.nio.file.Paths.get(corpus));
+             DocStore.Writer docs = new DocStore.Writer(docStoreFor(segment))) {
+            StreamingIndexer indexer = new StreamingIndexer(budgetMb << 20, null);
+            for (String doc = source.next(); doc != null; doc = source.next()) {
+                indexer.add(doc);
+                docs.add(doc);
+            }
+            StreamingIndexer.Stats stats = indexer.finish(segment, source.bytesRead());
+            try (DocStore store = docs.finish()) {
+                System.out.println(stats);
+                System.out.println(store.stats());
+            }
+        } catch (java.io.IOException e) {
+            System.err.println("ingest failed: " + e.getMessage());
+        }
+    }
+
+    /** where the docs of a segment written by --ingest are stored */
+    static java.nio.file.Path docStoreFor(java.nio.file.Path segment) {
+        String name = segment.getFileName().toString();
+        return segment.resolveSibling((name.endsWith(".seg") ? name.substring(0, name.length() - 4) : name) + ".docs");
+    }
+
+    /**
+     * indexes a corpus (a .seg file is mapped instead) with no window, then runs every line of the
+     * query file against it rounds times. each round starts with cold caches. prints every query's
+     * latency and hit count from the last round, then qps and percentiles per round
+     */
+    static void runBatch(String corpus, String queryFile, int rounds) {
+        SearchEngine engine = new SearchEngine();
+        try {
+            long start = System.nanoTime();
+            java.nio.file.Path corpusPath = java.nio.file.Paths.get(corpus);
+            if (corpus.endsWith(".seg")) {
+                engine.open(corpusPath);
+            } else {
+                List<String> docs = new ArrayList<>();
+                try (DocumentSource source = DocumentSource.open(corpusPath)) {
+                    for (String doc = source.next(); doc != null; doc = source.next()) {
+                        docs.add(doc);
+                    }
+                }
+                engine.build(docs.toArray(new String[0]));
+            }
+            SearchEngine.Stats indexed = engine.stats();
+            System.out.printf("indexed %s: %s in %.2fs%n", corpus, indexed.index, (System.nanoTime() - start) / 1e9);
+
+            List<String> queries = new ArrayList<>();
+            for (String line : java.nio.file.Files.readAllLines(java.nio.file.Paths.get(queryFile))) {
+                if (!line.isBlank() && !line.startsWith("#")) queries.add(line.trim());
+            }
+            if (queries.isEmpty()) {
+                System.err.println("no queries in " + queryFile);
+                return;
+            }
+            for (int round = 1; round <= rounds; round++) {
+                engine.clearCaches();
+                List<Long> latencies = new ArrayList<>();
+                long roundStart = System.nanoTime();
+                for (String query : queries) {
+                    long queryStart = System.nanoTime();
+                    SearchResult result = engine.search(query);
+                    long took = System.nanoTime() - queryStart;
+                    latencies.add(took);
+                    if (round == rounds) {
+                        System.out.printf("%9.3f ms %,11d hits  %s%n", took / 1e6, result.results.cardinality(), query);
+                    }
+                }
+                double seconds = (System.nanoTime() - roundStart) / 1e9;
+                System.out.printf("round %d: %,d queries in %.2fs, %,.1f qps, %s%n", round, queries.size(), seconds,
+                                  queries.size() / seconds, percentiles(latencies));
+            }
+            System.out.println(engine.stats());
+        } catch (java.io.IOException e) {
+            System.err.println("batch failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * indexes the docs of one shard of a corpus and serves them to a --serve front server on
+     * a loopback port until the process is killed
+     */
+    static void serveShard(String corpus, int shard, int shardCount, int port) {
+        try {
+            LocalShard local = ShardedSearcher.loadShard(java.nio.file.Paths.get(corpus), shard, shardCount);
+            QueryServer server = QueryServer.shard(port, local);
+            System.out.printf("shard %d of %d: %,d docs on http://127.0.0.1:%d/%n", shard, shardCount, local.docCount(),
+                              server.port());
+        } catch (java.io.IOException e) {
+            System.err.println("shard failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * serves merged searches over shards on a loopback port until the process is killed. shards
+     * are either urls of --shard processes or a corpus split into that many in-process shards
+     */
+    static void serve(int port, String[] shardArgs) {
+        try {
+            ShardedSearcher searcher = shards(shardArgs);
+            QueryServer server = QueryServer.front(port, searcher);
+            System.out.printf("%d shards, searching on http://127.0.0.1:%d/search?q=...&timeout=%d%n",
+                              searcher.shardCount(), server.port(), QueryServer.DEFAULT_TIMEOUT_MS);
+        } catch (java.io.IOException | IllegalArgumentException e) {
+            System.err.println("server failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /** "url url ..." or "corpus count", see serve */
+    static ShardedSearcher shards(String[] args) throws java.io.IOException {
+        if (args.length > 0 && args[0].startsWith("http")) {
+            List<Shard> remote = new ArrayList<>();
+            for (String url : args) {
+                remote.add(new RemoteShard(url));
+            }
+            return new ShardedSearcher(remote);
+        }
+        if (args.length != 2) throw new IllegalArgumentException("expected shard urls or a corpus and a shard count");
+        return ShardedSearcher.local(java.nio.file.Paths.get(args[0]), Integer.parseInt(args[1]));
+    }
+
+    /** the argument after name, or null if it isn't there */
+    private static String option(String[] args, String name) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals(name)) return args[i + 1];
+        }
+        return null;
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--memory-report")) {
+            printMemoryReport(args.length > 1 ? Integer.parseInt(args[1]) : 100_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--tokenizer-report")) {
+            printTokenizerReport(args.length > 1 ? Integer.parseInt(args[1]) : 100_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--build-report")) {
+            printBuildReport(args.length > 1 ? Integer.parseInt(args[1]) : 200_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--update-report")) {
+            printUpdateReport(args.length > 1 ? Integer.parseInt(args[1]) : 200_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--latency-report")) {
+            try {
+                printLatencyReport(args.length > 1 ? Integer.parseInt(args[1]) : 200_000);
+            } catch (Exception e) {
+                System.err.println("latency report failed: " + e);
+            }
+            System.exit(0);
+        }
+        if (args.length > 2 && args[0].equals("--batch")) {
+            runBatch(args[1], args[2], args.length > 3 ? Integer.parseInt(args[3]) : 1);
+            return;
+        }
+        if (args.length > 4 && args[0].equals("--shard")) {
+            serveShard(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+            return;
+        }
+        if (args.length > 2 && args[0].equals("--serve")) {
+            serve(Integer.parseInt(args[1]), Arrays.copyOfRange(args, 2, args.length));
+            return;
+        }
+        if (args.length > 2 && args[0].equals("--ingest")) {
+            ingest(args[1], args[2], args.length > 3 ? Long.parseLong(args[3]) : 256);
+            return;
+        }
+        DocStore shownDocs = null;
+        java.nio.file.Path indexFile = DEFAULT_INDEX_FILE;
+        String corpusArg = option(args, "--corpus");
+        if (corpusArg != null) {
+            java.nio.file.Path corpus = java.nio.file.Paths.get(corpusArg);
+            try {
+                // a store written by --ingest is shown whole, next to its segment, anything else is sampled
+                if (corpusArg.endsWith(".docs")) {
+                    shownDocs = DocStore.open(corpus);
+                    String name = corpus.getFileName().toString();
+                    indexFile = corpus.resolveSibling(name.substring(0, name.length() - 5) + ".seg");
+                } else {
+                    shownDocs = DocStore.of(DocumentSource.sample(corpus, SAMPLE_SIZE, 42));
+                }
+            } catch (java.io.IOException e) {
+                System.err.println("couldn't read corpus: " + e.getMessage());
+                return;
+            }
+        }
+        DocStore animatedDocs = shownDocs != null ? shownDocs : DocStore.of(DEFAULT_DOCS);
+        java.nio.file.Path animatedIndexFile = indexFile;
+        // a number splits the shown docs into that many in-process shards, urls are --shard processes
+        String shardsArg = option(args, "--shards");
+        ShardedSearcher shards = null;
+        if (shardsArg != null) {
+            try {
+                shards = shardsArg.startsWith("http") ? shards(shardsArg.split(","))
+                         : ShardedSearcher.local(animatedDocs, Integer.parseInt(shardsArg));
+            } catch (java.io.IOException | IllegalArgumentException e) {
+                System.err.println("couldn't set up shards: " + e.getMessage());
+                return;
+            }
+        }
+        ShardedSearcher animatedShards = shards;
+        SwingUtilities.invokeLater(() -> {
+            JFrame frame = new JFrame("Full-Text Search Animation");
+            frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+            FullTextSearchAnimation panel = new FullTextSearchAnimation(animatedDocs, animatedIndexFile);
+            if (animatedShards != null) panel.searchShards(animatedShards);
+            frame.setContentPane(panel);
             frame.pack();
             frame.setLocationRelativeTo(null);
             frame.setResizable(false);
@@ -586,3 +1661,6687 @@ public class FullTextSearchAnimation extends JPanel {
         });
     }
 }
+
+/**
+ * indexing and searching with no UI attached, what the panel drives and what --batch runs
+ * headless. searches read an immutable snapshot of the last published index, so any number of
+ * threads can search while a new index is built and swapped in
+ */
+final class SearchEngine {
+    static final int TOP_K = 10;
+    static final int MAX_SUGGESTIONS = 5;
+
+    private final ParallelIndexBuilder builder;
+    // what searches run against: the last finished in-memory index, or a segment mapped from disk
+    private final java.util.concurrent.atomic.AtomicReference<IndexSnapshot> snapshot =
+        new java.util.concurrent.atomic.AtomicReference<>(IndexSnapshot.EMPTY);
+    // entries belong to the snapshot generation they were worked out on. results are keyed by
+    // the parsed query, filters are the bits of AND / NOT clauses that keep coming back
+    private final QueryCache<SearchResult> resultCache = new QueryCache<>(16 << 20, 1, SearchResult::weight);
+    private final QueryCache<BitSet> filterCache = new QueryCache<>(16 << 20, 2, bits -> bits.size() / 8 + 64);
+    // keyed by doc and query, so scrolling back to a doc doesn't work its snippet out again
+    private final QueryCache<Snippet> snippetCache = new QueryCache<>(4 << 20, 1, Snippet::weight);
+    private final Metrics metrics;
+    // query analysis, timed into metrics.analysis
+    private final Function<String, Set<String>> analyzer;
+
+    SearchEngine() {
+        this(ForkJoinPool.commonPool(), new Metrics(), false);
+    }
+
+    /** withOffsets keeps word offsets in built indexes, so snippets come straight from the postings */
+    SearchEngine(ForkJoinPool pool, Metrics metrics, boolean withOffsets) {
+        builder = new ParallelIndexBuilder(pool, withOffsets);
+        this.metrics = metrics;
+        analyzer = text -> {
+            long start = System.nanoTime();
+            Set<String> tokens = Analyzer.tokenizeAndFilter(text);
+            metrics.analysis.record(System.nanoTime() - start);
+            return tokens;
+        };
+    }
+
+    Metrics metrics() {
+        return metrics;
+    }
+
+    /** indexes docs in memory, doc ids are array positions, and publishes the result */
+    InvertedIndex build(String[] docs) {
+        return build(docs.length, () -> builder.build(docs));
+    }
+
+    /** the same, reading the docs out of a store a block at a time */
+    InvertedIndex build(DocStore docs) {
+        return build(docs.size(), () -> builder.build(docs));
+    }
+
+    private InvertedIndex build(int docCount, java.util.function.Supplier<InvertedIndex> build) {
+        IndexBuildEvent event = new IndexBuildEvent();
+        event.begin();
+        long start = System.nanoTime();
+        InvertedIndex index = build.get();
+        metrics.builds.record(System.nanoTime() - start);
+        metrics.docsIndexed.add(docCount);
+        event.end();
+        if (event.shouldCommit()) {
+            event.docs = docCount;
+            event.terms = index.termCount();
+            event.commit();
+        }
+        publish(index, false);
+        return index;
+    }
+
+    /** maps a segment file written by a build or --ingest, checks all of it and publishes it */
+    MappedIndexReader open(java.nio.file.Path path) throws java.io.IOException {
+        MappedIndexReader reader = SegmentFile.open(path);
+        reader.verifyChecksums();
+        publish(reader, true);
+        return reader;
+    }
+
+    /**
+     * swaps in a finished index (or none) for searches to read. searches that already grabbed the
+     * old snapshot carry on with it untouched, the caches drop everything from before
+     */
+    IndexSnapshot publish(IndexReader reader, boolean fromFile) {
+        IndexSnapshot published = snapshot.updateAndGet(old -> new IndexSnapshot(reader, old.generation + 1, fromFile));
+        resultCache.invalidate(published.generation);
+        filterCache.invalidate(published.generation);
+        snippetCache.invalidate(published.generation);
+        return published;
+    }
+
+    IndexSnapshot snapshot() {
+        return snapshot.get();
+    }
+
+    /** republishes the same index, so everything after this starts with cold caches */
+    void clearCaches() {
+        IndexSnapshot current = snapshot.get();
+        publish(current.reader, current.fromFile);
+    }
+
+    /** searches whatever is published right now */
+    SearchResult search(String text) {
+        return search(snapshot(), text, () -> false);
+    }
+
+    /**
+     * searches one snapshot, results are cached against its generation. throws
+     * CancellationException as soon as stale says a newer search made this one pointless
+     */
+    SearchResult search(IndexSnapshot snapshot, String text, BooleanSupplier stale) {
+        SearchEvent event = new SearchEvent();
+        event.begin();
+        long start = System.nanoTime();
+        try {
+            SearchResult result = search(snapshot.reader, snapshot.generation, text, stale);
+            metrics.queries.record(System.nanoTime() - start);
+            event.hits = result.results.cardinality();
+            return result;
+        } catch (CancellationException e) {
+            metrics.cancelledQueries.increment();
+            event.cancelled = true;
+            throw e;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.query = text;
+                event.generation = snapshot.generation;
+                event.commit();
+            }
+        }
+    }
+
+    private SearchResult search(IndexReader index, long generation, String text, BooleanSupplier stale) {
+        SearchResult result = new SearchResult();
+        // not lowercased yet, upper case AND / OR / NOT are operators
+        String searchText = text.trim();
+        if (searchText.isEmpty() || index == null) return result;
+        // use the same tokenization for search too
+        Query parsed = Query.parse(searchText, analyzer);
+        if (parsed == null) {
+            result.query = searchText.toLowerCase(); // keep original if no tokens left
+            return result;
+        }
+        // the parsed form is already normalized: lower case, stemmed, no stop words
+        String key = parsed.toString();
+        SearchResult cached = resultCache.get(generation, key);
+        if (cached == null) {
+            cached = result;
+            cached.query = key;
+            Query rewritten = runQuery(index, generation, parsed, cached, stale);
+            Query fuzzy = parsed.fuzzy();
+            if (cached.results.isEmpty() && fuzzy != parsed) {
+                // nothing matched as typed, try again allowing a typo or two per word
+                cached.query = fuzzy.toString();
+                rewritten = runQuery(index, generation, fuzzy, cached, stale);
+            }
+            if (!rewritten.toString().equals(cached.query)) cached.expandedQuery = rewritten.toString();
+            resultCache.put(generation, key, cached);
+        }
+        return cached;
+    }
+
+    /** fills the results for parsed, returns it with prefixes, wildcards and typos spelled out */
+    private Query runQuery(IndexReader index, long generation, Query parsed, SearchResult result, BooleanSupplier stale) {
+        Query rewritten = parsed.rewrite(index);
+        if (stale.getAsBoolean()) throw new CancellationException();
+        result.terms = new HashSet<>();
+        rewritten.collectTerms(result.terms);
+        result.results = matches(index, generation, rewritten, stale);
+        result.totalHits = result.results.cardinality();
+        result.ranked = Bm25Searcher.search(index, rewritten, TOP_K, stale);
+        return rewritten;
+    }
+
+    /**
+     * the docs query matches. clauses of a top level AND / NOT that are in the filter cache (or
+     * just got admitted to it) are used as they are, and only the rest are worked out and ANDed
+     * in. with none of them cached the query works out its DocIdSet as a whole
+     */
+    private BitSet matches(IndexReader index, long generation, Query query, BooleanSupplier stale) {
+        Query positive = query instanceof AndNotQuery andNot ? andNot.positive : query;
+        List<Query> required = positive instanceof AndQuery and ? and.clauses : List.of(positive);
+        List<Query> excluded = query instanceof AndNotQuery andNot ? andNot.excluded : List.of();
+        if (required.size() + excluded.size() > 1) {
+            BitSet bits = null; // the cached required clauses ANDed, a copy since cached sets are shared
+            List<Query> missing = new ArrayList<>();
+            for (Query clause : required) {
+                BitSet clauseBits = filterBits(index, generation, clause, stale);
+                if (clauseBits == null) {
+                    missing.add(clause);
+                } else if (bits == null) {
+                    bits = (BitSet) clauseBits.clone();
+                } else {
+                    bits.and(clauseBits);
+                }
+            }
+            List<BitSet> excludedBits = new ArrayList<>();
+            List<Query> missingExcluded = new ArrayList<>();
+            for (Query clause : excluded) {
+                BitSet clauseBits = filterBits(index, generation, clause, stale);
+                if (clauseBits == null) {
+                    missingExcluded.add(clause);
+                } else {
+                    excludedBits.add(clauseBits);
+                }
+            }
+            if (bits != null || !excludedBits.isEmpty()) {
+                if (!missing.isEmpty()) {
+                    // the uncached ones together, so they can still leapfrog over each other
+                    Query rest = missing.size() == 1 ? missing.get(0) : new AndQuery(missing);
+                    BitSet restBits = rest.docIdSet(index, stale).toBitSet();
+                    if (bits == null) {
+                        bits = restBits;
+                    } else {
+                        bits.and(restBits);
+                    }
+                }
+                for (BitSet clauseBits : excludedBits) bits.andNot(clauseBits);
+                for (Query clause : missingExcluded) {
+                    if (bits.isEmpty()) break;
+                    bits.andNot(clause.docIdSet(index, stale).toBitSet());
+                }
+                return bits;
+            }
+        }
+        return query.docIdSet(index, stale).toBitSet();
+    }
+
+    /** clause's docs from the filter cache, or null if it hasn't been used often enough yet */
+    private BitSet filterBits(IndexReader index, long generation, Query clause, BooleanSupplier stale) {
+        String key = clause.toString();
+        BitSet bits = filterCache.get(generation, key);
+        if (bits == null && filterCache.admit(generation, key)) {
+            bits = clause.docIdSet(index, stale).toBitSet();
+            filterCache.put(generation, key, bits);
+        }
+        return bits;
+    }
+
+    /**
+     * the snippet to show for docId (whose text is text) as a hit of query, which found terms.
+     * cached per doc and query until another index is published
+     */
+    Snippet snippet(IndexSnapshot snapshot, int docId, String text, String query, Set<String> terms, int maxChars) {
+        String key = docId + " " + maxChars + " " + query;
+        Snippet snippet = snippetCache.get(snapshot.generation, key);
+        if (snippet == null) {
+            snippet = snapshot.reader == null ? new Snippet(text.substring(0, Math.min(text.length(), maxChars)),
+                                                            new int[0], false, text.length() > maxChars)
+                      : Highlighter.snippet(snapshot.reader, docId, text, terms, maxChars);
+            snippetCache.put(snapshot.generation, key, snippet);
+        }
+        return snippet;
+    }
+
+    /**
+     * the index terms the word being typed could turn into, most common first. only looks at the
+     * first few hundred completions so a one letter prefix on a big index stays cheap
+     */
+    static List<String> suggestions(IndexReader index, String text) {
+        List<String> suggestions = new ArrayList<>();
+        String partial = text.substring(text.lastIndexOf(' ') + 1).toLowerCase();
+        if (partial.isEmpty() || !partial.chars().allMatch(c -> Character.isLetterOrDigit(c) || c == '_')) {
+            return suggestions;
+        }
+        List<String> completions = new ArrayList<>();
+        List<Integer> docFreqs = new ArrayList<>();
+        for (Iterator<String> terms = index.sortedTermIterator(partial); terms.hasNext() && completions.size() < 256; ) {
+            String term = terms.next();
+            if (!term.startsWith(partial)) break;
+            completions.add(term);
+            docFreqs.add(index.postings(term).docFreq());
+        }
+        Integer[] order = new Integer[completions.size()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> docFreqs.get(b) - docFreqs.get(a));
+        for (int i = 0; i < Math.min(MAX_SUGGESTIONS, order.length); i++) {
+            suggestions.add(completions.get(order[i]));
+        }
+        return suggestions;
+    }
+
+    Stats stats() {
+        IndexSnapshot current = snapshot.get();
+        return new Stats(current.generation, current.stats(), metrics.snapshot(), resultCache.stats(),
+                         filterCache.stats());
+    }
+
+    /** a point in time view of the index, its size and everything the metrics have counted so far */
+    static final class Stats {
+        final long generation;
+        final IndexStats index;
+        final Metrics.Snapshot metrics;
+        final String resultCache;
+        final String filterCache;
+
+        Stats(long generation, IndexStats index, Metrics.Snapshot metrics, String resultCache, String filterCache) {
+            this.generation = generation;
+            this.index = index;
+            this.metrics = metrics;
+            this.resultCache = resultCache;
+            this.filterCache = filterCache;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("index generation %d: %s%n%s%nresult cache: %s%nfilter cache: %s",
+                                 generation, index, metrics, resultCache, filterCache);
+        }
+    }
+}
+
+/** what searches read: an index nobody writes to anymore and the generation it was published as */
+final class IndexSnapshot {
+    static final IndexSnapshot EMPTY = new IndexSnapshot(null, 0, false);
+
+    final IndexReader reader; // null until something is built or loaded
+    final long generation;
+    final boolean fromFile;
+    private volatile IndexStats stats; // worked out the first time someone asks
+
+    IndexSnapshot(IndexReader reader, long generation, boolean fromFile) {
+        this.reader = reader;
+        this.generation = generation;
+        this.fromFile = fromFile;
+    }
+
+    IndexStats stats() {
+        IndexStats known = stats;
+        if (known == null) stats = known = IndexStats.of(reader);
+        return known;
+    }
+}
+
+/** everything one search found. shared with the result cache, so never changed once returned */
+final class SearchResult {
+    String query = "";
+    String expandedQuery = "";
+    Set<String> terms = new HashSet<>();
+    BitSet results = new BitSet();
+    int totalHits; // results.cardinality(), unless a ShardedSearcher didn't ask the shards for results
+    TopDocs ranked = TopDocs.EMPTY;
+    List<String> suggestions = new ArrayList<>();
+    // only for searches over shards: where each ranked doc came from and which shards didn't answer
+    int[] rankedShards;
+    int shardCount;
+    List<String> missingShards = List.of();
+
+    /** the same result for a different bit of typing */
+    SearchResult withSuggestions(List<String> suggestions) {
+        SearchResult copy = new SearchResult();
+        copy.query = query;
+        copy.expandedQuery = expandedQuery;
+        copy.terms = terms;
+        copy.results = results;
+        copy.totalHits = totalHits;
+        copy.ranked = ranked;
+        copy.suggestions = suggestions;
+        copy.rankedShards = rankedShards;
+        copy.shardCount = shardCount;
+        copy.missingShards = missingShards;
+        return copy;
+    }
+
+    /** rough bytes held */
+    long weight() {
+        return 128 + results.size() / 8 + ranked.size() * 8L + terms.size() * 64L
+               + 2L * (query.length() + expandedQuery.length());
+    }
+}
+
+/**
+ * the text analysis shared by indexing and search: lowercase, split, drop stop words, stem.
+ * stateless so any number of threads can use it at once. the real work happens in Tokenizer,
+ * these are the convenient String versions for queries and the animation
+ */
+final class Analyzer {
+    static final TermDictionary STOP_WORDS = new TermDictionary();
+    static {
+        for (String word : new String[] {
+            "a", "an", "and", "are", "as", "at", "be", "by", "for", "from", "has", 
+            "he", "in", "is", "it", "its", "of", "on", "that", "the", "to", "was", 
+            "will", "with", "or", "but", "not", "this", "these", "they", "them", 
+            "their", "have", "had", "do", "does", "did", "can", "could", "should", 
+            "would", "may", "might", "must", "shall", "we", "you", "i", "me", "my", 
+            "our", "us", "his", "her", "him", "she"
+        }) {
+            STOP_WORDS.add(word);
+        }
+    }
+
+    private Analyzer() {}
+
+    /**
+     * break text into words and filter out stop words
+     */
+    static Set<String> tokenizeAndFilter(String text) {
+        return new LinkedHashSet<>(analyze(text));
+    }
+    
+    /**
+     * same as tokenizeAndFilter but keeps every occurrence in order, so term frequencies survive
+     */
+    static List<String> analyze(String text) {
+        List<String> tokens = new ArrayList<>();
+        new Tokenizer().tokenize(text, (buffer, length) -> tokens.add(new String(buffer, 0, length)));
+        return tokens;
+    }
+
+    /**
+     * each term with the word positions it occurs at, in first-seen order. positions count
+     * stop words too, see Tokenizer.position
+     */
+    static Map<String, int[]> termPositions(String text) {
+        return termPositions(text, new Tokenizer());
+    }
+
+    /** the same with the caller's tokenizer, which has the text's word offsets afterwards */
+    static Map<String, int[]> termPositions(String text, Tokenizer tokenizer) {
+        Map<String, int[]> positions = new LinkedHashMap<>();
+        tokenizer.tokenize(text, (buffer, length) -> positions.merge(
+            new String(buffer, 0, length), new int[] {tokenizer.position()}, Analyzer::append));
+        return positions;
+    }
+
+    private static int[] append(int[] positions, int[] more) {
+        int[] joined = Arrays.copyOf(positions, positions.length + more.length);
+        System.arraycopy(more, 0, joined, positions.length, more.length);
+        return joined;
+    }
+    
+    /**
+     * really basic stemming - just chops off common endings
+     */
+    static String simpleStem(String word) {
+        char[] chars = word.toCharArray();
+        int length = stemmedLength(chars, chars.length);
+        return length == chars.length ? word : word.substring(0, length);
+    }
+
+    /**
+     * the stemming rules applied to buffer[0, length), returns the new length instead of copying
+     */
+    static int stemmedLength(char[] buffer, int length) {
+        // strip off common suffixes
+        if (endsWith(buffer, length, "ing") && length > 5) return length - 3;
+        if (endsWith(buffer, length, "ed") && length > 4) return length - 2;
+        if (endsWith(buffer, length, "er") && length > 4) return length - 2;
+        if (endsWith(buffer, length, "est") && length > 5) return length - 3;
+        if (endsWith(buffer, length, "ly") && length > 4) return length - 2;
+        if (endsWith(buffer, length, "s") && length > 3 && !endsWith(buffer, length, "ss")) return length - 1;
+        return length;
+    }
+
+    private static boolean endsWith(char[] buffer, int length, String suffix) {
+        int start = length - suffix.length();
+        if (start < 0) return false;
+        for (int i = 0; i < suffix.length(); i++) {
+            if (buffer[start + i] != suffix.charAt(i)) return false;
+        }
+        return true;
+    }
+}
+
+/**
+ * streaming version of the analysis: scans the text in place, lowercases each word into a reusable
+ * buffer, checks stop words on the char slice and stems by shortening the length. nothing is
+ * allocated per token. one instance per thread
+ */
+final class Tokenizer {
+    /** receives each token as buffer[0, length), only valid until the call returns */
+    interface TokenConsumer {
+        void token(char[] buffer, int length);
+    }
+
+    private char[] buffer = new char[32];
+    private int position = -1;
+    private int wordStart;
+    private int[] offsets = new int[32]; // start, end of every word so far
+
+    /**
+     * word position of the token being handed to the consumer. stop words and single letters
+     * count too, so "brown the dog" keeps the gap between brown and dog
+     */
+    int position() {
+        return position;
+    }
+
+    /**
+     * start and end char of every word the last tokenize saw as pairs by position, stop words
+     * included, in offsets()[0, 2 * wordCount()). reused by the next tokenize
+     */
+    int[] offsets() {
+        return offsets;
+    }
+
+    int wordCount() {
+        return position + 1;
+    }
+
+    void tokenize(CharSequence text, TokenConsumer consumer) {
+        int length = 0;
+        position = -1;
+        for (int i = 0, n = text.length(); i <= n; i++) {
+            // same split as the old \\W+ regex: word chars are ascii letters, digits and _
+            char c = i < n ? Character.toLowerCase(text.charAt(i)) : ' ';
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_') {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, length * 2);
+                }
+                if (length == 0) wordStart = i;
+                buffer[length++] = c;
+            } else if (length > 0) {
+                emit(length, i, consumer);
+                length = 0;
+            }
+        }
+    }
+
+    /** same scan, but hands the consumer the id of each token in dictionary (adding new terms) */
+    void tokenize(CharSequence text, TermDictionary dictionary, java.util.function.IntConsumer consumer) {
+        tokenize(text, (buf, len) -> consumer.accept(dictionary.add(buf, len)));
+    }
+
+    private void emit(int length, int end, TokenConsumer consumer) {
+        position++;
+        if (2 * position + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[2 * position] = wordStart;
+        offsets[2 * position + 1] = end;
+        // skip stop words and single letters
+        if (length > 1 && Analyzer.STOP_WORDS.find(buffer, length) < 0) {
+            consumer.token(buffer, Analyzer.stemmedLength(buffer, length));
+        }
+    }
+}
+
+/**
+ * char-slice -> dense int id, open addressing. lookups never create a String,
+ * only the first add of a term does
+ */
+final class TermDictionary {
+    private int[] table = new int[64]; // id + 1, 0 = empty
+    private char[] chars = new char[256];
+    private int[] starts = new int[32];
+    private int[] lengths = new int[32];
+    private int[] hashes = new int[32];
+    private String[] strings = new String[32];
+    private int size = 0;
+    private int charsUsed = 0;
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(table, 0);
+        Arrays.fill(strings, 0, size, null);
+        size = 0;
+        charsUsed = 0;
+    }
+
+    String term(int id) {
+        return strings[id];
+    }
+
+    /** rough heap footprint of the table and the per-term arrays and strings */
+    long ramBytesUsed() {
+        return 4L * table.length + 2L * chars.length + 16L * starts.length + size * 56L;
+    }
+
+    /** id of buffer[0, length), or -1 */
+    int find(char[] buffer, int length) {
+        int hash = hash(buffer, length);
+        int mask = table.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (id < 0) return -1;
+            if (hashes[id] == hash && matches(id, buffer, length)) return id;
+        }
+    }
+
+    int add(String term) {
+        return add(term.toCharArray(), term.length());
+    }
+
+    /** id of buffer[0, length), assigning the next id if it's new */
+    int add(char[] buffer, int length) {
+        int hash = hash(buffer, length);
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        for (; table[slot] != 0; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (hashes[id] == hash && matches(id, buffer, length)) return id;
+        }
+        int id = size++;
+        if (id == starts.length) {
+            int capacity = id * 2;
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            strings = Arrays.copyOf(strings, capacity);
+        }
+        if (charsUsed + length > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(chars.length * 2, charsUsed + length));
+        }
+        System.arraycopy(buffer, 0, chars, charsUsed, length);
+        starts[id] = charsUsed;
+        lengths[id] = length;
+        hashes[id] = hash;
+        strings[id] = new String(buffer, 0, length);
+        charsUsed += length;
+        table[slot] = id + 1;
+        if (size * 2 > table.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        int[] bigger = new int[table.length * 2];
+        int mask = bigger.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (bigger[slot] != 0) slot = (slot + 1) & mask;
+            bigger[slot] = id + 1;
+        }
+        table = bigger;
+    }
+
+    private boolean matches(int id, char[] buffer, int length) {
+        if (lengths[id] != length) return false;
+        int start = starts[id];
+        for (int i = 0; i < length; i++) {
+            if (chars[start + i] != buffer[i]) return false;
+        }
+        return true;
+    }
+
+    private static int hash(char[] buffer, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + buffer[i];
+        }
+        return h ^ (h >>> 16);
+    }
+}
+
+/**
+ * a sorted, immutable term dictionary as a compressed trie: each edge carries a run of chars, so
+ * shared prefixes are stored once. terms are numbered (ords) in sorted order and every node knows
+ * the range of ords below it, which makes a prefix one contiguous ord range and seeking to the
+ * first term >= some key a single walk down. everything lives in flat arrays, no String per term
+ */
+final class TermTrie {
+    private final char[] labels;
+    // per node: the edge label leading into it, its children (contiguous, sorted by first
+    // char), the ords below it, and whether the path to it is itself a term
+    private final int[] labelStart;
+    private final int[] labelLength;
+    private final int[] firstChild;
+    private final int[] childCount;
+    private final int[] firstOrd;
+    private final int[] ordCount;
+    private final BitSet terminal;
+    private final int size;
+
+    private TermTrie(Builder builder, int size) {
+        labels = Arrays.copyOf(builder.labels, builder.labelsUsed);
+        labelStart = Arrays.copyOf(builder.labelStart, builder.nodes);
+        labelLength = Arrays.copyOf(builder.labelLength, builder.nodes);
+        firstChild = Arrays.copyOf(builder.firstChild, builder.nodes);
+        childCount = Arrays.copyOf(builder.childCount, builder.nodes);
+        firstOrd = Arrays.copyOf(builder.firstOrd, builder.nodes);
+        ordCount = Arrays.copyOf(builder.ordCount, builder.nodes);
+        terminal = builder.terminal;
+        this.size = size;
+    }
+
+    /** terms must be sorted and distinct */
+    static TermTrie build(String[] terms) {
+        Builder builder = new Builder();
+        int root = builder.newNode();
+        builder.fill(terms, root, 0, terms.length, 0);
+        return new TermTrie(builder, terms.length);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** rough heap footprint */
+    long ramBytesUsed() {
+        return 2L * labels.length + 6 * 4L * labelStart.length + terminal.size() / 8 + 7 * 16;
+    }
+
+    /** ord of term, or -1 */
+    int ord(CharSequence term) {
+        int node = 0;
+        int depth = 0;
+        while (depth < term.length()) {
+            node = child(node, term.charAt(depth));
+            if (node < 0 || !labelMatches(node, term, depth)) return -1;
+            depth += labelLength[node];
+        }
+        return depth == term.length() && terminal.get(node) ? firstOrd[node] : -1;
+    }
+
+    /** the first ord whose term is >= key, size() if there is none */
+    int ceilOrd(CharSequence key) {
+        int node = 0;
+        int depth = 0;
+        while (depth < key.length()) {
+            // the node's own term, if any, is a proper prefix of key and so smaller: only children count
+            int c = ceilChild(node, key.charAt(depth));
+            if (c < 0) return firstOrd[node] + ordCount[node];
+            int start = labelStart[c];
+            for (int i = 0; i < labelLength[c]; i++) {
+                if (depth + i == key.length()) return firstOrd[c]; // key ends inside the label
+                char label = labels[start + i];
+                char k = key.charAt(depth + i);
+                if (label != k) return label > k ? firstOrd[c] : firstOrd[c] + ordCount[c];
+            }
+            node = c;
+            depth += labelLength[c];
+        }
+        return firstOrd[node];
+    }
+
+    /** [from, to) ords of the terms starting with prefix, from == to if there are none */
+    int[] prefixRange(CharSequence prefix) {
+        int node = 0;
+        int depth = 0;
+        while (depth < prefix.length()) {
+            node = child(node, prefix.charAt(depth));
+            if (node < 0) return new int[] {0, 0};
+            int start = labelStart[node];
+            for (int i = 0; i < labelLength[node] && depth + i < prefix.length(); i++) {
+                if (labels[start + i] != prefix.charAt(depth + i)) return new int[] {0, 0};
+            }
+            depth += labelLength[node];
+        }
+        return new int[] {firstOrd[node], firstOrd[node] + ordCount[node]};
+    }
+
+    /** spells out the term with this ord by walking down the ord ranges */
+    String term(int ord) {
+        if (ord < 0 || ord >= size) throw new IndexOutOfBoundsException(ord);
+        StringBuilder sb = new StringBuilder();
+        int node = 0;
+        while (!(terminal.get(node) && firstOrd[node] == ord)) {
+            // last child starting at or before ord
+            int lo = firstChild[node];
+            int hi = lo + childCount[node] - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (firstOrd[mid] <= ord) lo = mid; else hi = mid - 1;
+            }
+            node = lo;
+            sb.append(labels, labelStart[node], labelLength[node]);
+        }
+        return sb.toString();
+    }
+
+    /** terms from ord onwards, in order */
+    Iterator<String> iterator(int ord) {
+        return new Iterator<>() {
+            private int next = ord;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public String next() {
+                if (next >= size) throw new NoSuchElementException();
+                return term(next++);
+            }
+        };
+    }
+
+    private int child(int node, char c) {
+        int lo = firstChild[node];
+        int hi = lo + childCount[node] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            char first = labels[labelStart[mid]];
+            if (first < c) lo = mid + 1; else if (first > c) hi = mid - 1; else return mid;
+        }
+        return -1;
+    }
+
+    /** first child whose label starts with a char >= c, or -1 */
+    private int ceilChild(int node, char c) {
+        int lo = firstChild[node];
+        int end = lo + childCount[node];
+        int hi = end;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (labels[labelStart[mid]] < c) lo = mid + 1; else hi = mid;
+        }
+        return lo < end ? lo : -1;
+    }
+
+    private boolean labelMatches(int node, CharSequence term, int depth) {
+        int start = labelStart[node];
+        int length = labelLength[node];
+        if (depth + length > term.length()) return false;
+        for (int i = 0; i < length; i++) {
+            if (labels[start + i] != term.charAt(depth + i)) return false;
+        }
+        return true;
+    }
+
+    private static final class Builder {
+        char[] labels = new char[64];
+        int labelsUsed = 0;
+        int[] labelStart = new int[16];
+        int[] labelLength = new int[16];
+        int[] firstChild = new int[16];
+        int[] childCount = new int[16];
+        int[] firstOrd = new int[16];
+        int[] ordCount = new int[16];
+        final BitSet terminal = new BitSet();
+        int nodes = 0;
+
+        int newNode() {
+            if (nodes == labelStart.length) {
+                int capacity = nodes * 2;
+                labelStart = Arrays.copyOf(labelStart, capacity);
+                labelLength = Arrays.copyOf(labelLength, capacity);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                childCount = Arrays.copyOf(childCount, capacity);
+                firstOrd = Arrays.copyOf(firstOrd, capacity);
+                ordCount = Arrays.copyOf(ordCount, capacity);
+            }
+            return nodes++;
+        }
+
+        /** node stands for terms[from, to), which all share their first depth chars */
+        void fill(String[] terms, int node, int from, int to, int depth) {
+            firstOrd[node] = from;
+            ordCount[node] = to - from;
+            if (from < to && terms[from].length() == depth) {
+                terminal.set(node);
+                from++;
+            }
+            // one child per distinct next char. children are allocated together so they stay
+            // contiguous, then each is filled in
+            int groups = 0;
+            for (int i = from; i < to; i = groupEnd(terms, i, to, depth)) groups++;
+            int first = nodes;
+            for (int g = 0; g < groups; g++) newNode();
+            firstChild[node] = first;
+            childCount[node] = groups;
+            int child = first;
+            for (int i = from; i < to; child++) {
+                int end = groupEnd(terms, i, to, depth);
+                // sorted, so the group's common prefix is the first and last terms' common prefix
+                int common = commonPrefix(terms[i], terms[end - 1]);
+                labelStart[child] = labelsUsed;
+                labelLength[child] = common - depth;
+                if (labelsUsed + common - depth > labels.length) {
+                    labels = Arrays.copyOf(labels, Math.max(labels.length * 2, labelsUsed + common - depth));
+                }
+                terms[i].getChars(depth, common, labels, labelsUsed);
+                labelsUsed += common - depth;
+                fill(terms, child, i, end, common);
+                i = end;
+            }
+        }
+
+        private static int groupEnd(String[] terms, int from, int to, int depth) {
+            char c = terms[from].charAt(depth);
+            int end = from + 1;
+            while (end < to && terms[end].charAt(depth) == c) end++;
+            return end;
+        }
+
+        private static int commonPrefix(String a, String b) {
+            int n = Math.min(a.length(), b.length());
+            int i = 0;
+            while (i < n && a.charAt(i) == b.charAt(i)) i++;
+            return i;
+        }
+    }
+}
+
+/**
+ * forward-only cursor over sorted doc ids
+ */
+interface DocIterator {
+    int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    /** current doc, -1 before the first call to nextDoc/advance */
+    int docID();
+
+    int nextDoc();
+
+    /** moves to the first doc >= target */
+    int advance(int target);
+
+    /** upper bound on how many docs this will return */
+    long cost();
+}
+
+/**
+ * a DocIterator over postings, which also knows how often the term occurs in the current doc
+ * and, for positional postings, where
+ */
+interface PostingsIterator extends DocIterator {
+    int freq();
+
+    /**
+     * the next position of the term in the current doc, in increasing order. call it at most
+     * freq() times per doc; throws if the postings were indexed without positions
+     */
+    int nextPosition();
+}
+
+/**
+ * everything searching needs to know about one term's postings
+ */
+interface Postings {
+    PostingsIterator iterator();
+
+    int docFreq();
+
+    /** these two bound the best bm25 score any doc in the list can get */
+    int maxFreq();
+
+    int minDocLength();
+
+    boolean hasPositions();
+
+    /** the docs as a set, for boolean queries to combine a chunk at a time */
+    default DocIdSet docIdSet() {
+        return DocIdSet.of(iterator());
+    }
+}
+
+/**
+ * sorted doc ids and term frequencies for one term, stored as delta + variable-byte encoded bytes.
+ * the low bit of each delta flags freq == 1 so the common case costs no extra byte.
+ * every BLOCK_SIZE docs we remember the last doc and byte offset so advance()
+ * can jump whole blocks instead of decoding them. docs must be added in increasing order.
+ *
+ * positions, when there are any, live in a second byte stream: freq position deltas per doc.
+ * the doc stream never points into it except through the skip entries, so iterating docs costs
+ * the same with or without positions, and an iterator only decodes (or skips over) positions
+ * once someone asks for them
+ */
+final class PostingsList implements Postings {
+    static final int BLOCK_SIZE = 128;
+
+    private byte[] bytes = new byte[4];
+    private byte[] positions;
+    // set instead of bytes / positions when the list lives in a memory-mapped segment file
+    private java.nio.ByteBuffer mapped;
+    private java.nio.ByteBuffer mappedPositions;
+    private int length = 0;
+    private int positionsLength = 0;
+    private boolean hasPositions = false;
+    private int docFreq = 0;
+    private int lastDoc = -1;
+    private int maxFreq = 0;
+    private int minDocLength = Integer.MAX_VALUE;
+
+    // skip data, only allocated once a term has more than one block. mapped lists leave it in the
+    // file from skipStart on and read entries as advance() needs them, see lastDocOf
+    private int[] blockLastDoc;
+    private int[] blockEnd;
+    private int[] blockPositionsEnd;
+    private int numBlocks = 0;
+    private int skipStart;
+
+    // the docs again as bitmaps, kept for terms dense enough to have some, see indexDocIdSet
+    private DocIdSet docIdSet;
+
+    /**
+     * a read-only list over encoded bytes as written by writeTo (and writePositionsTo, null for a
+     * list without positions), e.g. slices of a mapped file. nothing is decoded until someone iterates
+     */
+    static PostingsList mapped(java.nio.ByteBuffer data, java.nio.ByteBuffer positions,
+                               int docFreq, int lastDoc, int maxFreq, int minDocLength) {
+        PostingsList list = new PostingsList();
+        list.bytes = null;
+        list.docFreq = docFreq;
+        list.lastDoc = lastDoc;
+        list.maxFreq = maxFreq;
+        list.minDocLength = minDocLength;
+        list.hasPositions = positions != null;
+        list.numBlocks = docFreq / BLOCK_SIZE;
+        // skip data sits after the postings: numBlocks last docs, numBlocks block ends, then
+        // numBlocks positions ends if there are positions
+        list.skipStart = data.limit() - list.skipEntryBytes() * list.numBlocks;
+        list.length = list.skipStart;
+        list.mapped = data;
+        if (positions != null) {
+            list.positionsLength = positions.limit();
+            list.mappedPositions = positions;
+        }
+        return list;
+    }
+
+    /** re-encodes any postings, e.g. a view over several segments, as one list */
+    static PostingsList copyOf(Postings postings, IndexReader index) {
+        PostingsList list = new PostingsList();
+        PostingsIterator it = postings.iterator();
+        for (int doc = it.nextDoc(); doc != DocIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+            list.add(doc, it, postings.hasPositions(), index.docLength(doc));
+        }
+        list.trim();
+        return list;
+    }
+
+    private int skipEntryBytes() {
+        return hasPositions ? 12 : 8;
+    }
+
+    /** bytes writeTo will produce */
+    int encodedLength() {
+        return length + skipEntryBytes() * numBlocks;
+    }
+
+    /** bytes writePositionsTo will produce, 0 without positions */
+    int positionsLength() {
+        return positionsLength;
+    }
+
+    /** the encoded postings followed by the skip data, the format mapped() reads */
+    void writeTo(java.io.DataOutput out) throws java.io.IOException {
+        if (mapped != null) {
+            for (int i = 0; i < length; i++) out.writeByte(mapped.get(i));
+        } else {
+            out.write(bytes, 0, length);
+        }
+        for (int i = 0; i < numBlocks; i++) out.writeInt(lastDocOf(i));
+        for (int i = 0; i < numBlocks; i++) out.writeInt(endOf(i));
+        if (hasPositions) {
+            for (int i = 0; i < numBlocks; i++) out.writeInt(positionsEndOf(i));
+        }
+    }
+
+    /** the last doc of block */
+    private int lastDocOf(int block) {
+        return mapped != null ? mapped.getInt(skipStart + 4 * block) : blockLastDoc[block];
+    }
+
+    /** where the doc after block starts */
+    private int endOf(int block) {
+        return mapped != null ? mapped.getInt(skipStart + 4 * (numBlocks + block)) : blockEnd[block];
+    }
+
+    /** where the positions of the doc after block start */
+    private int positionsEndOf(int block) {
+        return mapped != null ? mapped.getInt(skipStart + 4 * (2 * numBlocks + block)) : blockPositionsEnd[block];
+    }
+
+    void writePositionsTo(java.io.DataOutput out) throws java.io.IOException {
+        if (mappedPositions != null) {
+            for (int i = 0; i < positionsLength; i++) out.writeByte(mappedPositions.get(i));
+        } else if (positions != null) {
+            out.write(positions, 0, positionsLength);
+        }
+    }
+
+    /** a doc without positions, only for lists that never get any */
+    void add(int docId, int freq, int docLength) {
+        if (hasPositions) {
+            throw new IllegalStateException("this list has positions, add the doc with them");
+        }
+        startDoc(docId, freq, docLength);
+        endDoc();
+    }
+
+    /** a doc whose positions are positions[from, from + freq), in increasing order */
+    void add(int docId, int[] positions, int from, int freq, int docLength) {
+        startPositions();
+        startDoc(docId, freq, docLength);
+        int last = 0;
+        for (int i = from; i < from + freq; i++) {
+            writePositionVInt(positions[i] - last);
+            last = positions[i];
+        }
+        endDoc();
+    }
+
+    /** the doc it is on, with its positions if withPositions */
+    void add(int docId, PostingsIterator it, boolean withPositions, int docLength) {
+        if (!withPositions) {
+            add(docId, it.freq(), docLength);
+            return;
+        }
+        startPositions();
+        int freq = it.freq();
+        startDoc(docId, freq, docLength);
+        int last = 0;
+        for (int i = 0; i < freq; i++) {
+            int position = it.nextPosition();
+            writePositionVInt(position - last);
+            last = position;
+        }
+        endDoc();
+    }
+
+    private void startPositions() {
+        if (hasPositions) return;
+        if (docFreq > 0) {
+            throw new IllegalStateException("this list has docs without positions");
+        }
+        hasPositions = true;
+        positions = new byte[4];
+    }
+
+    private void startDoc(int docId, int freq, int docLength) {
+        if (mapped != null) {
+            throw new IllegalStateException("mapped postings are read-only");
+        }
+        if (docId <= lastDoc) {
+            throw new IllegalArgumentException("docs must be added in order: " + docId + " after " + lastDoc);
+        }
+        int delta = docId - lastDoc;
+        if (freq == 1) {
+            writeVInt(delta << 1 | 1);
+        } else {
+            writeVInt(delta << 1);
+            writeVInt(freq);
+        }
+        lastDoc = docId;
+        maxFreq = Math.max(maxFreq, freq);
+        minDocLength = Math.min(minDocLength, docLength);
+        docFreq++;
+    }
+
+    private void endDoc() {
+        if (docFreq % BLOCK_SIZE == 0) {
+            if (blockLastDoc == null) {
+                blockLastDoc = new int[4];
+                blockEnd = new int[4];
+                if (hasPositions) blockPositionsEnd = new int[4];
+            } else if (numBlocks == blockLastDoc.length) {
+                blockLastDoc = Arrays.copyOf(blockLastDoc, numBlocks * 2);
+                blockEnd = Arrays.copyOf(blockEnd, numBlocks * 2);
+                if (hasPositions) blockPositionsEnd = Arrays.copyOf(blockPositionsEnd, numBlocks * 2);
+            }
+            blockLastDoc[numBlocks] = lastDoc;
+            blockEnd[numBlocks] = length;
+            if (hasPositions) blockPositionsEnd[numBlocks] = positionsLength;
+            numBlocks++;
+        }
+    }
+
+    private void writeVInt(int value) {
+        if (length + 5 > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 5));
+        }
+        while ((value & ~0x7F) != 0) {
+            bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[length++] = (byte) value;
+    }
+
+    private void writePositionVInt(int value) {
+        if (positionsLength + 5 > positions.length) {
+            positions = Arrays.copyOf(positions, Math.max(positions.length * 2, positionsLength + 5));
+        }
+        while ((value & ~0x7F) != 0) {
+            positions[positionsLength++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        positions[positionsLength++] = (byte) value;
+    }
+
+    /** drops the slack left over from growing the arrays, call once the list is done */
+    void trim() {
+        if (bytes != null && bytes.length != length) {
+            bytes = Arrays.copyOf(bytes, length);
+        }
+        if (positions != null && positions.length != positionsLength) {
+            positions = Arrays.copyOf(positions, positionsLength);
+        }
+        if (blockLastDoc != null && blockLastDoc.length != numBlocks) {
+            blockLastDoc = Arrays.copyOf(blockLastDoc, numBlocks);
+            blockEnd = Arrays.copyOf(blockEnd, numBlocks);
+            if (hasPositions) blockPositionsEnd = Arrays.copyOf(blockPositionsEnd, numBlocks);
+        }
+    }
+
+    /**
+     * keeps the docs as a DocIdSet if some chunk of them is dense enough to be a bitmap, so boolean
+     * queries AND / OR that term a word at a time instead of decoding it. rarer terms are cheap to
+     * decode, and get their set built when a query asks. call once the list is done
+     */
+    void indexDocIdSet() {
+        docIdSet = null;
+        if (docFreq <= DocIdSet.ARRAY_MAX) return;
+        DocIdSet set = DocIdSet.of(iterator());
+        if (set.hasBitmaps()) docIdSet = set;
+    }
+
+    @Override
+    public DocIdSet docIdSet() {
+        DocIdSet set = docIdSet;
+        return set != null ? set : DocIdSet.of(iterator());
+    }
+
+    @Override
+    public int docFreq() {
+        return docFreq;
+    }
+
+    int lastDoc() {
+        return lastDoc;
+    }
+
+    @Override
+    public int maxFreq() {
+        return maxFreq;
+    }
+
+    @Override
+    public int minDocLength() {
+        return minDocLength;
+    }
+
+    @Override
+    public boolean hasPositions() {
+        return hasPositions;
+    }
+
+    /** rough heap footprint: object header + fields + arrays */
+    long sizeInBytes() {
+        long size = 16 + 4 * 7 + 4 * 9 + 16 + (bytes == null ? 0 : bytes.length);
+        if (positions != null) {
+            size += 16 + positions.length;
+        }
+        if (blockLastDoc != null) {
+            size += (hasPositions ? 3 : 2) * (16 + 4L * blockLastDoc.length);
+        }
+        if (docIdSet != null) {
+            size += docIdSet.sizeInBytes();
+        }
+        return size;
+    }
+
+    @Override
+    public PostingsIterator iterator() {
+        return new Iterator();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        DocIterator it = iterator();
+        for (int doc = it.nextDoc(); doc != DocIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+            if (sb.length() > 1) sb.append(", ");
+            sb.append(doc);
+        }
+        return sb.append(']').toString();
+    }
+
+    private final class Iterator implements PostingsIterator {
+        private final java.nio.ByteBuffer data = mapped != null ? mapped : java.nio.ByteBuffer.wrap(bytes);
+        private int pos = 0;
+        private int read = 0;
+        private int doc = -1;
+        private int freq = 0;
+        // snapshot so a list that keeps growing during the animation doesn't confuse us
+        private final int limit = docFreq;
+        private final int blocks = numBlocks;
+
+        // positions are only touched by nextPosition: until then we just count how many
+        // position entries the docs we moved past left behind in the stream
+        private java.nio.ByteBuffer positionData;
+        private int positionPos = 0;
+        private int positionsToSkip = 0;
+        private int positionsLeft = 0;
+        private int position = 0;
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() {
+            if (read >= limit) {
+                return doc = NO_MORE_DOCS;
+            }
+            int code = readVInt();
+            freq = (code & 1) != 0 ? 1 : readVInt();
+            read++;
+            positionsToSkip += positionsLeft;
+            positionsLeft = freq;
+            position = 0;
+            return doc += code >>> 1;
+        }
+
+        private int readVInt() {
+            int b = data.get(pos++);
+            int value = b & 0x7F;
+            for (int shift = 7; b < 0; shift += 7) {
+                b = data.get(pos++);
+                value |= (b & 0x7F) << shift;
+            }
+            return value;
+        }
+
+        @Override
+        public int freq() {
+            return freq;
+        }
+
+        @Override
+        public int nextPosition() {
+            if (!hasPositions) {
+                throw new IllegalStateException("postings were indexed without positions");
+            }
+            if (positionData == null) {
+                positionData = mappedPositions != null ? mappedPositions : java.nio.ByteBuffer.wrap(positions);
+            }
+            // every entry ends in a byte without the high bit, so skipping is just counting those
+            while (positionsToSkip > 0) {
+                if (positionData.get(positionPos++) >= 0) positionsToSkip--;
+            }
+            positionsLeft--;
+            int b = positionData.get(positionPos++);
+            int delta = b & 0x7F;
+            for (int shift = 7; b < 0; shift += 7) {
+                b = positionData.get(positionPos++);
+                delta |= (b & 0x7F) << shift;
+            }
+            return position += delta;
+        }
+
+        @Override
+        public int advance(int target) {
+            if (doc >= target) {
+                return doc;
+            }
+            int block = read / BLOCK_SIZE;
+            if (block < blocks && lastDocOf(block) < target) {
+                // gallop over the skip entries, then binary search the last step
+                int lo = block;
+                int step = 1;
+                int hi = block + 1;
+                while (hi < blocks && lastDocOf(hi) < target) {
+                    lo = hi;
+                    step <<= 1;
+                    hi = Math.min(blocks, hi + step);
+                }
+                while (lo < hi - 1) {
+                    int mid = (lo + hi) >>> 1;
+                    if (lastDocOf(mid) < target) lo = mid; else hi = mid;
+                }
+                // every doc up to and including block lo is < target
+                pos = endOf(lo);
+                doc = lastDocOf(lo);
+                read = (lo + 1) * BLOCK_SIZE;
+                if (hasPositions) {
+                    positionPos = positionsEndOf(lo);
+                    positionsToSkip = 0;
+                    positionsLeft = 0;
+                }
+            }
+            while (doc < target) {
+                nextDoc();
+            }
+            return doc;
+        }
+
+        @Override
+        public long cost() {
+            return limit;
+        }
+    }
+}
+
+/**
+ * a parsed query that knows how to turn itself into a doc iterator over the index.
+ * plain words are ANDed together, upper case OR splits alternatives, and NOT word or -word
+ * excludes docs, e.g. "quick fox OR lazy -cat". "quoted words" must appear as a phrase,
+ * word NEAR/k word within k words of each other, qui* or q?ick match any term that fits, and
+ * quikc~ (or ~1, ~2) matches terms within a couple of typos
+ */
+abstract class Query {
+
+    abstract DocIterator iterator(IndexReader index);
+
+    /**
+     * about how many docs iterator() would go through, from doc freqs so nothing gets opened.
+     * what AndQuery plans its intersection by
+     */
+    long cost(IndexReader index) {
+        return iterator(index).cost();
+    }
+
+    /**
+     * every doc the query matches. boolean queries combine their clauses' sets chunk by chunk,
+     * anything else (phrases need positions) collects its iterator
+     */
+    DocIdSet docIdSet(IndexReader index, BooleanSupplier stale) {
+        return DocIdSet.of(iterator(index), stale);
+    }
+
+    /** the same query with anything that depends on the index's terms spelled out */
+    Query rewrite(IndexReader index) {
+        return this;
+    }
+
+    /** the same query with its plain words made typo tolerant, or this if there are none */
+    Query fuzzy() {
+        return this;
+    }
+
+    /** the index terms this query looks for, used for highlighting */
+    abstract void collectTerms(Set<String> terms);
+
+    /** returns null if nothing searchable is left after analysis */
+    static Query parse(String text, Function<String, Set<String>> analyzer) {
+        List<Query> alternatives = new ArrayList<>();
+        List<Query> required = new ArrayList<>();
+        List<Query> excluded = new ArrayList<>();
+        boolean negateNext = false;
+        int near = -1;
+        for (String word : words(text)) {
+            if (word.startsWith("NEAR/") && word.length() > 5 && word.substring(5).chars().allMatch(Character::isDigit)) {
+                near = Integer.parseInt(word.substring(5));
+                continue;
+            }
+            switch (word) {
+                case "OR":
+                    addGroup(alternatives, required, excluded);
+                    required = new ArrayList<>();
+                    excluded = new ArrayList<>();
+                    negateNext = false;
+                    continue;
+                case "AND":
+                    continue;
+                case "NOT":
+                    negateNext = true;
+                    continue;
+                default:
+                    break;
+            }
+            boolean negated = negateNext || (word.startsWith("-") && word.length() > 1);
+            negateNext = false;
+            String unsigned = word.startsWith("-") ? word.substring(1) : word;
+            if (unsigned.startsWith("\"")) {
+                Query phrase = PhraseQuery.parse(unsigned.replace("\"", " "));
+                if (phrase != null) (negated ? excluded : required).add(phrase);
+                near = -1;
+                continue;
+            }
+            if (unsigned.indexOf('*') >= 0 || unsigned.indexOf('?') >= 0) {
+                Query pattern = MultiTermQuery.parse(unsigned);
+                if (pattern != null) (negated ? excluded : required).add(pattern);
+                near = -1;
+                continue;
+            }
+            int tilde = unsigned.lastIndexOf('~');
+            if (tilde > 0 && unsigned.substring(tilde + 1).matches("[0-2]?")) {
+                int edits = tilde == unsigned.length() - 1 ? -1 : unsigned.charAt(tilde + 1) - '0';
+                for (String token : analyzer.apply(unsigned.substring(0, tilde))) {
+                    (negated ? excluded : required).add(FuzzyQuery.of(token, edits));
+                }
+                near = -1;
+                continue;
+            }
+            List<String> tokens = new ArrayList<>(analyzer.apply(word));
+            Query previous = required.isEmpty() ? null : required.get(required.size() - 1);
+            if (near >= 0 && !negated && !tokens.isEmpty()
+                && (previous instanceof TermQuery || previous instanceof NearQuery)) {
+                // fold into the clause before: a NEAR/k b NEAR/k c is one window
+                required.set(required.size() - 1, NearQuery.extend(previous, tokens, near));
+            } else {
+                for (String token : tokens) {
+                    (negated ? excluded : required).add(new TermQuery(token));
+                }
+            }
+            near = -1;
+        }
+        addGroup(alternatives, required, excluded);
+
+        if (alternatives.isEmpty()) return null;
+        return alternatives.size() == 1 ? alternatives.get(0) : new OrQuery(alternatives);
+    }
+
+    /** whitespace separated words, except that a "quoted phrase" (or -"phrase") stays one word */
+    private static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        int i = 0;
+        int n = text.length();
+        while (i < n) {
+            if (Character.isWhitespace(text.charAt(i))) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int quote = text.startsWith("\"", i) ? i : text.startsWith("-\"", i) ? i + 1 : -1;
+            if (quote >= 0) {
+                int close = text.indexOf('"', quote + 1);
+                i = close < 0 ? n : close + 1; // an unclosed quote runs to the end
+            } else {
+                while (i < n && !Character.isWhitespace(text.charAt(i))) i++;
+            }
+            words.add(text.substring(start, i));
+        }
+        return words;
+    }
+
+    /** the doc freq of the rarest of terms, 0 if one isn't in the index */
+    static long rarest(IndexReader index, List<String> terms) {
+        long rarest = Long.MAX_VALUE;
+        for (String term : terms) {
+            Postings postings = index.postings(term);
+            rarest = Math.min(rarest, postings == null ? 0 : postings.docFreq());
+        }
+        return rarest;
+    }
+
+    /** an iterator with positions per term, or null if some term isn't in the index at all */
+    static PostingsIterator[] positionalIterators(IndexReader index, List<String> terms) {
+        PostingsIterator[] iterators = new PostingsIterator[terms.size()];
+        for (int i = 0; i < iterators.length; i++) {
+            Postings postings = index.postings(terms.get(i));
+            if (postings == null) return null;
+            if (!postings.hasPositions()) {
+                throw new IllegalStateException("the index has no positions for " + terms.get(i));
+            }
+            iterators[i] = postings.iterator();
+        }
+        return iterators;
+    }
+
+    private static void addGroup(List<Query> alternatives, List<Query> required, List<Query> excluded) {
+        // a group with nothing but exclusions can't be answered from postings alone, so drop it
+        if (required.isEmpty()) return;
+        Query group = required.size() == 1 ? required.get(0) : new AndQuery(required);
+        alternatives.add(excluded.isEmpty() ? group : new AndNotQuery(group, excluded));
+    }
+}
+
+final class TermQuery extends Query {
+    final String term;
+
+    TermQuery(String term) {
+        this.term = term;
+    }
+
+    @Override
+    DocIterator iterator(IndexReader index) {
+        Postings postings = index.postings(term);
+        return postings == null ? DocIterators.empty() : postings.iterator();
+    }
+
+    @Override
+    long cost(IndexReader index) {
+        Postings postings = index.postings(term);
+        return postings == null ? 0 : postings.docFreq();
+    }
+
+    @Override
+    DocIdSet docIdSet(IndexReader index, BooleanSupplier stale) {
+        Postings postings = index.postings(term);
+        return postings == null ? DocIdSet.EMPTY : postings.docIdSet();
+    }
+
+    @Override
+    Query fuzzy() {
+        return FuzzyQuery.of(term, -1);
+    }
+
+    @Override
+    void collectTerms(Set<String> terms) {
+        terms.add(term);
+    }
+
+    @Override
+    public String toString() {
+        return term;
+    }
+}
+
+/**
+ * terms at fixed offsets from each other, e.g. "brown the dog" is brown at p and dog at p + 2.
+ * docs are first matched on the conjunction of the terms, and only those get their positions read
+ */
+final class PhraseQuery extends Query {
+    final List<String> terms;
+    final int[] offsets;
+
+    PhraseQuery(List<String> terms, int[] offsets) {
+        this.terms = terms;
+        this.offsets = offsets;
+    }
+
+    /** analyzes the phrase keeping word positions. null if nothing is left, a TermQuery for one word */
+    static Query parse(String text) {
+        List<String> terms = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        Tokenizer tokenizer = new Tokenizer();
+        tokenizer.tokenize(text, (buffer, length) -> {
+            terms.add(new String(buffer, 0, length));
+            positions.add(tokenizer.position());
+        });
+        if (terms.isEmpty()) return null;
+        if (terms.size() == 1) return new TermQuery(terms.get(0));
+        int[] offsets = new int[terms.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = positions.get(i) - positions.get(0);
+        }
+        return new PhraseQuery(terms, offsets);
+    }
+
+    @Override
+    long cost(IndexReader index) {
+        return rarest(index, terms); // what the conjunction visits, before positions rule any out
+    }
+
+    @Override
+    DocIterator iterator(IndexReader index) {
+        PostingsIterator[] postings = positionalIterators(index, terms);
+        if (postings == null) return DocIterators.empty();
+        int[] current = new int[postings.length];
+        int[] remaining = new int[postings.length];
+        return DocIterators.twoPhase(DocIterators.and(Arrays.asList(postings)), () -> {
+            // leapfrog over each term's positions shifted back by its offset, looking for a
+            // start they all share. stops at the first one, so a hit rarely reads every position
+            int start = Integer.MIN_VALUE;
+            for (int i = 0; i < postings.length; i++) {
+                remaining[i] = postings[i].freq() - 1;
+                current[i] = postings[i].nextPosition() - offsets[i];
+                start = Math.max(start, current[i]);
+            }
+            outer:
+            while (true) {
+                for (int i = 0; i < postings.length; i++) {
+                    while (current[i] < start) {
+                        if (remaining[i]-- == 0) return false;
+                        current[i] = postings[i].nextPosition() - offsets[i];
+                    }
+                    if (current[i] > start) {
+                        start = current[i];
+                        continue outer;
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    @Override
+    void collectTerms(Set<String> terms) {
+        terms.addAll(this.terms);
+    }
+
+    @Override
+    public String toString() {
+        // ? marks the gaps left by stop words
+        StringBuilder sb = new StringBuilder("\"").append(terms.get(0));
+        for (int i = 1; i < offsets.length; i++) {
+            for (int gap = offsets[i - 1] + 1; gap < offsets[i]; gap++) sb.append(" ?");
+            sb.append(' ').append(terms.get(i));
+        }
+        return sb.append('"').toString();
+    }
+}
+
+/**
+ * terms that all occur within a window of slop words, in any order. like PhraseQuery only the
+ * docs with every term get their positions read
+ */
+final class NearQuery extends Query {
+    final List<String> terms;
+    final int slop;
+
+    NearQuery(List<String> terms, int slop) {
+        this.terms = terms;
+        this.slop = slop;
+    }
+
+    /** previous (a TermQuery or NearQuery) NEAR/slop more, keeping the widest slop */
+    static NearQuery extend(Query previous, List<String> more, int slop) {
+        List<String> terms = new ArrayList<>();
+        if (previous instanceof NearQuery) {
+            terms.addAll(((NearQuery) previous).terms);
+            slop = Math.max(slop, ((NearQuery) previous).slop);
+        } else {
+            terms.add(((TermQuery) previous).term);
+        }
+        terms.addAll(more);
+        return new NearQuery(terms, slop);
+    }
+
+    @Override
+    long cost(IndexReader index) {
+        return rarest(index, terms); // what the conjunction visits, before positions rule any out
+    }
+
+    @Override
+    DocIterator iterator(IndexReader index) {
+        PostingsIterator[] postings = positionalIterators(index, terms);
+        if (postings == null) return DocIterators.empty();
+        int[] current = new int[postings.length];
+        int[] remaining = new int[postings.length];
+        return DocIterators.twoPhase(DocIterators.and(Arrays.asList(postings)), () -> {
+            // slide a window over the merged positions: always step the term at the left edge,
+            // the tightest window containing every term comes by at some point
+            for (int i = 0; i < postings.length; i++) {
+                remaining[i] = postings[i].freq() - 1;
+                current[i] = postings[i].nextPosition();
+            }
+            while (true) {
+                int first = 0;
+                int last = current[0];
+                for (int i = 1; i < postings.length; i++) {
+                    if (current[i] < current[first]) first = i;
+                    last = Math.max(last, current[i]);
+                }
+                if (last - current[first] <= slop) return true;
+                if (remaining[first]-- == 0) return false;
+                current[first] = postings[first].nextPosition();
+            }
+        });
+    }
+
+    @Override
+    void collectTerms(Set<String> terms) {
+        terms.addAll(this.terms);
+    }
+
+    @Override
+    public String toString() {
+        return String.join(" NEAR/" + slop + " ", terms);
+    }
+}
+
+/**
+ * matches every term that fits some pattern, found by seeking the sorted terms to the pattern's
+ * literal prefix and walking forward while they still share it
+ */
+abstract class MultiTermQuery extends Query {
+    /** past this many terms a rewrite keeps the query as one constant score union */
+    static final int MAX_EXPANSIONS = 128;
+
+    /** the chars every matching term starts with */
+    abstract String prefix();
+
+    abstract boolean matches(String term);
+
+    /** qui* is a prefix query, anything else with * or ? a wildcard. null if no term could fit */
+    static Query parse(String word) {
+        StringBuilder pattern = new StringBuilder();
+        for (int i = 0; i < word.length(); i++) {
+            char c = Character.toLowerCase(word.charAt(i));
+            // same word chars as the tokenizer, plus the wildcards
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == '*' || c == '?') {
+                pattern.append(c);
+            }
+        }
+        String p = pattern.toString();
+        int star = p.indexOf('*');
+        if (p.indexOf('?') < 0 && star == p.length() - 1) {
+            return new PrefixQuery(p.substring(0, star));
+        }
+        return p.isEmpty() ? null : new WildcardQuery(p);
+    }
+
+    /** the matching terms in sorted order, at most limit of them (then limit + 1 to say so) */
+    List<String> expand(IndexReader index, int limit) {
+        String prefix = prefix();
+        List<String> terms = new ArrayList<>();
+        for (Iterator<String> it = index.sortedTermIterator(prefix); it.hasNext() && terms.size() <= limit; ) {
+            String term = it.next();
+            if (!term.startsWith(prefix)) break;
+            if (matches(term)) terms.add(term);
+        }
+        return terms;
+    }
+
+    @Override
+    DocIterator iterator(IndexReader index) {
+        List<DocIterator> iterators = new ArrayList<>();
+        for (String term : expand(index, Integer.MAX_VALUE - 1)) {
+            iterators.add(index.postings(term).iterator());
+        }
+        return DocIterators.or(iterators);
+    }
+
+    @Override
+    long cost(IndexReader index) {
+        long cost = 0;
+        for (String term : expand(index, Integer.MAX_VALUE - 1)) cost += index.postings(term).docFreq();
+        return cost;
+    }
+
+    @Override
+    DocIdSet docIdSet(IndexReader index, BooleanSupplier stale) {
+        List<DocIdSet> sets = new ArrayList<>();
+        for (String term : expand(index, Integer.MAX_VALUE - 1)) {
+            if (stale.getAsBoolean()) throw new CancellationException();
+            sets.add(index.postings(term).docIdSet());
+        }
+        return DocIdSet.union(sets);
+    }
+
+    /**
+     * an OR of the matching terms so they score and highlight like typed words, unless there
+     * are too many, in which case every hit scores the same
+     */
+    @Override
+    Query rewrite(IndexReader index) {
+        List<String> terms = expand(index, MAX_EXPANSIONS);
+        if (terms.isEmpty() || terms.size() > MAX_EXPANSIONS) return this;
+        if (terms.size() == 1) return new TermQuery(terms.get(0));
+        List<Query> clauses = new ArrayList<>();
+        for (String term : terms) clauses.add(new TermQuery(term));
+        return new OrQuery(clauses);
+    }
+
+    @Override
+    void collectTerms(Set<String> terms) {
+        // not known without the index, rewrite first
+    }
+}
+
+final class PrefixQuery extends MultiTermQuery {
+    final String prefix;
+
+    PrefixQuery(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    String prefix() {
+        return prefix;
+    }
+
+    @Override
+    boolean matches(String term) {
+        return true; // expand already stops at the first term without the prefix
+    }
+
+    @Override
+    public String toString() {
+        return prefix + "*";
+    }
+}
+
+/**
+ * * matches any run of chars, ? exactly one
+ */
+final class WildcardQuery extends MultiTermQuery {
+    final String pattern;
+
+    WildcardQuery(String pattern) {
+        this.pattern = pattern;
+    }
+
+    @Override
+    String prefix() {
+        int i = 0;
+        while (i < pattern.length() && pattern.charAt(i) != '*' && pattern.charAt(i) != '?') i++;
+        return pattern.substring(0, i);
+    }
+
+    @Override
+    boolean matches(String term) {
+        // greedy scan that backs up to the last * on a mismatch, linear for patterns with one *
+        int p = 0;
+        int t = 0;
+        int star = -1;
+        int resume = 0;
+        while (t < term.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == term.charAt(t))) {
+                p++;
+                t++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                resume = t;
+            } else if (star >= 0) {
+                p = star + 1;
+                t = ++resume;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') p++;
+        return p == pattern.length();
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+}
+
+/**
+ * terms within maxEdits typos of term, where a typo is an inserted, dropped or wrong char or two
+ * swapped neighbours. instead of measuring the distance to every term, the sorted terms are walked
+ * with a levenshtein automaton: one dp row per char of the candidate, shared by every term with
+ * the same prefix, and as soon as a prefix can't get back within maxEdits the walk seeks to the
+ * next char that could, which once every edit is spent is one of term's own. so only the branches
+ * of the dictionary near term get visited
+ */
+final class FuzzyQuery extends MultiTermQuery {
+    /** the closest variants kept, fewest edits then most docs first */
+    static final int MAX_VARIANTS = 50;
+    /** dictionary terms one expansion may look at before it settles for what it found */
+    static final int MAX_VISITED = 20_000;
+
+    final String term;
+    final int maxEdits;
+    /** term's chars in order, the only ones that can follow a prefix with no edits left */
+    private final char[] chars;
+    /** whether the last expand stopped at MAX_VISITED, so closer variants may have been missed */
+    volatile boolean truncated;
+
+    FuzzyQuery(String term, int maxEdits) {
+        this.term = term;
+        this.maxEdits = maxEdits;
+        this.chars = term.toCharArray();
+        Arrays.sort(chars);
+    }
+
+    /** edits -1 picks by length: exact up to 2 chars, 1 edit up to 5, then 2 */
+    static Query of(String term, int edits) {
+        if (edits < 0) edits = term.length() <= 2 ? 0 : term.length() <= 5 ? 1 : 2;
+        return edits == 0 ? new TermQuery(term) : new FuzzyQuery(term, Math.min(edits, 2));
+    }
+
+    @Override
+    String prefix() {
+        return "";
+    }
+
+    @Override
+    boolean matches(String candidate) {
+        return distance(candidate) <= maxEdits;
+    }
+
+    /** edit distance with swaps (optimal string alignment) */
+    int distance(String candidate) {
+        int[][] rows = new int[candidate.length() + 1][];
+        rows[0] = firstRow();
+        for (int depth = 1; depth <= candidate.length(); depth++) {
+            step(rows, depth, candidate.charAt(depth - 1), depth > 1 ? candidate.charAt(depth - 2) : 0);
+        }
+        return rows[candidate.length()][term.length()];
+    }
+
+    @Override
+    List<String> expand(IndexReader index, int limit) {
+        int n = term.length();
+        int[][] rows = new int[16][];
+        rows[0] = firstRow();
+        List<String> variants = new ArrayList<>();
+        List<Integer> distances = new ArrayList<>();
+        String previous = "";
+        int valid = 0; // rows[0..valid] are previous's prefixes
+        int visited = 0;
+        truncated = false;
+        Iterator<String> terms = index.sortedTermIterator("");
+        while (terms.hasNext()) {
+            if (visited++ == MAX_VISITED) {
+                truncated = true;
+                break;
+            }
+            String candidate = terms.next();
+            int depth = Math.min(valid, commonPrefix(previous, candidate));
+            boolean dead = false;
+            while (depth < candidate.length() && !dead) {
+                depth++;
+                if (depth == rows.length) rows = Arrays.copyOf(rows, depth * 2 + 1);
+                step(rows, depth, candidate.charAt(depth - 1), depth > 1 ? candidate.charAt(depth - 2) : 0);
+                dead = dead(rows, depth);
+            }
+            previous = candidate;
+            valid = depth;
+            if (dead) {
+                // nothing starting with candidate[0, depth) can come back, skip to the next prefix that might
+                String next = seekPast(rows, candidate, depth - 1);
+                if (next == null) break;
+                valid = next.length() - 1;
+                terms = index.sortedTermIterator(next);
+                continue;
+            }
+            if (rows[depth][n] <= maxEdits) {
+                variants.add(candidate);
+                distances.add(rows[depth][n]);
+            }
+        }
+        Integer[] order = new Integer[variants.size()];
+        int[] docFreqs = new int[variants.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            docFreqs[i] = index.postings(variants.get(i)).docFreq();
+        }
+        // if the walk gave up early these are only the closest of what it got to, still best first
+        Arrays.sort(order, (a, b) -> distances.get(a).equals(distances.get(b))
+                                     ? docFreqs[b] - docFreqs[a] : distances.get(a) - distances.get(b));
+        List<String> best = new ArrayList<>();
+        for (int i = 0; i < Math.min(Math.min(limit, MAX_VARIANTS), order.length); i++) {
+            best.add(variants.get(order[i]));
+        }
+        return best;
+    }
+
+    private int[] firstRow() {
+        int[] row = new int[term.length() + 1];
+        for (int j = 0; j < row.length; j++) row[j] = j;
+        return row;
+    }
+
+    /**
+     * the first key past every term that starts with candidate[0, length] whose chars after
+     * candidate[0, length) can't get back within maxEdits, or null once the walk is done. rows
+     * [0, length] have to be candidate's, and rows[length + 1] gets overwritten
+     */
+    private String seekPast(int[][] rows, String candidate, int length) {
+        for (int from = candidate.charAt(length) + 1; ; from = candidate.charAt(--length) + 1) {
+            char before = length > 0 ? candidate.charAt(length - 1) : 0;
+            boolean anyChar = min(rows[length]) + 1 <= maxEdits;
+            for (int c = from; c <= Character.MAX_VALUE; ) {
+                if (anyChar) return candidate.substring(0, length) + (char) c;
+                int i = Arrays.binarySearch(chars, (char) c);
+                if (i < 0) i = -i - 1;
+                if (i == chars.length) break;
+                step(rows, length + 1, chars[i], before);
+                if (!dead(rows, length + 1)) return candidate.substring(0, length) + chars[i];
+                c = chars[i] + 1;
+            }
+            if (length == 0) return null;
+        }
+    }
+
+    /** whether nothing that starts with the prefix rows[depth] was worked out for can be near term */
+    private boolean dead(int[][] rows, int depth) {
+        // a swap can still reach back two rows, so both have to be out of reach
+        return min(rows[depth]) > maxEdits && min(rows[depth - 1]) + 1 > maxEdits;
+    }
+
+    /** rows[depth] from the rows above it, for a prefix ending in before then c against term */
+    private void step(int[][] rows, int depth, char c, char before) {
+        if (rows[depth] == null) rows[depth] = new int[term.length() + 1];
+        int[] previous = rows[depth - 1];
+        int[] row = rows[depth];
+        row[0] = depth;
+        for (int j = 1; j < row.length; j++) {
+            int cost = term.charAt(j - 1) == c ? 0 : 1;
+            int value = Math.min(Math.min(previous[j] + 1, row[j - 1] + 1), previous[j - 1] + cost);
+            if (depth > 1 && j > 1 && term.charAt(j - 1) == before && term.charAt(j - 2) == c) {
+                value = Math.min(value, rows[depth - 2][j - 2] + 1);
+            }
+            row[j] = value;
+        }
+    }
+
+    private static int min(int[] row) {
+        int min = row[0];
+        for (int value : row) min = Math.min(min, value);
+        return min;
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < n && a.charAt(i) == b.charAt(i)) i++;
+        return i;
+    }
+
+    @Override
+    public String toString() {
+        return term + "~" + maxEdits;
+    }
+}
+
+final class AndQuery extends Query {
+    // how much rarer than every other clause the rarest has to be to intersect by leapfrogging
+    static final int SPARSE_LEAD = 64;
+
+    final List<Query> clauses;
+
+    AndQuery(List<Query> clauses) {
+        this.clauses = clauses;
+    }
+
+    @Override
+    DocIterator iterator(IndexReader index) {
+        List<DocIterator> iterators = new ArrayList<>();
+        for (Query clause : clauses) {
+            iterators.add(clause.iterator(index));
+        }
+        return DocIterators.and(iterators);
+    }
+
+    @Override
+    long cost(IndexReader index) {
+        long cost = Long.MAX_VALUE;
+        for (Query clause : clauses) cost = Math.min(cost, clause.cost(index));
+        return cost;
+    }
+
+    /**
+     * intersects the clauses' sets smallest first. when one clause is far rarer than the rest,
+     * leapfrogging over their skip lists beats decoding them whole, so that's done instead
+     */
+    @Override
+    DocIdSet docIdSet(IndexReader index, BooleanSupplier stale) {
+        long[] costs = new long[clauses.size()];
+        for (int i = 0; i < costs.length; i++) costs[i] = clauses.get(i).cost(index);
+        Arrays.sort(costs);
+        if (costs[0] == 0) return DocIdSet.EMPTY;
+        if (costs.length > 1 && costs[1] / costs[0] > SPARSE_LEAD) return super.docIdSet(index, stale);
+        List<DocIdSet> sets = new ArrayList<>();
+        for (Query clause : clauses) sets.add(clause.docIdSet(index, stale));
+        sets.sort(Comparator.comparingInt(DocIdSet::cardinality));
+        DocIdSet matches = sets.get(0);
+        for (int i = 1; i < sets.size() && matches.cardinality() > 0; i++) {
+            if (stale.getAsBoolean()) throw new CancellationException();
+            matches = matches.and(sets.get(i));
+        }
+        return matches;
+    }
+
+    @Override
+    Query rewrite(IndexReader index) {
+        return new AndQuery(rewrite(clauses, index));
+    }
+
+    @Override
+    Query fuzzy() {
+        List<Query> fuzzy = fuzzy(clauses);
+        return fuzzy == null ? this : new AndQuery(fuzzy);
+    }
+
+    /** null if no clause changed */
+    static List<Query> fuzzy(List<Query> clauses) {
+        List<Query> fuzzy = new ArrayList<>();
+        boolean changed = false;
+        for (Query clause : clauses) {
+            Query f = clause.fuzzy();
+            changed |= f != clause;
+            fuzzy.add(f);
+        }
+        return changed ? fuzzy : null;
+    }
+
+    static List<Query> rewrite(List<Query> clauses, IndexReader index) {
+        List<Query> rewritten = new ArrayList<>();
+        for (Query clause : clauses) rewritten.add(clause.rewrite(index));
+        return rewritten;
+    }
+
+    @Override
+    void collectTerms(Set<String> terms) {
+        for (Query clause : clauses) clause.collectTerms(terms);
+    }
+
+    @Override
+    public String toString() {
+        return join(clauses, " AND ");
+    }
+
+    static String join(List<Query> clauses, String separator) {
+        StringBuilder sb = new StringBuilder();
+        for (Query clause : clauses) {
+            if (sb.length() > 0) sb.append(separator);
+            sb.append(clause);
+        }
+        return sb.toString();
+    }
+}
+
+final class OrQuery extends Query {
+    final List<Query> clauses;
+
+    OrQuery(List<Query> clauses) {
+        this.clauses = clauses;
+    }
+
+    @Override
+    DocIterator iterator(IndexReader index) {
+        List<DocIterator> iterators = new ArrayList<>();
+        for (Query clause : clauses) {
+            iterators.add(clause.iterator(index));
+        }
+        return DocIterators.or(iterators);
+    }
+
+    @Override
+    long cost(IndexReader index) {
+        long cost = 0;
+        for (Query clause : clauses) cost += clause.cost(index);
+        return cost;
+    }
+
+    @Override
+    DocIdSet docIdSet(IndexReader index, BooleanSupplier stale) {
+        List<DocIdSet> sets = new ArrayList<>();
+        for (Query clause : clauses) sets.add(clause.docIdSet(index, stale));
+        return DocIdSet.union(sets);
+    }
+
+    @Override
+    Query rewrite(IndexReader index) {
+        return new OrQuery(AndQuery.rewrite(clauses, index));
+    }
+
+    @Override
+    Query fuzzy() {
+        List<Query> fuzzy = AndQuery.fuzzy(clauses);
+        return fuzzy == null ? this : new OrQuery(fuzzy);
+    }
+
+    @Override
+    void collectTerms(Set<String> terms) {
+        for (Query clause : clauses) clause.collectTerms(terms);
+    }
+
+    @Override
+    public String toString() {
+        return AndQuery.join(clauses, " OR ");
+    }
+}
+
+final class AndNotQuery extends Query {
+    final Query positive;
+    final List<Query> excluded;
+
+    AndNotQuery(Query positive, List<Query> excluded) {
+        this.positive = positive;
+        this.excluded = excluded;
+    }
+
+    @Override
+    DocIterator iterator(IndexReader index) {
+        List<DocIterator> iterators = new ArrayList<>();
+        for (Query clause : excluded) {
+            iterators.add(clause.iterator(index));
+        }
+        return DocIterators.andNot(positive.iterator(index), DocIterators.or(iterators));
+    }
+
+    @Override
+    long cost(IndexReader index) {
+        return positive.cost(index);
+    }
+
+    @Override
+    DocIdSet docIdSet(IndexReader index, BooleanSupplier stale) {
+        DocIdSet matches = positive.docIdSet(index, stale);
+        if (matches.cardinality() == 0) return matches;
+        List<DocIdSet> sets = new ArrayList<>();
+        for (Query clause : excluded) sets.add(clause.docIdSet(index, stale));
+        return matches.andNot(DocIdSet.union(sets));
+    }
+
+    @Override
+    Query rewrite(IndexReader index) {
+        // the excluded side only filters, it never needs spelling out
+        return new AndNotQuery(positive.rewrite(index), excluded);
+    }
+
+    @Override
+    Query fuzzy() {
+        Query fuzzy = positive.fuzzy();
+        return fuzzy == positive ? this : new AndNotQuery(fuzzy, excluded);
+    }
+
+    @Override
+    void collectTerms(Set<String> terms) {
+        positive.collectTerms(terms); // excluded terms never show up in a hit
+    }
+
+    @Override
+    public String toString() {
+        return positive + " NOT " + AndQuery.join(excluded, " NOT ");
+    }
+}
+
+/**
+ * combinators over DocIterator. nothing here materializes doc ids, everything
+ * is computed lazily as the caller pulls docs
+ */
+final class DocIterators {
+    private DocIterators() {}
+
+    static DocIterator empty() {
+        return new DocIterator() {
+            private int doc = -1;
+
+            @Override
+            public int docID() {
+                return doc;
+            }
+
+            @Override
+            public int nextDoc() {
+                return doc = NO_MORE_DOCS;
+            }
+
+            @Override
+            public int advance(int target) {
+                return doc = NO_MORE_DOCS;
+            }
+
+            @Override
+            public long cost() {
+                return 0;
+            }
+        };
+    }
+
+    static DocIterator and(List<DocIterator> iterators) {
+        if (iterators.isEmpty()) return empty();
+        if (iterators.size() == 1) return iterators.get(0);
+        return new Conjunction(iterators);
+    }
+
+    static DocIterator or(List<DocIterator> iterators) {
+        if (iterators.isEmpty()) return empty();
+        if (iterators.size() == 1) return iterators.get(0);
+        return new Disjunction(iterators);
+    }
+
+    static DocIterator andNot(DocIterator positive, DocIterator excluded) {
+        return excluded.cost() == 0 ? positive : new AndNot(positive, excluded);
+    }
+
+    /** every doc it matches as a bitset, throws CancellationException once stale says so */
+    static BitSet collect(DocIterator it, BooleanSupplier stale) {
+        BitSet bits = new BitSet();
+        int matched = 0;
+        for (int doc = it.nextDoc(); doc != DocIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+            if (++matched % 4096 == 0 && stale.getAsBoolean()) throw new CancellationException();
+            bits.set(doc);
+        }
+        return bits;
+    }
+
+    /**
+     * the docs of approximation for which matches says yes. matches is only asked about docs the
+     * cheap approximation already accepted, with its iterators sitting on that doc
+     */
+    static DocIterator twoPhase(DocIterator approximation, BooleanSupplier matches) {
+        return new DocIterator() {
+            @Override
+            public int docID() {
+                return approximation.docID();
+            }
+
+            @Override
+            public int nextDoc() {
+                return confirm(approximation.nextDoc());
+            }
+
+            @Override
+            public int advance(int target) {
+                // already confirmed, and its positions are used up
+                if (approximation.docID() >= target) return approximation.docID();
+                return confirm(approximation.advance(target));
+            }
+
+            private int confirm(int doc) {
+                while (doc != NO_MORE_DOCS && !matches.getAsBoolean()) {
+                    doc = approximation.nextDoc();
+                }
+                return doc;
+            }
+
+            @Override
+            public long cost() {
+                return approximation.cost();
+            }
+        };
+    }
+
+    /**
+     * leapfrog intersection led by the rarest iterator, so the work is bounded by the
+     * shortest list and the longer ones only ever advance() (which skips whole blocks)
+     */
+    private static final class Conjunction implements DocIterator {
+        private final DocIterator lead;
+        private final DocIterator[] others;
+        private int doc = -1;
+
+        Conjunction(List<DocIterator> iterators) {
+            DocIterator[] sorted = iterators.toArray(new DocIterator[0]);
+            Arrays.sort(sorted, Comparator.comparingLong(DocIterator::cost));
+            lead = sorted[0];
+            others = Arrays.copyOfRange(sorted, 1, sorted.length);
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() {
+            return doc = align(lead.nextDoc());
+        }
+
+        @Override
+        public int advance(int target) {
+            return doc = align(lead.advance(target));
+        }
+
+        private int align(int target) {
+            outer:
+            while (target != NO_MORE_DOCS) {
+                for (DocIterator other : others) {
+                    int otherDoc = other.docID() < target ? other.advance(target) : other.docID();
+                    if (otherDoc > target) {
+                        target = lead.advance(otherDoc);
+                        continue outer;
+                    }
+                }
+                return target;
+            }
+            return NO_MORE_DOCS;
+        }
+
+        @Override
+        public long cost() {
+            return lead.cost();
+        }
+    }
+
+    /** union through a min-heap ordered by current doc */
+    private static final class Disjunction implements DocIterator {
+        private final DocIterator[] heap;
+        private int size;
+        private int doc = -1;
+        private final long cost;
+
+        Disjunction(List<DocIterator> iterators) {
+            heap = iterators.toArray(new DocIterator[0]);
+            long total = 0;
+            for (DocIterator it : heap) total += it.cost();
+            cost = total;
+            // every iterator starts unpositioned at -1, so any order is a valid heap
+            size = heap.length;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() {
+            return advance(doc + 1);
+        }
+
+        @Override
+        public int advance(int target) {
+            while (size > 0 && heap[0].docID() < target) {
+                if (heap[0].advance(target) == NO_MORE_DOCS) {
+                    heap[0] = heap[--size];
+                }
+                siftDown();
+            }
+            return doc = size == 0 ? NO_MORE_DOCS : heap[0].docID();
+        }
+
+        private void siftDown() {
+            int i = 0;
+            DocIterator top = heap[0];
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) break;
+                if (child + 1 < size && heap[child + 1].docID() < heap[child].docID()) child++;
+                if (heap[child].docID() >= top.docID()) break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            if (size > 0) heap[i] = top;
+        }
+
+        @Override
+        public long cost() {
+            return cost;
+        }
+    }
+
+    private static final class AndNot implements DocIterator {
+        private final DocIterator positive;
+        private final DocIterator excluded;
+
+        AndNot(DocIterator positive, DocIterator excluded) {
+            this.positive = positive;
+            this.excluded = excluded;
+        }
+
+        @Override
+        public int docID() {
+            return positive.docID();
+        }
+
+        @Override
+        public int nextDoc() {
+            return skipExcluded(positive.nextDoc());
+        }
+
+        @Override
+        public int advance(int target) {
+            return skipExcluded(positive.advance(target));
+        }
+
+        private int skipExcluded(int doc) {
+            while (doc != NO_MORE_DOCS) {
+                int excludedDoc = excluded.docID() < doc ? excluded.advance(doc) : excluded.docID();
+                if (excludedDoc != doc) return doc;
+                doc = positive.nextDoc();
+            }
+            return doc;
+        }
+
+        @Override
+        public long cost() {
+            return positive.cost();
+        }
+    }
+}
+
+/**
+ * a set of doc ids kept the way roaring bitmaps do it: ids are split into chunks of 65536 by
+ * their high bits, and a chunk is a sorted char[] of the low bits while it has at most ARRAY_MAX
+ * docs, a fixed BITMAP_WORDS word bitmap once it has more, which is where the bitmap becomes the
+ * smaller of the two. and / or / andNot go chunk by chunk and pick a loop for the pair of
+ * containers, two bitmaps are combined a word (or a vector of words, see WordOps) at a time.
+ * never changed once built, so containers are shared between sets freely
+ */
+final class DocIdSet {
+    static final int ARRAY_MAX = 4096;
+    static final int BITMAP_WORDS = 1 << 10;
+    static final DocIdSet EMPTY = new DocIdSet(new int[0], new Object[0], new int[0], 0);
+    static final WordOps WORDS = WordOps.best();
+
+    private final int[] keys; // doc >>> 16 of each chunk, increasing
+    private final Object[] containers; // a char[] of exactly the chunk's docs, or a long[BITMAP_WORDS]
+    private final int[] counts;
+    private final int size;
+    private final int cardinality;
+
+    private DocIdSet(int[] keys, Object[] containers, int[] counts, int size) {
+        this.keys = keys;
+        this.containers = containers;
+        this.counts = counts;
+        this.size = size;
+        int total = 0;
+        for (int i = 0; i < size; i++) total += counts[i];
+        cardinality = total;
+    }
+
+    /** every doc it returns, throws CancellationException once stale says so */
+    static DocIdSet of(DocIterator it, BooleanSupplier stale) {
+        Builder out = new Builder();
+        int matched = 0;
+        for (int doc = it.nextDoc(); doc != DocIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+            if (++matched % 4096 == 0 && stale.getAsBoolean()) throw new CancellationException();
+            out.add(doc);
+        }
+        return out.build();
+    }
+
+    static DocIdSet of(DocIterator it) {
+        return of(it, () -> false);
+    }
+
+    int cardinality() {
+        return cardinality;
+    }
+
+    /** whether any chunk is dense enough to be a bitmap, otherwise this is no faster than postings */
+    boolean hasBitmaps() {
+        for (int i = 0; i < size; i++) {
+            if (containers[i] instanceof long[]) return true;
+        }
+        return false;
+    }
+
+    long sizeInBytes() {
+        long bytes = 16 + 3 * 16 + 16L * keys.length;
+        for (int i = 0; i < size; i++) {
+            bytes += containers[i] instanceof long[] ? 16 + 8 * BITMAP_WORDS : 16 + 2L * counts[i];
+        }
+        return bytes;
+    }
+
+    DocIdSet and(DocIdSet other) {
+        Builder out = new Builder();
+        for (int i = 0, j = 0; i < size && j < other.size; ) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Object a = containers[i];
+                Object b = other.containers[j];
+                if (a instanceof long[] x && b instanceof long[] y) {
+                    long[] words = new long[BITMAP_WORDS];
+                    out.bitmap(keys[i], words, WORDS.and(x, y, words));
+                } else if (a instanceof char[] x && b instanceof char[] y) {
+                    out.array(keys[i], intersect(x, y));
+                } else if (a instanceof char[] x) {
+                    out.array(keys[i], filter(x, (long[]) b, true));
+                } else {
+                    out.array(keys[i], filter((char[]) b, (long[]) a, true));
+                }
+                i++;
+                j++;
+            }
+        }
+        return out.build();
+    }
+
+    DocIdSet andNot(DocIdSet other) {
+        Builder out = new Builder();
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.keys[j] < keys[i]) j++;
+            Object a = containers[i];
+            if (j == other.size || other.keys[j] != keys[i]) {
+                out.add(keys[i], a, counts[i]);
+                continue;
+            }
+            Object b = other.containers[j];
+            if (a instanceof long[] x && b instanceof long[] y) {
+                long[] words = new long[BITMAP_WORDS];
+                out.bitmap(keys[i], words, WORDS.andNot(x, y, words));
+            } else if (a instanceof long[] x) {
+                long[] words = x.clone();
+                int count = counts[i];
+                for (char low : (char[]) b) {
+                    count -= (int) (words[low >>> 6] >>> low) & 1;
+                    words[low >>> 6] &= ~(1L << low);
+                }
+                out.bitmap(keys[i], words, count);
+            } else if (b instanceof long[] y) {
+                out.array(keys[i], filter((char[]) a, y, false));
+            } else {
+                out.array(keys[i], subtract((char[]) a, (char[]) b));
+            }
+        }
+        return out.build();
+    }
+
+    DocIdSet or(DocIdSet other) {
+        return union(List.of(this, other));
+    }
+
+    /**
+     * every doc in any of sets. a chunk only one set has is shared as is, the others are ORed
+     * into one bitmap per chunk, so a prefix matching hundreds of terms is one pass over each
+     */
+    static DocIdSet union(List<DocIdSet> sets) {
+        if (sets.isEmpty()) return EMPTY;
+        if (sets.size() == 1) return sets.get(0);
+        int chunks = 0;
+        for (DocIdSet set : sets) {
+            if (set.size > 0) chunks = Math.max(chunks, set.keys[set.size - 1] + 1);
+        }
+        Object[] merged = new Object[chunks];
+        int[] counts = new int[chunks];
+        boolean[] owned = new boolean[chunks];
+        for (DocIdSet set : sets) {
+            for (int i = 0; i < set.size; i++) {
+                int key = set.keys[i];
+                Object container = set.containers[i];
+                if (merged[key] == null) {
+                    merged[key] = container;
+                    counts[key] = set.counts[i];
+                    continue;
+                }
+                if (!owned[key]) {
+                    merged[key] = merged[key] instanceof long[] words ? words.clone() : toBitmap((char[]) merged[key]);
+                    owned[key] = true;
+                }
+                long[] words = (long[]) merged[key];
+                if (container instanceof long[] other) {
+                    counts[key] = WORDS.or(words, other, words);
+                } else {
+                    for (char low : (char[]) container) {
+                        counts[key] += (int) (~words[low >>> 6] >>> low) & 1;
+                        words[low >>> 6] |= 1L << low;
+                    }
+                }
+            }
+        }
+        Builder out = new Builder();
+        for (int key = 0; key < chunks; key++) {
+            if (merged[key] == null) continue;
+            if (owned[key]) {
+                out.bitmap(key, (long[]) merged[key], counts[key]);
+            } else {
+                out.add(key, merged[key], counts[key]);
+            }
+        }
+        return out.build();
+    }
+
+    /** the same docs as a BitSet, bitmap chunks are copied over whole */
+    BitSet toBitSet() {
+        if (size == 0) return new BitSet();
+        long[] words = new long[(keys[size - 1] + 1) * BITMAP_WORDS];
+        for (int i = 0; i < size; i++) {
+            int base = keys[i] * BITMAP_WORDS;
+            if (containers[i] instanceof long[] bitmap) {
+                System.arraycopy(bitmap, 0, words, base, BITMAP_WORDS);
+            } else {
+                for (char low : (char[]) containers[i]) words[base + (low >>> 6)] |= 1L << low;
+            }
+        }
+        return BitSet.valueOf(words);
+    }
+
+    private static char[] intersect(char[] a, char[] b) {
+        char[] out = new char[Math.min(a.length, b.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static char[] subtract(char[] a, char[] b) {
+        char[] out = new char[a.length];
+        int n = 0;
+        int j = 0;
+        for (char low : a) {
+            while (j < b.length && b[j] < low) j++;
+            if (j == b.length || b[j] != low) out[n++] = low;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /** the docs of array that are (keep) or aren't in bitmap */
+    private static char[] filter(char[] array, long[] bitmap, boolean keep) {
+        char[] out = new char[array.length];
+        int n = 0;
+        for (char low : array) {
+            if (((bitmap[low >>> 6] >>> low & 1) != 0) == keep) out[n++] = low;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static long[] toBitmap(char[] array) {
+        long[] words = new long[BITMAP_WORDS];
+        for (char low : array) words[low >>> 6] |= 1L << low;
+        return words;
+    }
+
+    private static char[] toArray(long[] words, int count) {
+        char[] array = new char[count];
+        int n = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            for (long word = words[w]; word != 0; word &= word - 1) {
+                array[n++] = (char) (w << 6 | Long.numberOfTrailingZeros(word));
+            }
+        }
+        return array;
+    }
+
+    /** collects chunks in increasing key order, docs one at a time or whole containers */
+    private static final class Builder {
+        private int[] keys = new int[4];
+        private Object[] containers = new Object[4];
+        private int[] counts = new int[4];
+        private int size;
+        // the chunk add(doc) is filling, an array until it overflows into a bitmap
+        private int key = -1;
+        private final char[] array = new char[ARRAY_MAX];
+        private long[] bitmap;
+        private int count;
+
+        /** docs must come in increasing order */
+        void add(int doc) {
+            if (doc >>> 16 != key) {
+                flush();
+                key = doc >>> 16;
+            }
+            char low = (char) doc;
+            if (bitmap == null && count < ARRAY_MAX) {
+                array[count++] = low;
+                return;
+            }
+            if (bitmap == null) bitmap = toBitmap(array);
+            bitmap[low >>> 6] |= 1L << low;
+            count++;
+        }
+
+        /** a bitmap holding count docs, turned into an array if that's smaller */
+        void bitmap(int key, long[] words, int count) {
+            if (count <= ARRAY_MAX) {
+                array(key, toArray(words, count));
+            } else {
+                add(key, words, count);
+            }
+        }
+
+        void array(int key, char[] docs) {
+            if (docs.length > ARRAY_MAX) {
+                add(key, toBitmap(docs), docs.length);
+            } else {
+                add(key, docs, docs.length);
+            }
+        }
+
+        void add(int key, Object container, int count) {
+            if (count == 0) return;
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                containers = Arrays.copyOf(containers, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            keys[size] = key;
+            containers[size] = container;
+            counts[size] = count;
+            size++;
+        }
+
+        private void flush() {
+            if (count > 0) add(key, bitmap != null ? bitmap : Arrays.copyOf(array, count), count);
+            bitmap = null;
+            count = 0;
+        }
+
+        DocIdSet build() {
+            flush();
+            return size == 0 ? EMPTY : new DocIdSet(keys, containers, counts, size);
+        }
+    }
+}
+
+/**
+ * word at a time ops over two bitmaps of the same length into a third, which may be one of
+ * them. each returns how many bits the result has, counted in the same pass
+ */
+interface WordOps {
+    int and(long[] a, long[] b, long[] out);
+
+    int or(long[] a, long[] b, long[] out);
+
+    int andNot(long[] a, long[] b, long[] out);
+
+    /**
+     * VectorWordOps when it was compiled in (the gradle build does) and the jdk.incubator.vector
+     * module is there at run time, else plain loops. -Dfts.vector=false forces the plain loops
+     */
+    static WordOps best() {
+        if (Boolean.parseBoolean(System.getProperty("fts.vector", "true"))) {
+            try {
+                return new HandleWordOps(Class.forName("fts.VectorWordOps"));
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // single file run, or started without --add-modules jdk.incubator.vector
+            }
+        }
+        return new ScalarWordOps();
+    }
+}
+
+/**
+ * WordOps over another class's static and, or and andNot, so VectorWordOps doesn't have to
+ * name an interface that lives in this file. a call covers a whole 1024 word bitmap, so going
+ * through a method handle costs next to nothing
+ */
+final class HandleWordOps implements WordOps {
+    private static final java.lang.invoke.MethodType OP =
+        java.lang.invoke.MethodType.methodType(int.class, long[].class, long[].class, long[].class);
+
+    private final java.lang.invoke.MethodHandle and;
+    private final java.lang.invoke.MethodHandle or;
+    private final java.lang.invoke.MethodHandle andNot;
+
+    HandleWordOps(Class<?> ops) throws ReflectiveOperationException {
+        java.lang.invoke.MethodHandles.Lookup lookup = java.lang.invoke.MethodHandles.lookup();
+        and = lookup.findStatic(ops, "and", OP);
+        or = lookup.findStatic(ops, "or", OP);
+        andNot = lookup.findStatic(ops, "andNot", OP);
+        lookup.ensureInitialized(ops); // so a missing vector module fails here, not mid search
+    }
+
+    @Override
+    public int and(long[] a, long[] b, long[] out) {
+        try {
+            return (int) and.invokeExact(a, b, out);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public int or(long[] a, long[] b, long[] out) {
+        try {
+            return (int) or.invokeExact(a, b, out);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public int andNot(long[] a, long[] b, long[] out) {
+        try {
+            return (int) andNot.invokeExact(a, b, out);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
+
+/** one long at a time. C2 unrolls these, and vectorizes what it can of them on its own */
+final class ScalarWordOps implements WordOps {
+    @Override
+    public int and(long[] a, long[] b, long[] out) {
+        int count = 0;
+        for (int i = 0; i < out.length; i++) {
+            long word = a[i] & b[i];
+            out[i] = word;
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    @Override
+    public int or(long[] a, long[] b, long[] out) {
+        int count = 0;
+        for (int i = 0; i < out.length; i++) {
+            long word = a[i] | b[i];
+            out[i] = word;
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    @Override
+    public int andNot(long[] a, long[] b, long[] out) {
+        int count = 0;
+        for (int i = 0; i < out.length; i++) {
+            long word = a[i] & ~b[i];
+            out[i] = word;
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+}
+
+/**
+ * what searching needs from an index, whether it was built in memory or mapped from a file
+ */
+interface IndexReader {
+    /** null if the term isn't in the index */
+    Postings postings(String term);
+
+    int termCount();
+
+    /** the terms >= from in sorted order, without materializing them all */
+    Iterator<String> sortedTermIterator(String from);
+
+    default Iterator<String> sortedTermIterator() {
+        return sortedTermIterator("");
+    }
+
+    /** the terms from the fromOrd-th in sorted order on, for paging through the dictionary */
+    default Iterator<String> sortedTermIterator(int fromOrd) {
+        Iterator<String> terms = sortedTermIterator();
+        for (int i = 0; i < fromOrd && terms.hasNext(); i++) terms.next();
+        return terms;
+    }
+
+    default String[] sortedTerms() {
+        String[] terms = new String[termCount()];
+        Iterator<String> it = sortedTermIterator();
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = it.next();
+        }
+        return terms;
+    }
+
+    int docCount();
+
+    int docLength(int docId);
+
+    float avgDocLength();
+
+    /**
+     * start and end char of each word of the doc as pairs by position, null if the index didn't
+     * keep them. see WordOffsets
+     */
+    default int[] wordOffsets(int docId) {
+        return null;
+    }
+}
+
+/**
+ * term -> positional postings plus the per-doc lengths bm25 needs. docs are added in doc id order,
+ * either all at once with addDocument or piecewise (startDocument + addPosting) like the animation does
+ */
+final class InvertedIndex implements IndexReader {
+    private final Map<String, PostingsList> postings = new HashMap<>();
+    private final TermDictionary dictionary = new TermDictionary();
+    private PostingsList[] byTermId = new PostingsList[16];
+    private int[] docLengths = new int[16];
+    private int docCount = 0;
+    private long totalLength = 0;
+    private TermTrie termTrie;
+    // the terms in order, only kept once ord() gets asked while terms are still coming in (the
+    // animated build asks for every new one). a binary search and an array shift per new term
+    // keep it current, where the trie would have to sort them all again. finish() drops it
+    private String[] sortedTerms;
+    private int sortedCount;
+    private WordOffsets offsets; // null unless asked to keep them
+
+    // scratch for addDocument(CharSequence): the doc's tokens in order, per-term counts, and
+    // the positions regrouped by term
+    private final Tokenizer tokenizer = new Tokenizer();
+    private final Tokenizer.TokenConsumer countToken =
+        (buffer, length) -> countTerm(dictionary.add(buffer, length), tokenizer.position());
+    private int[] pendingFreqs = new int[16];
+    private int[] pendingEnds = new int[16];
+    private int[] pendingTerms = new int[16];
+    private int[] tokenTerms = new int[16];
+    private int[] tokenPositions = new int[16];
+    private int[] groupedPositions = new int[16];
+    private int pendingCount = 0;
+    private int pendingLength = 0;
+
+    InvertedIndex() {
+        this(false);
+    }
+
+    /** withOffsets also keeps where every word of every doc is in its text, for highlighting */
+    InvertedIndex(boolean withOffsets) {
+        offsets = withOffsets ? new WordOffsets() : null;
+    }
+
+    boolean hasOffsets() {
+        return offsets != null;
+    }
+
+    void clear() {
+        postings.clear();
+        dictionary.clear();
+        if (offsets != null) offsets = new WordOffsets();
+        Arrays.fill(byTermId, null);
+        termTrie = null;
+        docLengths = new int[16];
+        docCount = 0;
+        totalLength = 0;
+    }
+
+    void startDocument(int docId, int length) {
+        if (docId >= docLengths.length) {
+            docLengths = Arrays.copyOf(docLengths, Math.max(docLengths.length * 2, docId + 1));
+        }
+        docLengths[docId] = length;
+        docCount = Math.max(docCount, docId + 1);
+        totalLength += length;
+    }
+
+    /** one term's occurrences in a started doc, positions in increasing order */
+    void addPosting(String term, int docId, int[] positions) {
+        postingsFor(dictionary.add(term)).add(docId, positions, 0, positions.length, docLengths[docId]);
+    }
+
+    /** a doc already analyzed into term -> positions, see Analyzer.termPositions */
+    void addDocument(int docId, Map<String, int[]> termPositions) {
+        int length = 0;
+        for (int[] positions : termPositions.values()) {
+            length += positions.length;
+        }
+        startDocument(docId, length);
+        for (Map.Entry<String, int[]> entry : termPositions.entrySet()) {
+            addPosting(entry.getKey(), docId, entry.getValue());
+        }
+    }
+
+    /**
+     * the allocation-free path: tokens go straight from the text to term ids and are
+     * counted in reusable arrays, then the positions are bucketed by term with a counting
+     * sort. only new terms and postings growth allocate
+     */
+    void addDocument(int docId, CharSequence text) {
+        pendingCount = 0;
+        pendingLength = 0;
+        tokenizer.tokenize(text, countToken);
+        startDocument(docId, pendingLength);
+        putOffsets(docId, tokenizer.offsets(), tokenizer.wordCount());
+        if (groupedPositions.length < pendingLength) {
+            groupedPositions = new int[tokenPositions.length];
+        }
+        int end = 0;
+        for (int i = 0; i < pendingCount; i++) {
+            int termId = pendingTerms[i];
+            pendingEnds[termId] = end;
+            end += pendingFreqs[termId];
+        }
+        for (int i = 0; i < pendingLength; i++) {
+            groupedPositions[pendingEnds[tokenTerms[i]]++] = tokenPositions[i];
+        }
+        for (int i = 0; i < pendingCount; i++) {
+            int termId = pendingTerms[i];
+            int freq = pendingFreqs[termId];
+            postingsFor(termId).add(docId, groupedPositions, pendingEnds[termId] - freq, freq, pendingLength);
+            pendingFreqs[termId] = 0;
+        }
+    }
+
+    /** the doc's word offsets as pairs in offsets[0, 2 * words), dropped unless the index keeps them */
+    void putOffsets(int docId, int[] offsets, int words) {
+        if (this.offsets != null) this.offsets.add(docId, offsets, words);
+    }
+
+    @Override
+    public int[] wordOffsets(int docId) {
+        return offsets == null ? null : offsets.get(docId);
+    }
+
+    private void countTerm(int termId, int position) {
+        if (termId >= pendingFreqs.length) {
+            int capacity = Math.max(pendingFreqs.length * 2, termId + 1);
+            pendingFreqs = Arrays.copyOf(pendingFreqs, capacity);
+            pendingEnds = Arrays.copyOf(pendingEnds, capacity);
+        }
+        if (pendingFreqs[termId]++ == 0) {
+            if (pendingCount == pendingTerms.length) {
+                pendingTerms = Arrays.copyOf(pendingTerms, pendingCount * 2);
+            }
+            pendingTerms[pendingCount++] = termId;
+        }
+        if (pendingLength == tokenTerms.length) {
+            tokenTerms = Arrays.copyOf(tokenTerms, pendingLength * 2);
+            tokenPositions = Arrays.copyOf(tokenPositions, pendingLength * 2);
+        }
+        tokenTerms[pendingLength] = termId;
+        tokenPositions[pendingLength] = position;
+        pendingLength++;
+    }
+
+    /**
+     * rough heap footprint: postings, dictionary, doc lengths and a map entry per term.
+     * walks every term, so call it every so often rather than per doc
+     */
+    long ramBytesUsed() {
+        long bytes = dictionary.ramBytesUsed() + 4L * docLengths.length + 8L * byTermId.length
+                     + 8L * pendingFreqs.length + 12L * tokenTerms.length + 48L * postings.size()
+                     + (offsets == null ? 0 : offsets.ramBytesUsed());
+        for (int termId = 0; termId < dictionary.size(); termId++) {
+            if (byTermId[termId] != null) bytes += byTermId[termId].sizeInBytes();
+        }
+        return bytes;
+    }
+
+    private PostingsList postingsFor(int termId) {
+        if (termId >= byTermId.length) {
+            byTermId = Arrays.copyOf(byTermId, Math.max(byTermId.length * 2, termId + 1));
+        }
+        PostingsList list = byTermId[termId];
+        if (list == null) {
+            list = new PostingsList();
+            byTermId[termId] = list;
+            String term = dictionary.term(termId);
+            postings.put(term, list);
+            termAdded(term);
+        }
+        return list;
+    }
+
+    /** term's place in sorted order, -1 if it isn't in the index */
+    int ord(String term) {
+        if (sortedTerms == null) {
+            sortedTerms = postings.keySet().toArray(new String[0]);
+            Arrays.sort(sortedTerms);
+            sortedCount = sortedTerms.length;
+        }
+        int ord = Arrays.binarySearch(sortedTerms, 0, sortedCount, term);
+        return ord >= 0 ? ord : -1;
+    }
+
+    private void termAdded(String term) {
+        if (sortedTerms == null) return;
+        int ord = -Arrays.binarySearch(sortedTerms, 0, sortedCount, term) - 1;
+        if (sortedCount == sortedTerms.length) sortedTerms = Arrays.copyOf(sortedTerms, Math.max(16, sortedCount * 2));
+        System.arraycopy(sortedTerms, ord, sortedTerms, ord + 1, sortedCount - ord);
+        sortedTerms[ord] = term;
+        sortedCount++;
+    }
+
+    @Override
+    public PostingsList postings(String term) {
+        return postings.get(term);
+    }
+
+    /**
+     * trims every list and keeps dense terms' docs as bitmaps, see PostingsList.indexDocIdSet.
+     * for an index filled a posting at a time, once the last doc is in
+     */
+    void finish() {
+        for (PostingsList list : postings.values()) {
+            list.trim();
+            list.indexDocIdSet();
+        }
+        if (sortedTerms != null) {
+            termTrie = TermTrie.build(Arrays.copyOf(sortedTerms, sortedCount));
+            sortedTerms = null;
+        }
+    }
+
+    /** installs a finished postings list, used when merging segments */
+    void putPostings(String term, PostingsList list) {
+        list.indexDocIdSet();
+        int termId = dictionary.add(term);
+        if (termId >= byTermId.length) {
+            byTermId = Arrays.copyOf(byTermId, Math.max(byTermId.length * 2, termId + 1));
+        }
+        byTermId[termId] = list;
+        postings.put(term, list);
+        termAdded(term);
+    }
+
+    @Override
+    public int termCount() {
+        return postings.size();
+    }
+
+    @Override
+    public Iterator<String> sortedTermIterator(String from) {
+        if (sortedTerms != null) {
+            int ord = Arrays.binarySearch(sortedTerms, 0, sortedCount, from);
+            return sortedTermIterator(ord >= 0 ? ord : -ord - 1);
+        }
+        TermTrie trie = termTrie();
+        return trie.iterator(trie.ceilOrd(from));
+    }
+
+    @Override
+    public Iterator<String> sortedTermIterator(int fromOrd) {
+        if (sortedTerms != null) {
+            // only kept while terms come in, and those come from the thread reading them
+            return Arrays.asList(sortedTerms).subList(Math.min(fromOrd, sortedCount), sortedCount).iterator();
+        }
+        return termTrie().iterator(fromOrd);
+    }
+
+    /**
+     * the terms as a sorted trie. terms are only ever added, so it's only rebuilt once new ones
+     * have come in since the last call, not on every repaint. a published index is read by several
+     * threads at once, two of them racing to build it just both build the same all-final trie
+     */
+    TermTrie termTrie() {
+        TermTrie trie = termTrie;
+        if (trie == null || trie.size() != postings.size()) {
+            String[] terms;
+            if (sortedTerms != null) {
+                terms = Arrays.copyOf(sortedTerms, sortedCount);
+            } else {
+                terms = postings.keySet().toArray(new String[0]);
+                Arrays.sort(terms);
+            }
+            trie = TermTrie.build(terms);
+            termTrie = trie;
+        }
+        return trie;
+    }
+
+    Map<String, PostingsList> terms() {
+        return postings;
+    }
+
+    @Override
+    public int docCount() {
+        return docCount;
+    }
+
+    @Override
+    public int docLength(int docId) {
+        return docLengths[docId];
+    }
+
+    @Override
+    public float avgDocLength() {
+        return docCount == 0 ? 0 : (float) totalLength / docCount;
+    }
+}
+
+/**
+ * where each word of each doc starts and ends in its text, by word position with stop words
+ * counted, so the positions in the postings lead straight to the chars. kept apart from the
+ * postings because only highlighting reads it, and then just for the docs on screen. each word is
+ * two vbytes, the gap since the last word's end and its length
+ */
+final class WordOffsets {
+    private byte[] bytes = new byte[64];
+    private int length = 0;
+    private int[] docStarts = new int[16]; // where each doc's words begin in bytes, + 1 so 0 is none
+    private int[] wordCounts = new int[16];
+
+    /** the doc's words as start, end pairs in offsets[0, 2 * words) */
+    void add(int docId, int[] offsets, int words) {
+        if (docId >= docStarts.length) {
+            int capacity = Math.max(docStarts.length * 2, docId + 1);
+            docStarts = Arrays.copyOf(docStarts, capacity);
+            wordCounts = Arrays.copyOf(wordCounts, capacity);
+        }
+        docStarts[docId] = length + 1;
+        wordCounts[docId] = words;
+        int last = 0;
+        for (int w = 0; w < words; w++) {
+            writeVInt(offsets[2 * w] - last);
+            writeVInt(offsets[2 * w + 1] - offsets[2 * w]);
+            last = offsets[2 * w + 1];
+        }
+    }
+
+    /** start, end pairs by position, null if the doc has none stored */
+    int[] get(int docId) {
+        if (docId >= docStarts.length || docStarts[docId] == 0) return null;
+        int[] offsets = new int[2 * wordCounts[docId]];
+        int pos = docStarts[docId] - 1;
+        int last = 0;
+        for (int w = 0; w < offsets.length; w += 2) {
+            int value = 0;
+            for (int i = 0; i < 2; i++) {
+                int b = bytes[pos++];
+                value = b & 0x7F;
+                for (int shift = 7; b < 0; shift += 7) {
+                    b = bytes[pos++];
+                    value |= (b & 0x7F) << shift;
+                }
+                offsets[w + i] = i == 0 ? last + value : offsets[w] + value;
+            }
+            last = offsets[w + 1];
+        }
+        return offsets;
+    }
+
+    /** the offsets of a text no index kept them for, worked out by tokenizing it */
+    static int[] of(String text) {
+        Tokenizer tokenizer = new Tokenizer();
+        tokenizer.tokenize(text, (buffer, length) -> {});
+        return Arrays.copyOf(tokenizer.offsets(), 2 * tokenizer.wordCount());
+    }
+
+    long ramBytesUsed() {
+        return 16 + bytes.length + 8L * docStarts.length;
+    }
+
+    private void writeVInt(int value) {
+        if (length + 5 > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 5));
+        }
+        while ((value & ~0x7F) != 0) {
+            bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[length++] = (byte) value;
+    }
+}
+
+/**
+ * the text of every doc, packed into blocks of about BLOCK_SIZE bytes of utf-8 that are each
+ * compressed with BlockCodec. a block is its doc count and doc lengths as vbytes, then the docs.
+ * a small index of each block's first doc and offset finds the block a doc is in, and the last
+ * CACHED_BLOCKS blocks read stay decompressed, so only docs that are shown or snippeted ever get
+ * decompressed and scrolling through a screenful costs a block or two. indexing reads the docs
+ * through forEach instead, a block at a time without going through the cache.
+ *
+ * the file it's saved as:
+ *
+ *   header   magic, version
+ *   blocks   compressed, back to back
+ *   index    first doc, uncompressed length and file offset of each block
+ *   footer   index start, doc count, block count, source fingerprint, version, magic
+ *
+ * safe for any number of reader threads
+ */
+final class DocStore implements java.io.Closeable {
+    static final int MAGIC = 0x46545344; // "FTSD"
+    static final int FOOTER_MAGIC = 0x44535446;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int FOOTER_SIZE = 32;
+    static final int INDEX_ENTRY_SIZE = 16;
+    static final int BLOCK_SIZE = 16 << 10;
+    static final int CACHED_BLOCKS = 16;
+
+    private final java.nio.file.Path path; // null if the blocks are in bytes
+    private final java.nio.channels.FileChannel channel;
+    private final byte[] bytes;
+    private final int docCount;
+    private final long fingerprint;
+    private final int[] firstDocs;  // of each block, then docCount
+    private final int[] rawLengths; // of each block decompressed
+    private final long[] offsets;   // of each block, then where the index starts
+    private final Map<Integer, Block> cache = new LinkedHashMap<>(CACHED_BLOCKS * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+    private final java.util.concurrent.atomic.LongAdder hits = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder decompressed = new java.util.concurrent.atomic.LongAdder();
+
+    /** a decompressed block: its docs are raw[starts[i], starts[i + 1]) */
+    private static final class Block {
+        final byte[] raw;
+        final int[] starts;
+
+        Block(byte[] raw, int[] starts) {
+            this.raw = raw;
+            this.starts = starts;
+        }
+    }
+
+    private DocStore(java.nio.file.Path path, java.nio.channels.FileChannel channel, byte[] bytes, long size)
+            throws java.io.IOException {
+        this.path = path;
+        this.channel = channel;
+        this.bytes = bytes;
+        String name = path == null ? "doc store" : path.toString();
+        if (size < HEADER_SIZE + FOOTER_SIZE) {
+            throw new java.io.IOException(name + ": too short to be a doc store (" + size + " bytes)");
+        }
+        java.nio.ByteBuffer header = read(0, HEADER_SIZE);
+        if (header.getInt(0) != MAGIC) {
+            throw new java.io.IOException(name + ": not a doc store");
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new java.io.IOException(name + ": doc store version " + header.getInt(4) + ", expected " + VERSION);
+        }
+        java.nio.ByteBuffer footer = read(size - FOOTER_SIZE, FOOTER_SIZE);
+        if (footer.getInt(28) != FOOTER_MAGIC) {
+            throw new java.io.IOException(name + ": missing footer, file is truncated or not a doc store");
+        }
+        long indexStart = footer.getLong(0);
+        docCount = footer.getInt(8);
+        int blockCount = footer.getInt(12);
+        fingerprint = footer.getLong(16);
+        if (blockCount < 0 || docCount < 0 || indexStart < HEADER_SIZE
+            || indexStart + (long) blockCount * INDEX_ENTRY_SIZE != size - FOOTER_SIZE) {
+            throw new java.io.IOException(name + ": corrupt footer");
+        }
+        java.nio.ByteBuffer index = read(indexStart, blockCount * INDEX_ENTRY_SIZE);
+        firstDocs = new int[blockCount + 1];
+        rawLengths = new int[blockCount];
+        offsets = new long[blockCount + 1];
+        for (int b = 0; b < blockCount; b++) {
+            firstDocs[b] = index.getInt(b * INDEX_ENTRY_SIZE);
+            rawLengths[b] = index.getInt(b * INDEX_ENTRY_SIZE + 4);
+            offsets[b] = index.getLong(b * INDEX_ENTRY_SIZE + 8);
+            if (firstDocs[b] < (b == 0 ? 0 : firstDocs[b - 1] + 1) || offsets[b] < (b == 0 ? HEADER_SIZE : offsets[b - 1])) {
+                throw new java.io.IOException(name + ": corrupt block index");
+            }
+        }
+        firstDocs[blockCount] = docCount;
+        offsets[blockCount] = indexStart;
+        if (blockCount > 0 ? firstDocs[blockCount - 1] >= docCount || offsets[blockCount - 1] > indexStart : docCount > 0) {
+            throw new java.io.IOException(name + ": corrupt block index");
+        }
+    }
+
+    /** the docs compressed in memory, e.g. a sample or the built-in docs */
+    static DocStore of(String[] docs) {
+        try (Writer writer = new Writer(null)) {
+            for (String doc : docs) {
+                writer.add(doc);
+            }
+            return writer.finish();
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e); // nothing touches a file
+        }
+    }
+
+    /** opens a store written by a Writer. blocks are read from the file when they're first asked for */
+    static DocStore open(java.nio.file.Path path) throws java.io.IOException {
+        java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(path);
+        try {
+            return new DocStore(path, channel, null, channel.size());
+        } catch (java.io.IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    int size() {
+        return docCount;
+    }
+
+    /** the SegmentFile fingerprint of the docs, matching that of an index built from them, without reading them */
+    long fingerprint() {
+        return fingerprint;
+    }
+
+    /** the doc's text, decompressing its block unless it's one of the last few used */
+    String get(int docId) {
+        Objects.checkIndex(docId, docCount);
+        int block = blockOf(docId);
+        Block cached;
+        synchronized (cache) {
+            cached = cache.get(block);
+        }
+        if (cached != null) {
+            hits.increment();
+        } else {
+            // two threads may both decompress it, that's cheaper than holding the lock meanwhile
+            cached = decompress(block);
+            decompressed.increment();
+            synchronized (cache) {
+                cache.put(block, cached);
+            }
+        }
+        int i = docId - firstDocs[block];
+        return new String(cached.raw, cached.starts[i], cached.starts[i + 1] - cached.starts[i],
+                          java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    /** hands docs [from, to) to action in order with their ids, each block decompressed once and not cached */
+    void forEach(int from, int to, java.util.function.ObjIntConsumer<String> action) {
+        Objects.checkFromToIndex(from, to, docCount);
+        for (int block = from < to ? blockOf(from) : firstDocs.length - 1; firstDocs[block] < to; block++) {
+            Block b = decompress(block);
+            for (int doc = Math.max(from, firstDocs[block]); doc < Math.min(to, firstDocs[block + 1]); doc++) {
+                int i = doc - firstDocs[block];
+                action.accept(new String(b.raw, b.starts[i], b.starts[i + 1] - b.starts[i],
+                                         java.nio.charset.StandardCharsets.UTF_8), doc);
+            }
+        }
+    }
+
+    private int blockOf(int docId) {
+        int found = Arrays.binarySearch(firstDocs, 0, firstDocs.length - 1, docId);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    private Block decompress(int block) {
+        int compressedLength = (int) (offsets[block + 1] - offsets[block]);
+        byte[] raw = new byte[rawLengths[block]];
+        if (bytes != null) {
+            BlockCodec.decompress(bytes, (int) offsets[block], compressedLength, raw);
+        } else {
+            try {
+                java.nio.ByteBuffer compressed = read(offsets[block], compressedLength);
+                BlockCodec.decompress(compressed.array(), 0, compressedLength, raw);
+            } catch (java.io.IOException e) {
+                throw new java.io.UncheckedIOException(path + ": couldn't read block " + block, e);
+            }
+        }
+        int docs = firstDocs[block + 1] - firstDocs[block];
+        int[] starts = new int[docs + 1];
+        int pos = 0;
+        int[] lengths = new int[docs];
+        for (int i = 0; i < docs + 1; i++) {
+            int b = raw[pos++];
+            int value = b & 0x7F;
+            for (int shift = 7; b < 0; shift += 7) {
+                b = raw[pos++];
+                value |= (b & 0x7F) << shift;
+            }
+            if (i == 0) {
+                if (value != docs) throw new IllegalStateException("block " + block + " is corrupt");
+            } else {
+                lengths[i - 1] = value;
+            }
+        }
+        starts[0] = pos;
+        for (int i = 0; i < docs; i++) {
+            starts[i + 1] = starts[i] + lengths[i];
+        }
+        if (starts[docs] != raw.length) throw new IllegalStateException("block " + block + " is corrupt");
+        return new Block(raw, starts);
+    }
+
+    private java.nio.ByteBuffer read(long position, int length) throws java.io.IOException {
+        if (bytes != null) {
+            return java.nio.ByteBuffer.wrap(Arrays.copyOfRange(bytes, (int) position, (int) position + length));
+        }
+        java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new java.io.EOFException(path + ": ends early");
+            }
+        }
+        return buffer;
+    }
+
+    /** compressed size on disk or heap */
+    long compressedBytes() {
+        return offsets[offsets.length - 1] - HEADER_SIZE;
+    }
+
+    long uncompressedBytes() {
+        long total = 0;
+        for (int length : rawLengths) {
+            total += length;
+        }
+        return total;
+    }
+
+    long ramBytesUsed() {
+        long cached = 0;
+        synchronized (cache) {
+            for (Block block : cache.values()) {
+                cached += block.raw.length + 4L * block.starts.length;
+            }
+        }
+        return (bytes == null ? 0 : bytes.length) + 16L * firstDocs.length + cached;
+    }
+
+    String stats() {
+        return String.format("%,d docs in %,d blocks, %.1f MB of text in %.1f MB, %d hits / %d blocks decompressed",
+                             docCount, rawLengths.length, uncompressedBytes() / 1e6, compressedBytes() / 1e6,
+                             hits.sum(), decompressed.sum());
+    }
+
+    @Override
+    public void close() throws java.io.IOException {
+        if (channel != null) channel.close();
+    }
+
+    /**
+     * writes docs in id order into blocks, either to a file (finished next to it and renamed over,
+     * like SegmentWriter) or to memory when path is null
+     */
+    static final class Writer implements java.io.Closeable {
+        private final java.nio.file.Path path;
+        private final java.nio.file.Path tmp;
+        private final java.io.ByteArrayOutputStream memory;
+        private final java.io.DataOutputStream out;
+        private final java.io.ByteArrayOutputStream indexBytes = new java.io.ByteArrayOutputStream();
+        private final java.io.DataOutputStream index = new java.io.DataOutputStream(indexBytes);
+        private byte[] text = new byte[BLOCK_SIZE * 2];
+        private int textLength = 0;
+        private int[] lengths = new int[64];
+        private int blockDocs = 0;
+        private byte[] compressed = new byte[0];
+        private long offset = HEADER_SIZE;
+        private int docCount = 0;
+        private int blockCount = 0;
+        private long fingerprint = 0;
+        private boolean finished = false;
+
+        Writer(java.nio.file.Path path) throws java.io.IOException {
+            this.path = path;
+            if (path == null) {
+                tmp = null;
+                memory = new java.io.ByteArrayOutputStream();
+                out = new java.io.DataOutputStream(memory);
+            } else {
+                tmp = path.resolveSibling(path.getFileName() + ".tmp");
+                memory = null;
+                out = new java.io.DataOutputStream(new java.io.BufferedOutputStream(java.nio.file.Files.newOutputStream(tmp), 1 << 16));
+            }
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        void add(CharSequence doc) throws java.io.IOException {
+            byte[] utf8 = doc.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            if (textLength + utf8.length > text.length) {
+                text = Arrays.copyOf(text, Math.max(text.length * 2, textLength + utf8.length));
+            }
+            System.arraycopy(utf8, 0, text, textLength, utf8.length);
+            textLength += utf8.length;
+            if (blockDocs == lengths.length) {
+                lengths = Arrays.copyOf(lengths, blockDocs * 2);
+            }
+            lengths[blockDocs++] = utf8.length;
+            fingerprint = SegmentFile.fingerprint(fingerprint, doc);
+            docCount++;
+            if (textLength >= BLOCK_SIZE) {
+                flushBlock();
+            }
+        }
+
+        private void flushBlock() throws java.io.IOException {
+            if (blockDocs == 0) return;
+            java.io.ByteArrayOutputStream raw = new java.io.ByteArrayOutputStream(textLength + 5 * (blockDocs + 1));
+            writeVInt(raw, blockDocs);
+            for (int i = 0; i < blockDocs; i++) {
+                writeVInt(raw, lengths[i]);
+            }
+            raw.write(text, 0, textLength);
+            byte[] block = raw.toByteArray();
+            if (compressed.length < BlockCodec.maxCompressedLength(block.length)) {
+                compressed = new byte[BlockCodec.maxCompressedLength(block.length)];
+            }
+            int length = BlockCodec.compress(block, block.length, compressed);
+            out.write(compressed, 0, length);
+            index.writeInt(docCount - blockDocs);
+            index.writeInt(block.length);
+            index.writeLong(offset);
+            offset += length;
+            blockCount++;
+            blockDocs = 0;
+            textLength = 0;
+        }
+
+        private static void writeVInt(java.io.ByteArrayOutputStream out, int value) {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        /** writes the last block, the index and the footer, and opens what was written */
+        DocStore finish() throws java.io.IOException {
+            flushBlock();
+            indexBytes.writeTo(out);
+            out.writeLong(offset);
+            out.writeInt(docCount);
+            out.writeInt(blockCount);
+            out.writeLong(fingerprint * 31 + docCount);
+            out.writeInt(VERSION);
+            out.writeInt(FOOTER_MAGIC);
+            out.close();
+            finished = true;
+            if (path == null) {
+                byte[] bytes = memory.toByteArray();
+                return new DocStore(null, null, bytes, bytes.length);
+            }
+            java.nio.file.Files.move(tmp, path, java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                                     java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+            return open(path);
+        }
+
+        @Override
+        public void close() throws java.io.IOException {
+            if (finished) return;
+            out.close();
+            if (tmp != null) java.nio.file.Files.deleteIfExists(tmp);
+        }
+    }
+}
+
+/**
+ * a compressor in the style of lz4's block format: the input is a run of sequences, each a token
+ * byte (literal count in the high four bits, match length - 4 in the low four, 15 meaning more
+ * length bytes follow), the literals, then a two byte little endian offset back to where the match
+ * is copied from. matches are found through a hash table of the last position each 4 byte prefix
+ * was seen at, so compressing is one pass with no search, and decompressing is just copies. the
+ * last 5 bytes are always literals, and the last match starts at least 12 bytes from the end
+ */
+final class BlockCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_START_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 12;
+
+    private BlockCodec() {}
+
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /** compresses src[0, length) into dst, which needs maxCompressedLength(length) room, and returns the bytes used */
+    static int compress(byte[] src, int length, byte[] dst) {
+        int[] table = new int[1 << HASH_BITS];
+        int anchor = 0;
+        int out = 0;
+        int pos = 1;
+        int matchLimit = length - LAST_LITERALS;
+        while (pos < length - MATCH_START_LIMIT) {
+            int sequence = readInt(src, pos);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            int ref = table[hash];
+            table[hash] = pos;
+            if (pos - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                // step further the longer nothing has matched, so incompressible text is quick to skip
+                pos += 1 + ((pos - anchor) >>> 6);
+                continue;
+            }
+            while (pos > anchor && ref > 0 && src[pos - 1] == src[ref - 1]) {
+                pos--;
+                ref--;
+            }
+            int matchLength = MIN_MATCH;
+            while (pos + matchLength < matchLimit && src[pos + matchLength] == src[ref + matchLength]) {
+                matchLength++;
+            }
+            int token = out++;
+            out = writeLiterals(src, anchor, pos - anchor, dst, token, out);
+            dst[out++] = (byte) (pos - ref);
+            dst[out++] = (byte) ((pos - ref) >>> 8);
+            int extra = matchLength - MIN_MATCH;
+            dst[token] |= (byte) Math.min(extra, 15);
+            if (extra >= 15) out = writeLength(dst, out, extra - 15);
+            pos += matchLength;
+            anchor = pos;
+        }
+        return writeLiterals(src, anchor, length - anchor, dst, out, out + 1);
+    }
+
+    /** decompresses src[offset, offset + length) into all of dst, which is exactly the original length */
+    static void decompress(byte[] src, int offset, int length, byte[] dst) {
+        int in = offset;
+        int end = offset + length;
+        int out = 0;
+        try {
+            while (true) {
+                int token = src[in++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    for (int b = 255; b == 255; literals += b) b = src[in++] & 0xFF;
+                }
+                System.arraycopy(src, in, dst, out, literals);
+                in += literals;
+                out += literals;
+                if (in >= end) break;
+                int distance = (src[in++] & 0xFF) | (src[in++] & 0xFF) << 8;
+                int matchLength = token & 15;
+                if (matchLength == 15) {
+                    for (int b = 255; b == 255; matchLength += b) b = src[in++] & 0xFF;
+                }
+                matchLength += MIN_MATCH;
+                int from = out - distance;
+                if (distance == 0 || from < 0) throw new IllegalStateException("corrupt block: bad match offset");
+                if (distance >= matchLength) {
+                    System.arraycopy(dst, from, dst, out, matchLength);
+                } else {
+                    // the match overlaps what it's writing, e.g. a run of one byte
+                    for (int i = 0; i < matchLength; i++) dst[out + i] = dst[from + i];
+                }
+                out += matchLength;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalStateException("corrupt block: runs past its end", e);
+        }
+        if (out != dst.length || in != end) throw new IllegalStateException("corrupt block: wrong length");
+    }
+
+    private static int writeLiterals(byte[] src, int from, int count, byte[] dst, int token, int out) {
+        dst[token] = (byte) (Math.min(count, 15) << 4);
+        if (count >= 15) out = writeLength(dst, out, count - 15);
+        System.arraycopy(src, from, dst, out, count);
+        return out + count;
+    }
+
+    private static int writeLength(byte[] dst, int out, int length) {
+        for (; length >= 255; length -= 255) dst[out++] = (byte) 255;
+        dst[out++] = (byte) length;
+        return out;
+    }
+
+    private static int readInt(byte[] bytes, int pos) {
+        return (bytes[pos] & 0xFF) | (bytes[pos + 1] & 0xFF) << 8 | (bytes[pos + 2] & 0xFF) << 16 | bytes[pos + 3] << 24;
+    }
+}
+
+/**
+ * the steps of building an index one doc at a time, for the animation to play back. they're
+ * generated as they're asked for rather than all up front, and next() applies each step to the
+ * index as it hands it out, so what's on screen is exactly what has been indexed so far.
+ * an event is a long: the kind in the top two bits, then the doc id, then the term's slot in
+ * that doc's first-seen term order
+ */
+final class IndexBuildEvents {
+    static final int START_DOC = 0;
+    static final int ADD_TERM = 1;
+    static final int DONE = 2;
+
+    private final DocStore docs;
+    private final InvertedIndex index;
+    private int doc = -1;
+    // the current doc analyzed once, its terms in first-seen order with their positions
+    private String[] terms = new String[0];
+    private int[][] positions = new int[0][];
+    private int nextTerm = 0;
+    private final Tokenizer tokenizer = new Tokenizer();
+
+    IndexBuildEvents(DocStore docs, InvertedIndex index) {
+        this.docs = docs;
+        this.index = index;
+    }
+
+    static long pack(int kind, int doc, int slot) {
+        return (long) kind << 62 | (long) doc << 31 | slot;
+    }
+
+    static int kind(long event) {
+        return (int) (event >>> 62);
+    }
+
+    static int doc(long event) {
+        return (int) (event >>> 31) & Integer.MAX_VALUE;
+    }
+
+    static int slot(long event) {
+        return (int) event & Integer.MAX_VALUE;
+    }
+
+    /** the next step, already applied to the index. DONE once every doc is in, and from then on */
+    long next() {
+        if (doc >= 0 && nextTerm < terms.length) {
+            index.addPosting(terms[nextTerm], doc, positions[nextTerm]);
+            return pack(ADD_TERM, doc, nextTerm++);
+        }
+        if (doc + 1 >= docs.size()) {
+            doc = docs.size();
+            terms = new String[0];
+            return pack(DONE, docs.size(), 0);
+        }
+        doc++;
+        Map<String, int[]> termPositions = Analyzer.termPositions(docs.get(doc), tokenizer);
+        terms = termPositions.keySet().toArray(new String[0]);
+        positions = termPositions.values().toArray(new int[0][]);
+        nextTerm = 0;
+        int length = 0;
+        for (int[] termPositionsInDoc : positions) {
+            length += termPositionsInDoc.length;
+        }
+        index.startDocument(doc, length);
+        index.putOffsets(doc, tokenizer.offsets(), tokenizer.wordCount());
+        return pack(START_DOC, doc, 0);
+    }
+
+    /**
+     * indexes the rest of the current doc and everything before target without playing them,
+     * the next event starts target
+     */
+    void skipTo(int target) {
+        while (doc >= 0 && nextTerm < terms.length && doc < docs.size()) {
+            next();
+        }
+        int from = doc + 1;
+        int to = Math.max(from, Math.min(target, docs.size()));
+        docs.forEach(from, to, (text, d) -> index.addDocument(d, text));
+        doc = Math.max(doc, to - 1);
+        terms = new String[0];
+        nextTerm = 0;
+    }
+
+    /** the terms of the doc being played, in the order they're added */
+    String[] currentTerms() {
+        return terms;
+    }
+
+    /** the term an ADD_TERM event added, only valid while its doc is the current one */
+    String term(long event) {
+        return terms[slot(event)];
+    }
+
+    /** how much of the build has been played or skipped, 0 to 1 */
+    double progress() {
+        if (docs.size() == 0 || doc >= docs.size()) return 1;
+        double inDoc = terms.length == 0 ? 1 : (double) nextTerm / terms.length;
+        return Math.max(0, doc + inDoc) / docs.size();
+    }
+}
+
+/**
+ * builds an InvertedIndex on a fork-join pool. the doc range is split in half until the pieces are
+ * small enough, each leaf analyzes its docs into a private segment (local doc ids, no shared state),
+ * and then the segments are combined with one k-way merge over their sorted term dictionaries
+ */
+final class ParallelIndexBuilder {
+    private final ForkJoinPool pool;
+    private final boolean withOffsets;
+    private long lastBuildNanos;
+    private int lastDocCount;
+    private int lastSegmentCount;
+
+    ParallelIndexBuilder(ForkJoinPool pool) {
+        this(pool, false);
+    }
+
+    /** withOffsets keeps word offsets in the index for highlighting, see WordOffsets */
+    ParallelIndexBuilder(ForkJoinPool pool, boolean withOffsets) {
+        this.pool = pool;
+        this.withOffsets = withOffsets;
+    }
+
+    InvertedIndex build(String[] docs) {
+        return build(docs.length, (from, to, action) -> {
+            for (int doc = from; doc < to; doc++) {
+                action.accept(docs[doc], doc);
+            }
+        });
+    }
+
+    /** each segment decompresses just the blocks its docs are in, see DocStore.forEach */
+    InvertedIndex build(DocStore docs) {
+        return build(docs.size(), docs::forEach);
+    }
+
+    /** hands docs [from, to) to action in order, with their ids */
+    interface DocRange {
+        void forEach(int from, int to, java.util.function.ObjIntConsumer<String> action);
+    }
+
+    private InvertedIndex build(int docCount, DocRange docs) {
+        long start = System.nanoTime();
+        // a few segments per thread so work stealing can even out uneven docs
+        int segmentSize = Math.max(64, (docCount + pool.getParallelism() * 4 - 1) / (pool.getParallelism() * 4));
+        int segmentCount = (docCount + segmentSize - 1) / segmentSize;
+        InvertedIndex[] segments = new InvertedIndex[segmentCount];
+        int[] docBases = new int[segmentCount];
+        pool.invoke(new SegmentTask(docs, docCount, segments, docBases, 0, segmentCount, segmentSize, withOffsets));
+        InvertedIndex merged = merge(segments, docBases);
+
+        lastBuildNanos = System.nanoTime() - start;
+        lastDocCount = docCount;
+        lastSegmentCount = segmentCount;
+        return merged;
+    }
+
+    double docsPerSecond() {
+        return lastBuildNanos == 0 ? 0 : lastDocCount * 1e9 / lastBuildNanos;
+    }
+
+    int segmentCount() {
+        return lastSegmentCount;
+    }
+
+    /** builds segments [from, to), splitting in half until there is just one left */
+    @SuppressWarnings("serial") // RecursiveAction is Serializable, but a task never leaves its pool
+    private static final class SegmentTask extends RecursiveAction {
+        private final DocRange docs;
+        private final int docCount;
+        private final InvertedIndex[] segments;
+        private final int[] docBases;
+        private final int from;
+        private final int to;
+        private final int segmentSize;
+        private final boolean withOffsets;
+
+        SegmentTask(DocRange docs, int docCount, InvertedIndex[] segments, int[] docBases, int from, int to,
+                    int segmentSize, boolean withOffsets) {
+            this.docs = docs;
+            this.docCount = docCount;
+            this.segments = segments;
+            this.docBases = docBases;
+            this.from = from;
+            this.to = to;
+            this.segmentSize = segmentSize;
+            this.withOffsets = withOffsets;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new SegmentTask(docs, docCount, segments, docBases, from, mid, segmentSize, withOffsets),
+                          new SegmentTask(docs, docCount, segments, docBases, mid, to, segmentSize, withOffsets));
+                return;
+            }
+            int docBase = from * segmentSize;
+            int end = Math.min(docCount, docBase + segmentSize);
+            InvertedIndex segment = new InvertedIndex(withOffsets);
+            docs.forEach(docBase, end, (text, doc) -> segment.addDocument(doc - docBase, text));
+            segments[from] = segment;
+            docBases[from] = docBase;
+        }
+    }
+
+    static InvertedIndex merge(InvertedIndex[] segments, int[] docBases) {
+        InvertedIndex merged = new InvertedIndex(segments.length > 0 && segments[0].hasOffsets());
+        for (int s = 0; s < segments.length; s++) {
+            for (int doc = 0; doc < segments[s].docCount(); doc++) {
+                merged.startDocument(docBases[s] + doc, segments[s].docLength(doc));
+                int[] offsets = segments[s].wordOffsets(doc);
+                if (offsets != null) merged.putOffsets(docBases[s] + doc, offsets, offsets.length / 2);
+            }
+        }
+        mergeTerms(segments, docBases, null, merged::putPostings);
+        return merged;
+    }
+
+    /**
+     * k-way merge: a heap of per-segment cursors over sorted terms. for each term the segments
+     * come off the heap in segment order, which is also doc order, so their postings just append.
+     * terms reach the sink in sorted order and only one merged postings list is in memory at a time.
+     * deleted (nullable, per segment) drops those docs; terms left with no docs are skipped
+     */
+    static void mergeTerms(IndexReader[] segments, int[] docBases, BitSet[] deleted,
+                           java.util.function.BiConsumer<String, PostingsList> sink) {
+        PriorityQueue<TermCursor> heap = new PriorityQueue<>();
+        for (int s = 0; s < segments.length; s++) {
+            TermCursor cursor = new TermCursor(s, segments[s].sortedTermIterator());
+            if (cursor.term != null) heap.add(cursor);
+        }
+        while (!heap.isEmpty()) {
+            String term = heap.peek().term;
+            PostingsList list = new PostingsList();
+            while (!heap.isEmpty() && heap.peek().term.equals(term)) {
+                TermCursor cursor = heap.poll();
+                IndexReader segment = segments[cursor.segment];
+                int docBase = docBases[cursor.segment];
+                BitSet dropped = deleted == null ? null : deleted[cursor.segment];
+                Postings postings = segment.postings(term);
+                PostingsIterator it = postings.iterator();
+                for (int doc = it.nextDoc(); doc != DocIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+                    if (dropped != null && dropped.get(doc)) continue;
+                    list.add(docBase + doc, it, postings.hasPositions(), segment.docLength(doc));
+                }
+                if (cursor.next() != null) heap.add(cursor);
+            }
+            if (list.docFreq() == 0) continue;
+            list.trim();
+            sink.accept(term, list);
+        }
+    }
+
+    private static final class TermCursor implements Comparable<TermCursor> {
+        final int segment;
+        final Iterator<String> terms;
+        String term;
+
+        TermCursor(int segment, Iterator<String> terms) {
+            this.segment = segment;
+            this.terms = terms;
+            next();
+        }
+
+        String next() {
+            return term = terms.hasNext() ? terms.next() : null;
+        }
+
+        @Override
+        public int compareTo(TermCursor other) {
+            int cmp = term.compareTo(other.term);
+            return cmp != 0 ? cmp : Integer.compare(segment, other.segment);
+        }
+    }
+}
+
+/**
+ * on-disk segment format, one file per index:
+ *
+ *   header     magic, version, source fingerprint, doc count, term count, total length
+ *   doc lengths  int per doc
+ *   term records fixed 48 bytes per term, sorted by term, so lookups binary search in place
+ *   term chars   utf-16 chars the records point into
+ *   postings     PostingsList.writeTo output per term
+ *   positions    PostingsList.writePositionsTo output per term
+ *   footer     postings start, positions start, crc32 of everything before the postings,
+ *              crc32 of the postings and positions, version, magic
+ *
+ * the reader maps the file and only touches a term's postings when a query asks for them, and
+ * its positions only when a phrase or proximity query does
+ */
+final class SegmentFile {
+    static final int MAGIC = 0x46545349; // "FTSI"
+    static final int FOOTER_MAGIC = 0x49535446;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 48;
+    static final int FOOTER_SIZE = 40;
+
+    private SegmentFile() {}
+
+    /**
+     * folds one more doc into a running fingerprint, which ends up as hash * 31 + doc count. it
+     * changes whenever the source documents do, so an index built from other docs is seen as stale
+     */
+    static long fingerprint(long hash, CharSequence doc) {
+        for (int i = 0, n = doc.length(); i < n; i++) {
+            hash = hash * 1_000_003 + doc.charAt(i);
+        }
+        return hash * 1_000_003 + 0x1_0000; // separator no char can produce
+    }
+
+    static void write(IndexReader index, long fingerprint, java.nio.file.Path path) throws java.io.IOException {
+        try (SegmentWriter writer = new SegmentWriter(path, fingerprint)) {
+            for (int doc = 0; doc < index.docCount(); doc++) {
+                writer.addDocLength(index.docLength(doc));
+            }
+            for (Iterator<String> terms = index.sortedTermIterator(); terms.hasNext(); ) {
+                String term = terms.next();
+                Postings postings = index.postings(term);
+                writer.addTerm(term, postings instanceof PostingsList
+                                     ? (PostingsList) postings : PostingsList.copyOf(postings, index));
+            }
+            writer.finish();
+        }
+    }
+
+    static MappedIndexReader open(java.nio.file.Path path) throws java.io.IOException {
+        return new MappedIndexReader(path);
+    }
+}
+
+/**
+ * streams a SegmentFile out: doc lengths in doc order, then terms in sorted order. doc lengths,
+ * postings and positions are spooled to temp files as they arrive, so only the 48 byte term records
+ * and the term chars stay in memory. finish() assembles the real file next to path and renames it over, so
+ * readers never see half a file
+ */
+final class SegmentWriter implements java.io.Closeable {
+    private final java.nio.file.Path path;
+    private final long fingerprint;
+    private final java.nio.file.Path lengthsFile;
+    private final java.nio.file.Path postingsFile;
+    private final java.nio.file.Path positionsFile;
+    private final java.io.DataOutputStream lengths;
+    private final java.io.DataOutputStream postings;
+    private final java.io.DataOutputStream positions;
+    private final java.io.ByteArrayOutputStream recordBytes = new java.io.ByteArrayOutputStream();
+    private final java.io.DataOutputStream records = new java.io.DataOutputStream(recordBytes);
+    private final java.io.ByteArrayOutputStream charBytes = new java.io.ByteArrayOutputStream();
+    private final java.io.DataOutputStream chars = new java.io.DataOutputStream(charBytes);
+    private int docCount = 0;
+    private long totalLength = 0;
+    private int termCount = 0;
+    private int termChars = 0;
+    private long postingsOffset = 0;
+    private long positionsOffset = 0;
+    private String lastTerm = null;
+    private boolean finished = false;
+
+    SegmentWriter(java.nio.file.Path path, long fingerprint) throws java.io.IOException {
+        this.path = path;
+        this.fingerprint = fingerprint;
+        lengthsFile = path.resolveSibling(path.getFileName() + ".lengths.tmp");
+        postingsFile = path.resolveSibling(path.getFileName() + ".postings.tmp");
+        positionsFile = path.resolveSibling(path.getFileName() + ".positions.tmp");
+        lengths = spool(lengthsFile);
+        postings = spool(postingsFile);
+        positions = spool(positionsFile);
+    }
+
+    private static java.io.DataOutputStream spool(java.nio.file.Path file) throws java.io.IOException {
+        return new java.io.DataOutputStream(new java.io.BufferedOutputStream(java.nio.file.Files.newOutputStream(file), 1 << 16));
+    }
+
+    void addDocLength(int length) throws java.io.IOException {
+        lengths.writeInt(length);
+        docCount++;
+        totalLength += length;
+    }
+
+    void addTerm(String term, PostingsList list) throws java.io.IOException {
+        if (lastTerm != null && term.compareTo(lastTerm) <= 0) {
+            throw new IllegalArgumentException("terms must be added in sorted order: " + term + " after " + lastTerm);
+        }
+        lastTerm = term;
+        records.writeInt(termChars);
+        records.writeInt(term.length());
+        records.writeLong(postingsOffset);
+        records.writeInt(list.encodedLength());
+        records.writeInt(list.docFreq());
+        records.writeInt(list.lastDoc());
+        records.writeInt(list.maxFreq());
+        records.writeInt(list.minDocLength());
+        records.writeInt(list.positionsLength());
+        records.writeLong(positionsOffset);
+        chars.writeChars(term);
+        list.writeTo(postings);
+        list.writePositionsTo(positions);
+        termChars += term.length();
+        postingsOffset += list.encodedLength();
+        positionsOffset += list.positionsLength();
+        termCount++;
+    }
+
+    void finish() throws java.io.IOException {
+        lengths.close();
+        postings.close();
+        positions.close();
+        java.io.ByteArrayOutputStream headerBytes = new java.io.ByteArrayOutputStream();
+        java.io.DataOutputStream header = new java.io.DataOutputStream(headerBytes);
+        header.writeInt(SegmentFile.MAGIC);
+        header.writeInt(SegmentFile.VERSION);
+        header.writeLong(fingerprint);
+        header.writeInt(docCount);
+        header.writeInt(termCount);
+        header.writeLong(totalLength);
+
+        java.nio.file.Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        java.util.zip.CRC32 dictCrc = new java.util.zip.CRC32();
+        java.util.zip.CRC32 postingsCrc = new java.util.zip.CRC32();
+        try (java.io.OutputStream file = new java.io.BufferedOutputStream(java.nio.file.Files.newOutputStream(tmp), 1 << 16)) {
+            java.util.zip.CheckedOutputStream dict = new java.util.zip.CheckedOutputStream(file, dictCrc);
+            headerBytes.writeTo(dict);
+            java.nio.file.Files.copy(lengthsFile, dict);
+            recordBytes.writeTo(dict);
+            charBytes.writeTo(dict);
+            java.util.zip.CheckedOutputStream data = new java.util.zip.CheckedOutputStream(file, postingsCrc);
+            java.nio.file.Files.copy(postingsFile, data);
+            java.nio.file.Files.copy(positionsFile, data);
+            long postingsStart = SegmentFile.HEADER_SIZE + 4L * docCount + recordBytes.size() + charBytes.size();
+            java.io.DataOutputStream footer = new java.io.DataOutputStream(file);
+            footer.writeLong(postingsStart);
+            footer.writeLong(postingsStart + postingsOffset);
+            footer.writeLong(dictCrc.getValue());
+            footer.writeLong(postingsCrc.getValue());
+            footer.writeInt(SegmentFile.VERSION);
+            footer.writeInt(SegmentFile.FOOTER_MAGIC);
+            footer.flush();
+        }
+        java.nio.file.Files.move(tmp, path, java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                                 java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        finished = true;
+        close();
+    }
+
+    @Override
+    public void close() throws java.io.IOException {
+        if (!finished) {
+            lengths.close();
+            postings.close();
+            positions.close();
+        }
+        java.nio.file.Files.deleteIfExists(lengthsFile);
+        java.nio.file.Files.deleteIfExists(postingsFile);
+        java.nio.file.Files.deleteIfExists(positionsFile);
+    }
+}
+
+/**
+ * an IndexReader over a mapped SegmentFile. opening checks the header, footer and the checksum
+ * of the dictionary part. the postings checksum reads the whole file, so it's left to
+ * verifyChecksums, which anything publishing a segment for searches calls first (merges of runs
+ * just written skip it). safe for any number of reader threads
+ */
+final class MappedIndexReader implements IndexReader {
+    private final java.nio.file.Path path;
+    private final long fingerprint;
+    private final int docCount;
+    private final int termCount;
+    private final float avgDocLength;
+    private final java.nio.ByteBuffer dict;
+    private final java.nio.ByteBuffer postings;
+    private final java.nio.ByteBuffer positions;
+    private final long postingsCrc;
+    private final int recordsStart;
+    private final int charsStart;
+    // the file has no bitmaps, so dense terms get theirs built on first lookup and kept here by ord
+    private final java.util.concurrent.atomic.AtomicReferenceArray<PostingsList> dense;
+
+    MappedIndexReader(java.nio.file.Path path) throws java.io.IOException {
+        this.path = path;
+        try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(path)) {
+            long size = channel.size();
+            if (size < SegmentFile.HEADER_SIZE + SegmentFile.FOOTER_SIZE) {
+                throw new java.io.IOException(path + ": too short to be an index segment (" + size + " bytes)");
+            }
+            // header first, so a file from another version says so rather than failing on its footer
+            java.nio.ByteBuffer header = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, 8);
+            if (header.getInt(0) != SegmentFile.MAGIC) {
+                throw new java.io.IOException(path + ": not an index segment");
+            }
+            int version = header.getInt(4);
+            if (version != SegmentFile.VERSION) {
+                throw new java.io.IOException(path + ": index version " + version + ", expected " + SegmentFile.VERSION);
+            }
+            java.nio.ByteBuffer footer = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY,
+                                                     size - SegmentFile.FOOTER_SIZE, SegmentFile.FOOTER_SIZE);
+            long postingsStart = footer.getLong(0);
+            long positionsStart = footer.getLong(8);
+            long dictCrc = footer.getLong(16);
+            postingsCrc = footer.getLong(24);
+            if (footer.getInt(36) != SegmentFile.FOOTER_MAGIC) {
+                throw new java.io.IOException(path + ": missing footer, file is truncated or not an index segment");
+            }
+            if (postingsStart < SegmentFile.HEADER_SIZE || positionsStart < postingsStart
+                || positionsStart > size - SegmentFile.FOOTER_SIZE) {
+                throw new java.io.IOException(path + ": corrupt footer");
+            }
+            long postingsSize = positionsStart - postingsStart;
+            long positionsSize = size - SegmentFile.FOOTER_SIZE - positionsStart;
+            if (postingsStart > Integer.MAX_VALUE || postingsSize > Integer.MAX_VALUE || positionsSize > Integer.MAX_VALUE) {
+                throw new java.io.IOException(path + ": segments over 2GB aren't supported, index into more segments");
+            }
+            dict = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, postingsStart);
+            postings = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, postingsStart, postingsSize);
+            positions = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, positionsStart, positionsSize);
+
+            java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+            crc.update(dict.duplicate());
+            if (crc.getValue() != dictCrc) {
+                throw new java.io.IOException(path + ": dictionary checksum mismatch, file is corrupt");
+            }
+        }
+        fingerprint = dict.getLong(8);
+        docCount = dict.getInt(16);
+        termCount = dict.getInt(20);
+        long totalLength = dict.getLong(24);
+        avgDocLength = docCount == 0 ? 0 : (float) totalLength / docCount;
+        recordsStart = SegmentFile.HEADER_SIZE + 4 * docCount;
+        charsStart = recordsStart + SegmentFile.RECORD_SIZE * termCount;
+        dense = new java.util.concurrent.atomic.AtomicReferenceArray<>(termCount);
+    }
+
+    /** reads every postings and positions byte and compares the footer checksum */
+    void verifyChecksums() throws java.io.IOException {
+        java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+        crc.update(postings.duplicate());
+        crc.update(positions.duplicate());
+        if (crc.getValue() != postingsCrc) {
+            throw new java.io.IOException(path + ": postings checksum mismatch, file is corrupt");
+        }
+    }
+
+    long fingerprint() {
+        return fingerprint;
+    }
+
+    /** bytes mapped for the dictionary, postings and positions */
+    long sizeInBytes() {
+        return (long) dict.capacity() + postings.capacity() + positions.capacity();
+    }
+
+    @Override
+    public PostingsList postings(String term) {
+        int lo = 0;
+        int hi = termCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareTerm(mid, term);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                PostingsList cached = dense.get(mid);
+                if (cached != null) return cached;
+                int record = recordsStart + mid * SegmentFile.RECORD_SIZE;
+                int offset = (int) dict.getLong(record + 8);
+                int length = dict.getInt(record + 16);
+                int positionsLength = dict.getInt(record + 36);
+                java.nio.ByteBuffer termPositions = positionsLength == 0
+                    ? null : positions.slice((int) dict.getLong(record + 40), positionsLength);
+                PostingsList list = PostingsList.mapped(postings.slice(offset, length), termPositions, dict.getInt(record + 20),
+                                                        dict.getInt(record + 24), dict.getInt(record + 28),
+                                                        dict.getInt(record + 32));
+                if (list.docFreq() > DocIdSet.ARRAY_MAX) {
+                    // two threads may both build it, either copy will do
+                    list.indexDocIdSet();
+                    dense.compareAndSet(mid, null, list);
+                }
+                return list;
+            }
+        }
+        return null;
+    }
+
+    /** compares the stored term of a record against term without building a String */
+    private int compareTerm(int ord, String term) {
+        int record = recordsStart + ord * SegmentFile.RECORD_SIZE;
+        int start = charsStart + 2 * dict.getInt(record);
+        int length = dict.getInt(record + 4);
+        int n = Math.min(length, term.length());
+        for (int i = 0; i < n; i++) {
+            int cmp = Character.compare(dict.getChar(start + 2 * i), term.charAt(i));
+            if (cmp != 0) return cmp;
+        }
+        return length - term.length();
+    }
+
+    String term(int ord) {
+        int record = recordsStart + ord * SegmentFile.RECORD_SIZE;
+        int start = charsStart + 2 * dict.getInt(record);
+        char[] chars = new char[dict.getInt(record + 4)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = dict.getChar(start + 2 * i);
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public int termCount() {
+        return termCount;
+    }
+
+    /** the records are sorted, so this binary searches for the first term >= from */
+    @Override
+    public Iterator<String> sortedTermIterator(String from) {
+        int lo = 0;
+        int hi = termCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareTerm(mid, from) < 0) lo = mid + 1; else hi = mid;
+        }
+        return sortedTermIterator(lo);
+    }
+
+    @Override
+    public Iterator<String> sortedTermIterator(int fromOrd) {
+        return new Iterator<>() {
+            private int ord = fromOrd;
+
+            @Override
+            public boolean hasNext() {
+                return ord < termCount;
+            }
+
+            @Override
+            public String next() {
+                if (ord >= termCount) throw new NoSuchElementException();
+                return term(ord++);
+            }
+        };
+    }
+
+
+    @Override
+    public int docCount() {
+        return docCount;
+    }
+
+    @Override
+    public int docLength(int docId) {
+        return dict.getInt(SegmentFile.HEADER_SIZE + 4 * docId);
+    }
+
+    @Override
+    public float avgDocLength() {
+        return avgDocLength;
+    }
+}
+
+/**
+ * reads documents one at a time from a corpus path: a directory (every regular file below it is a
+ * doc), a .jsonl file (the "text" field of each line), or any other file (one doc per line)
+ */
+abstract class DocumentSource implements java.io.Closeable {
+
+    /** the next document, or null at the end */
+    abstract String next() throws java.io.IOException;
+
+    /** input consumed so far, for throughput numbers */
+    abstract long bytesRead();
+
+    static DocumentSource open(java.nio.file.Path path) throws java.io.IOException {
+        if (java.nio.file.Files.isDirectory(path)) {
+            return new FileSource(path);
+        }
+        return new LineSource(path, path.getFileName().toString().endsWith(".jsonl"));
+    }
+
+    /** reservoir sample of k docs, one pass and only k docs held, so it works on any size corpus */
+    static String[] sample(java.nio.file.Path path, int k, long seed) throws java.io.IOException {
+        String[] reservoir = new String[k];
+        Random random = new Random(seed);
+        int seen = 0;
+        try (DocumentSource source = open(path)) {
+            for (String doc = source.next(); doc != null; doc = source.next()) {
+                if (seen < k) {
+                    reservoir[seen] = doc;
+                } else {
+                    int slot = random.nextInt(seen + 1);
+                    if (slot < k) reservoir[slot] = doc;
+                }
+                seen++;
+            }
+        }
+        return seen < k ? Arrays.copyOf(reservoir, seen) : reservoir;
+    }
+
+    private static final class FileSource extends DocumentSource {
+        private final java.util.stream.Stream<java.nio.file.Path> files;
+        private final Iterator<java.nio.file.Path> iterator;
+        private long bytesRead = 0;
+
+        FileSource(java.nio.file.Path dir) throws java.io.IOException {
+            files = java.nio.file.Files.walk(dir).filter(java.nio.file.Files::isRegularFile).sorted();
+            iterator = files.iterator();
+        }
+
+        @Override
+        String next() throws java.io.IOException {
+            if (!iterator.hasNext()) return null;
+            byte[] bytes = java.nio.file.Files.readAllBytes(iterator.next());
+            bytesRead += bytes.length;
+            return new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
+        }
+
+        @Override
+        long bytesRead() {
+            return bytesRead;
+        }
+
+        @Override
+        public void close() {
+            files.close();
+        }
+    }
+
+    private static final class LineSource extends DocumentSource {
+        private final CountingInputStream in;
+        private final java.io.BufferedReader reader;
+        private final boolean jsonl;
+
+        LineSource(java.nio.file.Path file, boolean jsonl) throws java.io.IOException {
+            in = new CountingInputStream(java.nio.file.Files.newInputStream(file));
+            reader = new java.io.BufferedReader(new java.io.InputStreamReader(in, java.nio.charset.StandardCharsets.UTF_8), 1 << 16);
+            this.jsonl = jsonl;
+        }
+
+        @Override
+        String next() throws java.io.IOException {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.isBlank()) continue;
+                if (!jsonl) return line;
+                String text = jsonString(line, "text");
+                if (text != null) return text;
+            }
+            return null;
+        }
+
+        @Override
+        long bytesRead() {
+            return in.count;
+        }
+
+        @Override
+        public void close() throws java.io.IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * pulls one top-level string field out of a json object line. just enough json for corpus
+     * dumps, not a general parser: returns null if the field is missing or isn't a string
+     */
+    static String jsonString(String json, String field) {
+        String key = "\"" + field + "\"";
+        int at = json.indexOf(key);
+        while (at >= 0) {
+            int i = at + key.length();
+            while (i < json.length() && Character.isWhitespace(json.charAt(i))) i++;
+            if (i < json.length() && json.charAt(i) == ':') {
+                i++;
+                while (i < json.length() && Character.isWhitespace(json.charAt(i))) i++;
+                if (i >= json.length() || json.charAt(i) != '"') return null;
+                StringBuilder sb = new StringBuilder();
+                for (i++; i < json.length(); i++) {
+                    char c = json.charAt(i);
+                    if (c == '"') return sb.toString();
+                    if (c != '\\' || i + 1 >= json.length()) {
+                        sb.append(c);
+                        continue;
+                    }
+                    char escaped = json.charAt(++i);
+                    switch (escaped) {
+                        case 'n': sb.append('\n'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'r': sb.append('\r'); break;
+                        case 'b': sb.append('\b'); break;
+                        case 'f': sb.append('\f'); break;
+                        case 'u':
+                            if (i + 4 < json.length()) {
+                                sb.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                                i += 4;
+                            }
+                            break;
+                        default: sb.append(escaped); // \" \\ \/
+                    }
+                }
+                return null; // unterminated
+            }
+            at = json.indexOf(key, at + 1);
+        }
+        return null;
+    }
+
+    private static final class CountingInputStream extends java.io.FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(java.io.InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws java.io.IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws java.io.IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+}
+
+/**
+ * indexes a stream of documents in bounded memory. postings pile up in an in-memory segment until
+ * it passes the budget, then that segment is written out as a sorted run (a SegmentFile with local
+ * doc ids) and a fresh one starts. finish() k-way merges the runs into the final segment, holding
+ * only one merged postings list at a time
+ */
+final class StreamingIndexer {
+    // walking the segment to size it costs O(terms), so only do it every so often
+    private static final int CHECK_INTERVAL = 1024;
+
+    private final long memoryBudget;
+    private final java.nio.file.Path tempDir;
+    private final boolean ownsTempDir;
+    private InvertedIndex buffer = new InvertedIndex();
+    private int bufferDocBase = 0;
+    private int docCount = 0;
+    private int docsSinceCheck = 0;
+    private long charsSinceCheck = 0;
+    private long fingerprint = 0;
+    private final List<java.nio.file.Path> runs = new ArrayList<>();
+    private final List<Integer> runDocBases = new ArrayList<>();
+    private final long startNanos = System.nanoTime();
+
+    /** tempDir null means a fresh directory under java.io.tmpdir */
+    StreamingIndexer(long memoryBudget, java.nio.file.Path tempDir) throws java.io.IOException {
+        this.memoryBudget = memoryBudget;
+        this.ownsTempDir = tempDir == null;
+        this.tempDir = ownsTempDir ? java.nio.file.Files.createTempDirectory("fts-runs") : tempDir;
+        for (java.lang.management.MemoryPoolMXBean pool : java.lang.management.ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    void add(CharSequence text) throws java.io.IOException {
+        buffer.addDocument(docCount - bufferDocBase, text);
+        fingerprint = SegmentFile.fingerprint(fingerprint, text);
+        docCount++;
+        charsSinceCheck += text.length();
+        // a handful of huge docs can blow the budget long before CHECK_INTERVAL docs
+        if (++docsSinceCheck >= CHECK_INTERVAL || charsSinceCheck > memoryBudget / 8) {
+            docsSinceCheck = 0;
+            charsSinceCheck = 0;
+            if (buffer.ramBytesUsed() > memoryBudget) {
+                spill();
+            }
+        }
+    }
+
+    int docCount() {
+        return docCount;
+    }
+
+    int runCount() {
+        return runs.size();
+    }
+
+    private void spill() throws java.io.IOException {
+        if (buffer.docCount() == 0) return;
+        java.nio.file.Path run = tempDir.resolve("run-" + runs.size() + ".seg");
+        SegmentFile.write(buffer, 0, run);
+        runs.add(run);
+        runDocBases.add(bufferDocBase);
+        bufferDocBase = docCount;
+        buffer = new InvertedIndex();
+    }
+
+    Stats finish(java.nio.file.Path output, long bytesRead) throws java.io.IOException {
+        long finalFingerprint = fingerprint * 31 + docCount;
+        if (runs.isEmpty()) {
+            // everything fit, no need to go through disk twice
+            SegmentFile.write(buffer, finalFingerprint, output);
+        } else {
+            spill();
+            mergeRuns(output, finalFingerprint);
+        }
+        buffer = null;
+        if (ownsTempDir) {
+            java.nio.file.Files.deleteIfExists(tempDir);
+        }
+        long elapsed = System.nanoTime() - startNanos;
+        long peakHeap = 0;
+        for (java.lang.management.MemoryPoolMXBean pool : java.lang.management.ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == java.lang.management.MemoryType.HEAP) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        return new Stats(docCount, bytesRead, runs.size(), elapsed, peakHeap);
+    }
+
+    private void mergeRuns(java.nio.file.Path output, long finalFingerprint) throws java.io.IOException {
+        MappedIndexReader[] readers = new MappedIndexReader[runs.size()];
+        int[] docBases = new int[runs.size()];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = SegmentFile.open(runs.get(r));
+            docBases[r] = runDocBases.get(r);
+        }
+        try (SegmentWriter writer = new SegmentWriter(output, finalFingerprint)) {
+            for (MappedIndexReader reader : readers) {
+                for (int doc = 0; doc < reader.docCount(); doc++) {
+                    writer.addDocLength(reader.docLength(doc));
+                }
+            }
+            java.io.IOException[] failure = new java.io.IOException[1];
+            ParallelIndexBuilder.mergeTerms(readers, docBases, null, (term, list) -> {
+                if (failure[0] != null) return;
+                try {
+                    writer.addTerm(term, list);
+                } catch (java.io.IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) throw failure[0];
+            writer.finish();
+        } finally {
+            for (java.nio.file.Path run : runs) {
+                java.nio.file.Files.deleteIfExists(run);
+            }
+        }
+    }
+
+    static final class Stats {
+        final int docs;
+        final long bytes;
+        final int runs;
+        final long nanos;
+        final long peakHeapBytes;
+
+        Stats(int docs, long bytes, int runs, long nanos, long peakHeapBytes) {
+            this.docs = docs;
+            this.bytes = bytes;
+            this.runs = runs;
+            this.nanos = nanos;
+            this.peakHeapBytes = peakHeapBytes;
+        }
+
+        double docsPerSecond() {
+            return docs * 1e9 / nanos;
+        }
+
+        double mbPerSecond() {
+            return bytes * 1e9 / nanos / (1 << 20);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%,d docs, %.1f MB in %.2fs: %,.0f docs/s, %.1f MB/s, %d spilled runs, peak heap %.1f MB",
+                                 docs, bytes / (double) (1 << 20), nanos / 1e9, docsPerSecond(), mbPerSecond(),
+                                 runs, peakHeapBytes / (double) (1 << 20));
+        }
+    }
+}
+
+/**
+ * an index that takes adds, deletes and updates while it's being searched. new docs go into a
+ * small mutable segment; refresh() seals it into an immutable segment and publishes a new Snapshot
+ * with the pending deletes applied (copy-on-write, so a published snapshot never changes).
+ * deletes are tombstones in a per-segment bitset until a merge drops them for good. doc ids are
+ * global and never reused, each segment owns a contiguous id range and merges only combine
+ * neighbours, so ids stay put and concatenating segments in order keeps postings sorted.
+ * a background thread runs a tiered merge policy so the segment count stays around
+ * mergeFactor segments per size tier
+ */
+final class SegmentedIndex implements java.io.Closeable {
+    private final int maxBufferedDocs;
+    private final int mergeFactor;
+    private final java.util.concurrent.ExecutorService merger;
+
+    // writer state, guarded by this
+    private InvertedIndex buffer = new InvertedIndex();
+    private int bufferDocBase = 0;
+    private int nextDocId = 0;
+    private final BitSet pendingDeletes = new BitSet();
+    private boolean mergeRunning = false;
+
+    private volatile Snapshot current = new Snapshot(new Segment[0]);
+
+    SegmentedIndex(int maxBufferedDocs, int mergeFactor) {
+        this.maxBufferedDocs = maxBufferedDocs;
+        this.mergeFactor = mergeFactor;
+        merger = java.util.concurrent.Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "segment-merger");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** returns the new doc's id. it's searchable after the next refresh */
+    synchronized int addDocument(CharSequence text) {
+        int docId = nextDocId++;
+        buffer.addDocument(docId - bufferDocBase, text);
+        if (buffer.docCount() >= maxBufferedDocs) {
+            refresh();
+        }
+        return docId;
+    }
+
+    synchronized void deleteDocument(int docId) {
+        if (docId >= 0 && docId < nextDocId) {
+            pendingDeletes.set(docId);
+        }
+    }
+
+    /** deletes the old version and adds the new one, returning its id */
+    synchronized int updateDocument(int docId, CharSequence text) {
+        deleteDocument(docId);
+        return addDocument(text);
+    }
+
+    /** what searches should run against: everything added and deleted before the last refresh */
+    Snapshot snapshot() {
+        return current;
+    }
+
+    /** seals the buffer, applies deletes, publishes a new snapshot and kicks off merging if needed */
+    synchronized void refresh() {
+        List<Segment> segments = new ArrayList<>(Arrays.asList(current.segments));
+        if (buffer.docCount() > 0) {
+            segments.add(new Segment(buffer, bufferDocBase, buffer.docCount(), new BitSet(), 0));
+            buffer = new InvertedIndex();
+            bufferDocBase = nextDocId;
+        }
+        // deletes that hit the buffer become tombstones in the segment it was just sealed into
+        for (int i = 0; i < segments.size() && !pendingDeletes.isEmpty(); i++) {
+            Segment segment = segments.get(i);
+            BitSet hits = pendingDeletes.get(segment.docBase, segment.docBase + segment.maxDoc);
+            if (!hits.isEmpty()) {
+                segments.set(i, segment.withDeletes(hits, segment.docBase));
+            }
+        }
+        pendingDeletes.clear();
+        current = new Snapshot(segments.toArray(new Segment[0]));
+        maybeMerge();
+    }
+
+    int segmentCount() {
+        return current.segments.length;
+    }
+
+    private void maybeMerge() {
+        if (mergeRunning) return;
+        int[] range = findMerge(current.segments);
+        if (range == null) return;
+        mergeRunning = true;
+        Segment[] sources = Arrays.copyOfRange(current.segments, range[0], range[1]);
+        merger.execute(() -> {
+            try {
+                Segment merged = merge(sources);
+                commitMerge(sources, merged);
+            } finally {
+                synchronized (this) {
+                    mergeRunning = false;
+                    maybeMerge();
+                }
+            }
+        });
+    }
+
+    /**
+     * tiered policy over neighbours: a segment's tier is log base mergeFactor of its live docs (small
+     * refreshes count as a full buffer), and mergeFactor adjacent segments in the same tier get
+     * merged. a segment that's more than a third tombstones is rewritten on its own to reclaim the
+     * space. returns [from, to) or null
+     */
+    private int[] findMerge(Segment[] segments) {
+        for (int i = 0; i < segments.length; i++) {
+            Segment segment = segments[i];
+            if (segment.pendingDeletes() * 3 > segment.maxDoc - segment.purgedCount) {
+                return new int[] {i, i + 1};
+            }
+        }
+        for (int from = 0; from + mergeFactor <= segments.length; from++) {
+            int tier = tier(segments[from]);
+            int to = from + 1;
+            while (to - from < mergeFactor && tier(segments[to]) == tier) to++;
+            if (to - from == mergeFactor) {
+                return new int[] {from, to};
+            }
+        }
+        return null;
+    }
+
+    private int tier(Segment segment) {
+        int live = Math.max(maxBufferedDocs, segment.maxDoc - segment.deletedCount);
+        return (int) (Math.log(live) / Math.log(mergeFactor));
+    }
+
+    /** runs on the merge thread against immutable segments, so no lock needed */
+    private static Segment merge(Segment[] sources) {
+        int docBase = sources[0].docBase;
+        IndexReader[] readers = new IndexReader[sources.length];
+        int[] docBases = new int[sources.length];
+        BitSet[] deleted = new BitSet[sources.length];
+        InvertedIndex merged = new InvertedIndex();
+        int maxDoc = 0;
+        for (int i = 0; i < sources.length; i++) {
+            readers[i] = sources[i].index;
+            docBases[i] = sources[i].docBase - docBase;
+            deleted[i] = sources[i].deleted;
+            for (int doc = 0; doc < sources[i].maxDoc; doc++) {
+                // dropped docs keep their slot (ids don't move) but count as empty
+                merged.startDocument(docBases[i] + doc, deleted[i].get(doc) ? 0 : sources[i].index.docLength(doc));
+            }
+            maxDoc += sources[i].maxDoc;
+        }
+        ParallelIndexBuilder.mergeTerms(readers, docBases, deleted, merged::putPostings);
+        // everything deleted so far is physically gone, but keep the bits so live counts stay right
+        BitSet tombstones = new BitSet();
+        for (int i = 0; i < sources.length; i++) {
+            for (int doc = deleted[i].nextSetBit(0); doc >= 0; doc = deleted[i].nextSetBit(doc + 1)) {
+                tombstones.set(docBases[i] + doc);
+            }
+        }
+        return new Segment(merged, docBase, maxDoc, tombstones, tombstones.cardinality());
+    }
+
+    private synchronized void commitMerge(Segment[] sources, Segment merged) {
+        List<Segment> segments = new ArrayList<>(Arrays.asList(current.segments));
+        // only this thread replaces ranges, so the sources are still there in order, although
+        // refresh may have swapped some for copies with more tombstones. carry those over
+        int from = 0;
+        while (segments.get(from).docBase != merged.docBase) from++;
+        BitSet deletes = (BitSet) merged.deleted.clone();
+        for (int i = from; i < from + sources.length; i++) {
+            Segment segment = segments.get(i);
+            BitSet d = segment.deleted;
+            for (int doc = d.nextSetBit(0); doc >= 0; doc = d.nextSetBit(doc + 1)) {
+                deletes.set(segment.docBase - merged.docBase + doc);
+            }
+        }
+        segments.subList(from, from + sources.length).clear();
+        segments.add(from, merged.withDeletes(deletes, merged.docBase));
+        current = new Snapshot(segments.toArray(new Segment[0]));
+    }
+
+    @Override
+    public void close() {
+        merger.shutdown();
+    }
+
+    /**
+     * one sealed segment: an index with local doc ids 0..maxDoc, which of them are deleted, and how
+     * many of those a merge already dropped from the postings (purged)
+     */
+    static final class Segment {
+        final InvertedIndex index;
+        final int docBase;
+        final int maxDoc;
+        final BitSet deleted;
+        final int deletedCount;
+        final int purgedCount;
+        final long liveLength;
+
+        Segment(InvertedIndex index, int docBase, int maxDoc, BitSet deleted, int purgedCount) {
+            this.index = index;
+            this.docBase = docBase;
+            this.maxDoc = maxDoc;
+            this.deleted = deleted;
+            this.deletedCount = deleted.cardinality();
+            this.purgedCount = purgedCount;
+            long length = 0;
+            for (int doc = 0; doc < maxDoc; doc++) {
+                if (!deleted.get(doc)) length += index.docLength(doc);
+            }
+            this.liveLength = length;
+        }
+
+        /** copy with more tombstones, hits are doc ids relative to base */
+        Segment withDeletes(BitSet hits, int base) {
+            BitSet merged = (BitSet) deleted.clone();
+            for (int doc = hits.nextSetBit(0); doc >= 0; doc = hits.nextSetBit(doc + 1)) {
+                merged.set(doc + base - docBase);
+            }
+            return new Segment(index, docBase, maxDoc, merged, purgedCount);
+        }
+
+        /** tombstones whose postings are still around */
+        int pendingDeletes() {
+            return deletedCount - purgedCount;
+        }
+    }
+
+    /**
+     * a point-in-time view over the segments, searchable like any other IndexReader.
+     * a term's postings are the segments' postings concatenated in doc order, skipping tombstones
+     */
+    static final class Snapshot implements IndexReader {
+        final Segment[] segments;
+        private final int docCount;
+        private final float avgDocLength;
+
+        Snapshot(Segment[] segments) {
+            this.segments = segments;
+            int maxDoc = 0;
+            long length = 0;
+            int live = 0;
+            for (Segment segment : segments) {
+                maxDoc = segment.docBase + segment.maxDoc;
+                length += segment.liveLength;
+                live += segment.maxDoc - segment.deletedCount;
+            }
+            docCount = maxDoc;
+            avgDocLength = live == 0 ? 0 : (float) length / live;
+        }
+
+        boolean isDeleted(int docId) {
+            Segment segment = segmentFor(docId);
+            return segment == null || segment.deleted.get(docId - segment.docBase);
+        }
+
+        private Segment segmentFor(int docId) {
+            int lo = 0;
+            int hi = segments.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                Segment segment = segments[mid];
+                if (docId < segment.docBase) hi = mid - 1;
+                else if (docId >= segment.docBase + segment.maxDoc) lo = mid + 1;
+                else return segment;
+            }
+            return null;
+        }
+
+        @Override
+        public Postings postings(String term) {
+            List<Segment> withTerm = new ArrayList<>();
+            List<Postings> parts = new ArrayList<>();
+            for (Segment segment : segments) {
+                Postings postings = segment.index.postings(term);
+                if (postings != null) {
+                    withTerm.add(segment);
+                    parts.add(postings);
+                }
+            }
+            if (parts.isEmpty()) return null;
+            if (parts.size() == 1 && withTerm.get(0).docBase == 0 && withTerm.get(0).deletedCount == 0) {
+                return parts.get(0);
+            }
+            return new MultiPostings(withTerm.toArray(new Segment[0]), parts.toArray(new Postings[0]));
+        }
+
+        @Override
+        public Iterator<String> sortedTermIterator(String from) {
+            // k-way merge of the segments' sorted terms, dropping duplicates
+            PriorityQueue<Map.Entry<String, Iterator<String>>> heap = new PriorityQueue<>(Map.Entry.comparingByKey());
+            for (Segment segment : segments) {
+                Iterator<String> terms = segment.index.sortedTermIterator(from);
+                if (terms.hasNext()) heap.add(new AbstractMap.SimpleEntry<>(terms.next(), terms));
+            }
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return !heap.isEmpty();
+                }
+
+                @Override
+                public String next() {
+                    if (heap.isEmpty()) throw new NoSuchElementException();
+                    String term = heap.peek().getKey();
+                    while (!heap.isEmpty() && heap.peek().getKey().equals(term)) {
+                        Iterator<String> terms = heap.poll().getValue();
+                        if (terms.hasNext()) heap.add(new AbstractMap.SimpleEntry<>(terms.next(), terms));
+                    }
+                    return term;
+                }
+            };
+        }
+
+        /** walks the merged terms, so it costs as much as listing them */
+        @Override
+        public int termCount() {
+            int count = 0;
+            for (Iterator<String> terms = sortedTermIterator(); terms.hasNext(); terms.next()) count++;
+            return count;
+        }
+
+        /** one past the highest doc id, deleted ones included */
+        @Override
+        public int docCount() {
+            return docCount;
+        }
+
+        @Override
+        public int docLength(int docId) {
+            Segment segment = segmentFor(docId);
+            return segment == null ? 0 : segment.index.docLength(docId - segment.docBase);
+        }
+
+        /** over live docs only */
+        @Override
+        public float avgDocLength() {
+            return avgDocLength;
+        }
+    }
+
+    private static final class MultiPostings implements Postings {
+        private final Segment[] segments;
+        private final Postings[] parts;
+
+        MultiPostings(Segment[] segments, Postings[] parts) {
+            this.segments = segments;
+            this.parts = parts;
+        }
+
+        /** includes tombstoned docs, like the doc count does, so it stays an upper bound */
+        @Override
+        public int docFreq() {
+            int df = 0;
+            for (Postings part : parts) df += part.docFreq();
+            return df;
+        }
+
+        @Override
+        public int maxFreq() {
+            int max = 0;
+            for (Postings part : parts) max = Math.max(max, part.maxFreq());
+            return max;
+        }
+
+        @Override
+        public int minDocLength() {
+            int min = Integer.MAX_VALUE;
+            for (Postings part : parts) min = Math.min(min, part.minDocLength());
+            return min;
+        }
+
+        @Override
+        public boolean hasPositions() {
+            for (Postings part : parts) {
+                if (!part.hasPositions()) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public PostingsIterator iterator() {
+            return new PostingsIterator() {
+                private int part = 0;
+                private PostingsIterator it = parts[0].iterator();
+                private int doc = -1;
+
+                @Override
+                public int docID() {
+                    return doc;
+                }
+
+                @Override
+                public int nextDoc() {
+                    return doc = live(it.nextDoc());
+                }
+
+                @Override
+                public int advance(int target) {
+                    if (doc >= target) return doc;
+                    // jump straight to the segment that could hold target
+                    while (part + 1 < parts.length && segments[part + 1].docBase <= target) {
+                        it = parts[++part].iterator();
+                    }
+                    int base = segments[part].docBase;
+                    return doc = live(it.advance(Math.max(0, target - base)));
+                }
+
+                /** local doc from the current part -> next live global doc */
+                private int live(int local) {
+                    while (true) {
+                        if (local == NO_MORE_DOCS) {
+                            if (++part >= parts.length) {
+                                part = parts.length - 1;
+                                return NO_MORE_DOCS;
+                            }
+                            it = parts[part].iterator();
+                            local = it.nextDoc();
+                            continue;
+                        }
+                        if (!segments[part].deleted.get(local)) {
+                            return segments[part].docBase + local;
+                        }
+                        local = it.nextDoc();
+                    }
+                }
+
+                @Override
+                public int freq() {
+                    return it.freq();
+                }
+
+                @Override
+                public int nextPosition() {
+                    return it.nextPosition();
+                }
+
+                @Override
+                public long cost() {
+                    return docFreq();
+                }
+            };
+        }
+    }
+}
+
+/**
+ * the k best docs, best first
+ */
+final class TopDocs {
+    static final TopDocs EMPTY = new TopDocs(new int[0], new float[0]);
+
+    final int[] docs;
+    final float[] scores;
+
+    TopDocs(int[] docs, float[] scores) {
+        this.docs = docs;
+        this.scores = scores;
+    }
+
+    int size() {
+        return docs.length;
+    }
+
+    /** position of doc in the ranking, or -1 */
+    int rankOf(int doc) {
+        for (int i = 0; i < docs.length; i++) {
+            if (docs[i] == doc) return i;
+        }
+        return -1;
+    }
+}
+
+/**
+ * bounded min-heap of (score, doc) on primitive arrays, the weakest hit sits on top.
+ * ties go to the lower doc id
+ */
+final class TopKCollector {
+    private final int k;
+    private final int[] docs;
+    private final float[] scores;
+    private int size = 0;
+
+    TopKCollector(int k) {
+        this.k = k;
+        docs = new int[k];
+        scores = new float[k];
+    }
+
+    /** score a new hit has to beat to get in, or -inf while the heap isn't full */
+    float threshold() {
+        return size < k ? Float.NEGATIVE_INFINITY : scores[0];
+    }
+
+    void collect(int doc, float score) {
+        if (size < k) {
+            docs[size] = doc;
+            scores[size] = score;
+            siftUp(size++);
+        } else if (k > 0 && worse(scores[0], docs[0], score, doc)) {
+            docs[0] = doc;
+            scores[0] = score;
+            siftDown(0);
+        }
+    }
+
+    /** true if (s1, d1) ranks below (s2, d2) */
+    private static boolean worse(float s1, int d1, float s2, int d2) {
+        return s1 < s2 || (s1 == s2 && d1 > d2);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!worse(scores[i], docs[i], scores[parent], docs[parent])) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) break;
+            if (child + 1 < size && worse(scores[child + 1], docs[child + 1], scores[child], docs[child])) child++;
+            if (!worse(scores[child], docs[child], scores[i], docs[i])) break;
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int d = docs[a];
+        docs[a] = docs[b];
+        docs[b] = d;
+        float f = scores[a];
+        scores[a] = scores[b];
+        scores[b] = f;
+    }
+
+    TopDocs topDocs() {
+        int n = size;
+        int[] outDocs = new int[n];
+        float[] outScores = new float[n];
+        // pop the weakest off repeatedly, filling from the back
+        for (int i = n - 1; i >= 0; i--) {
+            outDocs[i] = docs[0];
+            outScores[i] = scores[0];
+            size--;
+            docs[0] = docs[size];
+            scores[0] = scores[size];
+            siftDown(0);
+        }
+        return new TopDocs(outDocs, outScores);
+    }
+}
+
+/**
+ * bm25 top-k retrieval. pure term / OR queries go through WAND, which uses each term's
+ * score upper bound to skip docs that can't beat the current k-th best. anything with
+ * AND / NOT is already bounded by its rarest clause, so we just score what the boolean iterator matches
+ */
+final class Bm25Searcher {
+    static final float K1 = 1.2f;
+    static final float B = 0.75f;
+
+    private Bm25Searcher() {}
+
+    static TopDocs search(IndexReader index, Query query, int k) {
+        return search(index, query, k, () -> false);
+    }
+
+    /** gives up with a CancellationException once cancelled says so, checked every few thousand docs */
+    static TopDocs search(IndexReader index, Query query, int k, BooleanSupplier cancelled) {
+        query = query.rewrite(index);
+        List<String> disjunction = termsIfDisjunction(query);
+        return disjunction != null ? wand(index, disjunction, k, cancelled) : scoreMatches(index, query, k, cancelled);
+    }
+
+    private static final int CANCEL_CHECK_INTERVAL = 4096;
+
+    static float idf(int docCount, int docFreq) {
+        return (float) Math.log(1 + (docCount - docFreq + 0.5) / (docFreq + 0.5));
+    }
+
+    static float score(float idf, int freq, int docLength, float avgDocLength) {
+        float norm = K1 * (1 - B + B * docLength / avgDocLength);
+        return idf * freq * (K1 + 1) / (freq + norm);
+    }
+
+    private static List<String> termsIfDisjunction(Query query) {
+        if (query instanceof TermQuery) {
+            return List.of(((TermQuery) query).term);
+        }
+        if (query instanceof OrQuery) {
+            List<String> terms = new ArrayList<>();
+            for (Query clause : ((OrQuery) query).clauses) {
+                if (!(clause instanceof TermQuery)) return null;
+                terms.add(((TermQuery) clause).term);
+            }
+            return terms;
+        }
+        return null;
+    }
+
+    private static final class TermScorer {
+        final PostingsIterator postings;
+        final float idf;
+        final float maxScore;
+
+        TermScorer(Postings list, int docCount, float avgDocLength) {
+            postings = list.iterator();
+            idf = idf(docCount, list.docFreq());
+            maxScore = score(idf, list.maxFreq(), list.minDocLength(), avgDocLength);
+        }
+    }
+
+    private static List<TermScorer> scorers(IndexReader index, Collection<String> terms) {
+        List<TermScorer> scorers = new ArrayList<>();
+        for (String term : new LinkedHashSet<>(terms)) {
+            Postings list = index.postings(term);
+            if (list != null) {
+                scorers.add(new TermScorer(list, index.docCount(), index.avgDocLength()));
+            }
+        }
+        return scorers;
+    }
+
+    private static TopDocs wand(IndexReader index, List<String> terms, int k, BooleanSupplier cancelled) {
+        List<TermScorer> scorers = scorers(index, terms);
+        TermScorer[] cursors = scorers.toArray(new TermScorer[0]);
+        for (TermScorer cursor : cursors) {
+            cursor.postings.nextDoc();
+        }
+        float avgDocLength = index.avgDocLength();
+        TopKCollector collector = new TopKCollector(k);
+
+        for (int step = 1; ; step++) {
+            if (step % CANCEL_CHECK_INTERVAL == 0 && cancelled.getAsBoolean()) throw new CancellationException();
+            sortByDoc(cursors);
+            // pivot: first cursor where the upper bounds so far could beat the threshold
+            float threshold = collector.threshold();
+            float bound = 0;
+            int pivot = -1;
+            for (int i = 0; i < cursors.length; i++) {
+                if (cursors[i].postings.docID() == DocIterator.NO_MORE_DOCS) break;
+                bound += cursors[i].maxScore;
+                if (bound > threshold) {
+                    pivot = i;
+                    break;
+                }
+            }
+            if (pivot < 0) break;
+            int pivotDoc = cursors[pivot].postings.docID();
+
+            if (cursors[0].postings.docID() == pivotDoc) {
+                float score = 0;
+                for (TermScorer cursor : cursors) {
+                    if (cursor.postings.docID() != pivotDoc) break;
+                    score += score(cursor.idf, cursor.postings.freq(), index.docLength(pivotDoc), avgDocLength);
+                    cursor.postings.nextDoc();
+                }
+                collector.collect(pivotDoc, score);
+            } else {
+                // nothing before pivotDoc can make it, skip the lagging cursors straight there
+                for (int i = 0; i < pivot && cursors[i].postings.docID() < pivotDoc; i++) {
+                    cursors[i].postings.advance(pivotDoc);
+                }
+            }
+        }
+        return collector.topDocs();
+    }
+
+    private static void sortByDoc(TermScorer[] cursors) {
+        // few terms and nearly sorted already, insertion sort is fine
+        for (int i = 1; i < cursors.length; i++) {
+            TermScorer c = cursors[i];
+            int j = i - 1;
+            while (j >= 0 && cursors[j].postings.docID() > c.postings.docID()) {
+                cursors[j + 1] = cursors[j];
+                j--;
+            }
+            cursors[j + 1] = c;
+        }
+    }
+
+    private static TopDocs scoreMatches(IndexReader index, Query query, int k, BooleanSupplier cancelled) {
+        Set<String> terms = new LinkedHashSet<>();
+        query.collectTerms(terms);
+        List<TermScorer> scorers = scorers(index, terms);
+        float avgDocLength = index.avgDocLength();
+        TopKCollector collector = new TopKCollector(k);
+
+        DocIterator matches = query.iterator(index);
+        int scored = 0;
+        for (int doc = matches.nextDoc(); doc != DocIterator.NO_MORE_DOCS; doc = matches.nextDoc()) {
+            if (++scored % CANCEL_CHECK_INTERVAL == 0 && cancelled.getAsBoolean()) throw new CancellationException();
+            float score = 0;
+            for (TermScorer scorer : scorers) {
+                if (scorer.postings.advance(doc) == doc) {
+                    score += score(scorer.idf, scorer.postings.freq(), index.docLength(doc), avgDocLength);
+                }
+            }
+            collector.collect(doc, score);
+        }
+        return collector.topDocs();
+    }
+}
+
+/** the part of a doc to show for a query: text, and the matches in it as start, end pairs */
+final class Snippet {
+    final String text;
+    final int[] highlights;
+    final boolean startsInside; // text starts past the doc's start
+    final boolean endsInside;
+
+    Snippet(String text, int[] highlights, boolean startsInside, boolean endsInside) {
+        this.text = text;
+        this.highlights = highlights;
+        this.startsInside = startsInside;
+        this.endsInside = endsInside;
+    }
+
+    long weight() {
+        return 64 + 2L * text.length() + 4L * highlights.length;
+    }
+}
+
+/**
+ * picks the window of a doc that best shows why it matched. the query terms' positions come from
+ * the postings and their chars from the doc's word offsets, so the text isn't analyzed again and
+ * a stemmed match ("runs" for run) lights up the word as written. a window scores the idf of each
+ * distinct term in it plus a little per repeat, so one holding every term beats one with a single
+ * common term over and over
+ */
+final class Highlighter {
+    private Highlighter() {}
+
+    static Snippet snippet(IndexReader index, int docId, String text, Set<String> terms, int maxChars) {
+        int[] words = index.wordOffsets(docId);
+        if (words == null) words = WordOffsets.of(text); // not kept, this doc gets tokenized once
+        // every match as position << 16 | term, sorted that's in text order
+        String[] termList = terms.toArray(new String[0]);
+        double[] weights = new double[termList.length];
+        long[] matches = new long[16];
+        int n = 0;
+        for (int t = 0; t < termList.length && t < 1 << 16; t++) {
+            Postings postings = index.postings(termList[t]);
+            if (postings == null || !postings.hasPositions()) continue;
+            PostingsIterator it = postings.iterator();
+            if (it.advance(docId) != docId) continue;
+            weights[t] = Bm25Searcher.idf(index.docCount(), postings.docFreq());
+            for (int i = 0; i < it.freq(); i++) {
+                int position = it.nextPosition();
+                if (2 * position + 1 >= words.length) continue; // offsets from another version of the doc
+                if (n == matches.length) matches = Arrays.copyOf(matches, n * 2);
+                matches[n++] = (long) position << 16 | t;
+            }
+        }
+        Arrays.sort(matches, 0, n);
+
+        // the best run of matches that fits in maxChars
+        int bestFrom = 0;
+        int bestTo = 0;
+        double best = -1;
+        int[] counts = new int[termList.length];
+        double score = 0;
+        for (int from = 0, to = 0; from < n; from++) {
+            while (to < n && end(words, matches[to]) - start(words, matches[from]) <= maxChars) {
+                int t = (int) (matches[to++] & 0xFFFF);
+                score += counts[t]++ == 0 ? weights[t] : 0.1;
+            }
+            if (score > best) {
+                best = score;
+                bestFrom = from;
+                bestTo = to;
+            }
+            if (to == from) {
+                to++; // a single match longer than maxChars, never counted so nothing to take off
+                continue;
+            }
+            int t = (int) (matches[from] & 0xFFFF);
+            score -= --counts[t] == 0 ? weights[t] : 0.1;
+        }
+
+        // pad it out to maxChars with some text before and the rest after, on word boundaries
+        int from = 0;
+        int to = Math.min(text.length(), maxChars);
+        if (bestTo > bestFrom) {
+            int first = start(words, matches[bestFrom]);
+            int last = end(words, matches[bestTo - 1]);
+            int slack = maxChars - (last - first);
+            from = Math.max(0, first - slack / 3);
+            to = Math.min(text.length(), from + maxChars);
+            from = Math.max(0, Math.min(from, to - maxChars));
+        }
+        if (from > 0) {
+            for (int w = 0; w < words.length; w += 2) {
+                if (words[w] >= from) {
+                    from = words[w];
+                    break;
+                }
+            }
+        }
+        if (to < text.length()) {
+            int wordEnd = from;
+            for (int w = 1; w < words.length && words[w] <= to; w += 2) wordEnd = Math.max(wordEnd, words[w]);
+            to = wordEnd > from ? wordEnd : to;
+        }
+
+        int[] highlights = new int[2 * n];
+        int h = 0;
+        for (int i = 0; i < n; i++) {
+            int start = start(words, matches[i]);
+            int end = end(words, matches[i]);
+            if (start >= from && end <= to) {
+                highlights[h++] = start - from;
+                highlights[h++] = end - from;
+            }
+        }
+        return new Snippet(text.substring(from, to), Arrays.copyOf(highlights, h), from > 0, to < text.length());
+    }
+
+    private static int start(int[] words, long match) {
+        return words[2 * (int) (match >>> 16)];
+    }
+
+    private static int end(int[] words, long match) {
+        return words[2 * (int) (match >>> 16) + 1];
+    }
+}
+
+/**
+ * a weight bounded segmented LRU. new entries start on probation and only move to the protected
+ * segment when they're hit again, so a burst of one-off queries can't push out the popular ones.
+ * everything cached belongs to one index generation and seeing a newer one drops it all. with
+ * minUses > 1 a key is only worth caching once it has been asked for that many times
+ */
+final class QueryCache<V> {
+    private static final int MAX_TRACKED_USES = 4096;
+
+    private final long maxWeight;
+    private final long maxProtectedWeight;
+    private final int minUses;
+    private final java.util.function.ToLongFunction<V> weigher;
+    // access ordered, least recently used first
+    private final LinkedHashMap<String, V> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, V> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Integer> uses = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_TRACKED_USES;
+        }
+    };
+    private long probationWeight;
+    private long protectedWeight;
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    QueryCache(long maxWeight, int minUses, java.util.function.ToLongFunction<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.maxProtectedWeight = maxWeight * 4 / 5;
+        this.minUses = minUses;
+        this.weigher = weigher;
+    }
+
+    synchronized V get(long generation, String key) {
+        if (!current(generation)) return null;
+        V value = protectedSegment.get(key);
+        if (value == null) {
+            value = probation.remove(key);
+            if (value == null) {
+                misses++;
+                return null;
+            }
+            long weight = weigher.applyAsLong(value);
+            probationWeight -= weight;
+            protectedSegment.put(key, value);
+            protectedWeight += weight;
+            // protected overflows back onto probation as its most recent entry
+            while (protectedWeight > maxProtectedWeight) {
+                Map.Entry<String, V> eldest = protectedSegment.entrySet().iterator().next();
+                protectedSegment.remove(eldest.getKey());
+                weight = weigher.applyAsLong(eldest.getValue());
+                protectedWeight -= weight;
+                probation.put(eldest.getKey(), eldest.getValue());
+                probationWeight += weight;
+            }
+        }
+        hits++;
+        return value;
+    }
+
+    /** counts a use of key, true once it has been used often enough to be worth caching */
+    synchronized boolean admit(long generation, String key) {
+        if (!current(generation)) return false;
+        if (minUses <= 1) return true;
+        if (uses.merge(key, 1, Integer::sum) < minUses) return false;
+        uses.remove(key);
+        return true;
+    }
+
+    synchronized void put(long generation, String key, V value) {
+        if (!current(generation) || probation.containsKey(key) || protectedSegment.containsKey(key)) return;
+        long weight = weigher.applyAsLong(value);
+        if (weight > maxWeight) return;
+        probation.put(key, value);
+        probationWeight += weight;
+        while (probationWeight + protectedWeight > maxWeight) {
+            Map<String, V> segment = probation.isEmpty() ? protectedSegment : probation;
+            Map.Entry<String, V> eldest = segment.entrySet().iterator().next();
+            segment.remove(eldest.getKey());
+            if (segment == probation) {
+                probationWeight -= weigher.applyAsLong(eldest.getValue());
+            } else {
+                protectedWeight -= weigher.applyAsLong(eldest.getValue());
+            }
+            evictions++;
+        }
+    }
+
+    /** drops everything from before generation */
+    synchronized void invalidate(long generation) {
+        current(generation);
+    }
+
+    /** false for a caller still on an older generation, and a newer one clears the cache */
+    private boolean current(long generation) {
+        if (generation < this.generation) return false;
+        if (generation > this.generation) {
+            if (!probation.isEmpty() || !protectedSegment.isEmpty()) invalidations++;
+            probation.clear();
+            protectedSegment.clear();
+            uses.clear();
+            probationWeight = 0;
+            protectedWeight = 0;
+            this.generation = generation;
+        }
+        return true;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    synchronized long invalidations() {
+        return invalidations;
+    }
+
+    synchronized String stats() {
+        return String.format("%d hits / %d misses / %d evicted / %d invalidated, %d entries %.1f MB",
+                             hits, misses, evictions, invalidations, probation.size() + protectedSegment.size(),
+                             (probationWeight + protectedWeight) / 1e6);
+    }
+}
+
+/**
+ * a lock-free latency histogram in the style of HdrHistogram: values are counted in buckets that
+ * are exact below 64ns and then split every power of two into 32, so any percentile is within
+ * about 3% of the real value. recording is a few shifts and one atomic increment
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final java.util.concurrent.atomic.AtomicLongArray counts = new java.util.concurrent.atomic.AtomicLongArray(BUCKETS);
+    private final java.util.concurrent.atomic.LongAdder count = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder total = new java.util.concurrent.atomic.LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        total.add(value);
+        if (value > max.get()) max.accumulateAndGet(value, Math::max);
+    }
+
+    static int bucket(long value) {
+        if (value < 2 * SUB_COUNT) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * SUB_COUNT + (int) (value >>> shift);
+    }
+
+    /** the largest value that lands in bucket */
+    static long highestValue(int bucket) {
+        if (bucket < 2 * SUB_COUNT) return bucket;
+        int shift = bucket / SUB_COUNT - 1;
+        long lowest = (long) (bucket % SUB_COUNT + SUB_COUNT) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /** a copy to read percentiles from. recording carries on, so counts may be a hair apart */
+    Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) copy[i] = counts.get(i);
+        return new Snapshot(copy, count.sum(), total.sum(), max.get());
+    }
+
+    static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(new long[BUCKETS], 0, 0, 0);
+
+        private final long[] counts;
+        final long count;
+        final long totalNanos;
+        final long maxNanos; // over the histogram's whole life, even in a window from since()
+
+        Snapshot(long[] counts, long count, long totalNanos, long maxNanos) {
+            this.counts = counts;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        /** what was recorded between earlier and this one */
+        Snapshot since(Snapshot earlier) {
+            long[] window = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) window[i] = counts[i] - earlier.counts[i];
+            return new Snapshot(window, count - earlier.count, totalNanos - earlier.totalNanos, maxNanos);
+        }
+
+        /** the value at quantile q (0 to 1), in nanos. 0 if nothing was recorded */
+        long percentile(double q) {
+            long recorded = 0;
+            for (long bucketCount : counts) recorded += bucketCount;
+            if (recorded == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * recorded));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(highestValue(i), maxNanos);
+            }
+            return maxNanos;
+        }
+
+        double meanMillis() {
+            return count == 0 ? 0 : totalNanos / 1e6 / count;
+        }
+
+        /** "p50 1.2 / p99 3.4 / max 5.6 ms" */
+        @Override
+        public String toString() {
+            return String.format("p50 %.2f / p99 %.2f / max %.2f ms", percentile(0.5) / 1e6, percentile(0.99) / 1e6,
+                                 maxNanos / 1e6);
+        }
+    }
+}
+
+/**
+ * counters and latency histograms for searching, query analysis, index builds and painting.
+ * everything is lock-free so it can stay on in production, and snapshot() is the one way to read
+ * it. each search, build and frame is also a JFR event, see SearchEvent
+ */
+final class Metrics {
+    final LatencyHistogram queries = new LatencyHistogram();
+    final LatencyHistogram analysis = new LatencyHistogram(); // tokenizeAndFilter on the query text
+    final LatencyHistogram builds = new LatencyHistogram();
+    final LatencyHistogram frames = new LatencyHistogram();
+    final java.util.concurrent.atomic.LongAdder cancelledQueries = new java.util.concurrent.atomic.LongAdder();
+    final java.util.concurrent.atomic.LongAdder docsIndexed = new java.util.concurrent.atomic.LongAdder();
+    private final long created = System.nanoTime();
+
+    Snapshot snapshot() {
+        return new Snapshot(created, System.nanoTime(), queries.snapshot(), analysis.snapshot(), builds.snapshot(),
+                            frames.snapshot(), cancelledQueries.sum(), docsIndexed.sum());
+    }
+
+    /** everything at one point in time, or over a window between two of them, see since() */
+    static final class Snapshot {
+        final long fromNanos;
+        final long takenNanos;
+        final LatencyHistogram.Snapshot queries;
+        final LatencyHistogram.Snapshot analysis;
+        final LatencyHistogram.Snapshot builds;
+        final LatencyHistogram.Snapshot frames;
+        final long cancelledQueries;
+        final long docsIndexed;
+
+        Snapshot(long fromNanos, long takenNanos, LatencyHistogram.Snapshot queries, LatencyHistogram.Snapshot analysis,
+                 LatencyHistogram.Snapshot builds, LatencyHistogram.Snapshot frames, long cancelledQueries,
+                 long docsIndexed) {
+            this.fromNanos = fromNanos;
+            this.takenNanos = takenNanos;
+            this.queries = queries;
+            this.analysis = analysis;
+            this.builds = builds;
+            this.frames = frames;
+            this.cancelledQueries = cancelledQueries;
+            this.docsIndexed = docsIndexed;
+        }
+
+        Snapshot since(Snapshot earlier) {
+            return new Snapshot(earlier.takenNanos, takenNanos, queries.since(earlier.queries),
+                                analysis.since(earlier.analysis), builds.since(earlier.builds),
+                                frames.since(earlier.frames), cancelledQueries - earlier.cancelledQueries,
+                                docsIndexed - earlier.docsIndexed);
+        }
+
+        double seconds() {
+            return Math.max(1, takenNanos - fromNanos) / 1e9;
+        }
+
+        double queriesPerSecond() {
+            return queries.count / seconds();
+        }
+
+        double framesPerSecond() {
+            return frames.count / seconds();
+        }
+
+        /** docs per second of build time, not wall time */
+        double buildDocsPerSecond() {
+            return builds.totalNanos == 0 ? 0 : docsIndexed * 1e9 / builds.totalNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("queries: %,d at %,.1f qps, %s, %,d cancelled%n"
+                                 + "query analysis: %s%n"
+                                 + "builds: %,d, %,d docs at %,.0f docs/s%n"
+                                 + "frames: %,d, %s",
+                                 queries.count, queriesPerSecond(), queries, cancelledQueries, analysis, builds.count,
+                                 docsIndexed, buildDocsPerSecond(), frames.count, frames);
+        }
+    }
+}
+
+/** how big an index is. counting postings walks every term, so this is worked out once per index */
+final class IndexStats {
+    static final IndexStats EMPTY = new IndexStats(0, 0, 0, 0);
+
+    final int docs;
+    final int terms;
+    final long postings;
+    final long bytes; // heap for an in-memory index, mapped file size for a segment
+
+    IndexStats(int docs, int terms, long postings, long bytes) {
+        this.docs = docs;
+        this.terms = terms;
+        this.postings = postings;
+        this.bytes = bytes;
+    }
+
+    static IndexStats of(IndexReader index) {
+        if (index == null) return EMPTY;
+        long postings = 0;
+        for (Iterator<String> terms = index.sortedTermIterator(); terms.hasNext(); ) {
+            postings += index.postings(terms.next()).docFreq();
+        }
+        long bytes = index instanceof InvertedIndex inMemory ? inMemory.ramBytesUsed()
+                     : index instanceof MappedIndexReader mapped ? mapped.sizeInBytes() : -1;
+        return new IndexStats(index.docCount(), index.termCount(), postings, bytes);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%,d docs, %,d terms, %,d postings, %.1f MB", docs, terms, postings, bytes / 1048576.0);
+    }
+}
+
+@jdk.jfr.Name("fts.Search")
+@jdk.jfr.Label("Search")
+@jdk.jfr.Category("Full-Text Search")
+@jdk.jfr.Description("One search against a published index, from parsing to ranking")
+final class SearchEvent extends jdk.jfr.Event {
+    @jdk.jfr.Label("Query")
+    String query;
+    @jdk.jfr.Label("Hits")
+    int hits;
+    @jdk.jfr.Label("Index Generation")
+    long generation;
+    @jdk.jfr.Label("Cancelled")
+    boolean cancelled;
+}
+
+@jdk.jfr.Name("fts.IndexBuild")
+@jdk.jfr.Label("Index Build")
+@jdk.jfr.Category("Full-Text Search")
+final class IndexBuildEvent extends jdk.jfr.Event {
+    @jdk.jfr.Label("Documents")
+    int docs;
+    @jdk.jfr.Label("Terms")
+    int terms;
+}
+
+@jdk.jfr.Name("fts.Frame")
+@jdk.jfr.Label("Frame")
+@jdk.jfr.Category("Full-Text Search")
+@jdk.jfr.Description("One paintComponent of the animation panel")
+final class FrameEvent extends jdk.jfr.Event {
+    @jdk.jfr.Label("Layers Redrawn")
+    int layersRedrawn;
+}
+
+/**
+ * one slice of a sharded index, see ShardedSearcher. doc ids going in and out are global, the
+ * shard maps them to its own. safe for concurrent searches
+ */
+interface Shard {
+    /**
+     * what the shard finds for text, giving up with CancellationException once System.nanoTime()
+     * passes deadline. withMatches also returns every matching doc rather than just how many
+     */
+    ShardResult search(String text, long deadline, boolean withMatches) throws java.io.IOException;
+
+    String name();
+}
+
+/**
+ * what one shard found, in global doc ids. shard processes send it as lines of "key value":
+ * query, expanded, terms (space separated), hits, ranked (doc:score pairs) and, if asked for,
+ * matches (doc id gaps)
+ */
+final class ShardResult {
+    String query = "";
+    String expandedQuery = "";
+    Set<String> terms = new HashSet<>();
+    int hits;
+    TopDocs ranked = TopDocs.EMPTY;
+    BitSet matches; // null unless asked for
+
+    String encode() {
+        StringBuilder out = new StringBuilder();
+        out.append("query ").append(query).append('\n');
+        out.append("expanded ").append(expandedQuery).append('\n');
+        out.append("terms ").append(String.join(" ", terms)).append('\n');
+        out.append("hits ").append(hits).append('\n');
+        out.append("ranked");
+        for (int r = 0; r < ranked.size(); r++) {
+            out.append(' ').append(ranked.docs[r]).append(':').append(ranked.scores[r]);
+        }
+        out.append('\n');
+        if (matches != null) {
+            out.append("matches");
+            for (int doc = matches.nextSetBit(0), last = 0; doc >= 0; last = doc, doc = matches.nextSetBit(doc + 1)) {
+                out.append(' ').append(doc - last);
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    static ShardResult decode(String text) throws java.io.IOException {
+        ShardResult result = new ShardResult();
+        try {
+            for (String line : text.split("\n")) {
+                int space = line.indexOf(' ');
+                String key = space < 0 ? line : line.substring(0, space);
+                String value = space < 0 ? "" : line.substring(space + 1);
+                String[] parts = value.isEmpty() ? new String[0] : value.split(" ");
+                switch (key) {
+                    case "query" -> result.query = value;
+                    case "expanded" -> result.expandedQuery = value;
+                    case "terms" -> result.terms = new HashSet<>(Arrays.asList(parts));
+                    case "hits" -> result.hits = Integer.parseInt(value);
+                    case "ranked" -> {
+                        int[] docs = new int[parts.length];
+                        float[] scores = new float[parts.length];
+                        for (int r = 0; r < parts.length; r++) {
+                            int colon = parts[r].indexOf(':');
+                            docs[r] = Integer.parseInt(parts[r].substring(0, colon));
+                            scores[r] = Float.parseFloat(parts[r].substring(colon + 1));
+                        }
+                        result.ranked = new TopDocs(docs, scores);
+                    }
+                    case "matches" -> {
+                        result.matches = new BitSet();
+                        int doc = 0;
+                        for (String gap : parts) {
+                            doc += Integer.parseInt(gap);
+                            result.matches.set(doc);
+                        }
+                    }
+                    default -> {} // newer shards may say more
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new java.io.IOException("bad shard response: " + e.getMessage());
+        }
+        return result;
+    }
+}
+
+/** a shard searched in this process, on its own SearchEngine */
+final class LocalShard implements Shard {
+    private final String name;
+    private final SearchEngine engine;
+    private final int[] globalIds; // by local doc id, increasing, so ties still go to the lower global id
+
+    private LocalShard(String name, SearchEngine engine, int[] globalIds) {
+        this.name = name;
+        this.engine = engine;
+        this.globalIds = globalIds;
+    }
+
+    /** indexes docs, docs[i] having global id globalIds[i] */
+    static LocalShard build(String name, String[] docs, int[] globalIds) {
+        SearchEngine engine = new SearchEngine();
+        engine.build(docs);
+        return new LocalShard(name, engine, globalIds);
+    }
+
+    @Override
+    public ShardResult search(String text, long deadline, boolean withMatches) {
+        // cancelling the shard's future interrupts it, so a search nobody waits for stops too
+        SearchResult local = engine.search(engine.snapshot(), text,
+                                           () -> System.nanoTime() - deadline > 0 || Thread.currentThread().isInterrupted());
+        ShardResult result = new ShardResult();
+        result.query = local.query;
+        result.expandedQuery = local.expandedQuery;
+        result.terms = local.terms;
+        result.hits = local.totalHits;
+        int[] docs = new int[local.ranked.size()];
+        for (int r = 0; r < docs.length; r++) {
+            docs[r] = globalIds[local.ranked.docs[r]];
+        }
+        result.ranked = new TopDocs(docs, local.ranked.scores);
+        if (withMatches) {
+            result.matches = new BitSet();
+            for (int doc = local.results.nextSetBit(0); doc >= 0; doc = local.results.nextSetBit(doc + 1)) {
+                result.matches.set(globalIds[doc]);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    int docCount() {
+        return globalIds.length;
+    }
+
+    SearchEngine engine() {
+        return engine;
+    }
+}
+
+/** a shard in another process, served by QueryServer.shard and asked over loopback http */
+final class RemoteShard implements Shard {
+    // QueryServer only speaks http/1.1, so don't try an upgrade to http/2 first
+    private static final java.net.http.HttpClient CLIENT = java.net.http.HttpClient.newBuilder()
+        .version(java.net.http.HttpClient.Version.HTTP_1_1)
+        .executor(Executors.newVirtualThreadPerTaskExecutor())
+        .connectTimeout(java.time.Duration.ofSeconds(2))
+        .build();
+
+    private final java.net.URI base;
+
+    RemoteShard(String url) {
+        base = java.net.URI.create(url.endsWith("/") ? url : url + "/");
+    }
+
+    @Override
+    public ShardResult search(String text, long deadline, boolean withMatches) throws java.io.IOException {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) throw new CancellationException();
+        // the shard gets the time that's left so it stops too, not just us waiting on it
+        java.net.URI uri = base.resolve("shard?q=" + java.net.URLEncoder.encode(text, java.nio.charset.StandardCharsets.UTF_8)
+                                        + "&timeout=" + Math.max(1, remaining / 1_000_000)
+                                        + (withMatches ? "&matches=1" : ""));
+        java.net.http.HttpRequest request = java.net.http.HttpRequest.newBuilder(uri)
+            .timeout(java.time.Duration.ofNanos(remaining))
+            .build();
+        java.net.http.HttpResponse<String> response;
+        try {
+            response = CLIENT.send(request, java.net.http.HttpResponse.BodyHandlers.ofString());
+        } catch (java.net.http.HttpTimeoutException e) {
+            throw new CancellationException();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException();
+        }
+        if (response.statusCode() == QueryServer.DEADLINE_EXCEEDED) throw new CancellationException();
+        if (response.statusCode() != 200) {
+            throw new java.io.IOException(base + " answered " + response.statusCode() + ": " + response.body().trim());
+        }
+        return ShardResult.decode(response.body());
+    }
+
+    @Override
+    public String name() {
+        return base.getAuthority();
+    }
+}
+
+/**
+ * scatter-gather over shards: every shard is asked at once, each on its own virtual thread, and
+ * whatever has come back by the deadline is merged. the per-shard top hits are merged into one
+ * top k, hit counts and hit sets are added up, and shards that missed the deadline or failed are
+ * listed in the result, which is then partial. docs go to shards by a hash of their id, so every
+ * shard gets a similar mix and its own bm25 statistics stand in for the whole corpus's
+ */
+final class ShardedSearcher implements java.io.Closeable {
+    /** how often a search waiting on shards checks whether it's still wanted */
+    static final long STALE_CHECK_NANOS = 2_000_000;
+
+    private final List<Shard> shards;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    final Metrics metrics = new Metrics();
+    final java.util.concurrent.atomic.LongAdder partialResults = new java.util.concurrent.atomic.LongAdder();
+
+    ShardedSearcher(List<Shard> shards) {
+        this.shards = List.copyOf(shards);
+    }
+
+    /** the shard doc goes to. murmur3's finalizer, so runs of ids spread evenly */
+    static int shardOf(int docId, int shardCount) {
+        int h = docId;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, shardCount);
+    }
+
+    /** splits docs over shardCount in-process shards and indexes them */
+    static ShardedSearcher local(DocStore docs, int shardCount) {
+        Partition partition = new Partition(shardCount, -1);
+        docs.forEach(0, docs.size(), partition);
+        return partition.searcher();
+    }
+
+    /** the same for a corpus, a DocStore or anything DocumentSource reads */
+    static ShardedSearcher local(java.nio.file.Path corpus, int shardCount) throws java.io.IOException {
+        Partition partition = new Partition(shardCount, -1);
+        read(corpus, partition);
+        return partition.searcher();
+    }
+
+    /** indexes just the docs of shard out of shardCount, for a shard process */
+    static LocalShard loadShard(java.nio.file.Path corpus, int shard, int shardCount) throws java.io.IOException {
+        Partition partition = new Partition(shardCount, shard);
+        read(corpus, partition);
+        return partition.build(shard);
+    }
+
+    private static void read(java.nio.file.Path corpus, Partition partition) throws java.io.IOException {
+        if (corpus.toString().endsWith(".docs")) {
+            try (DocStore docs = DocStore.open(corpus)) {
+                docs.forEach(0, docs.size(), partition);
+            }
+        } else {
+            try (DocumentSource source = DocumentSource.open(corpus)) {
+                int doc = 0;
+                for (String text = source.next(); text != null; text = source.next()) {
+                    partition.accept(text, doc++);
+                }
+            }
+        }
+    }
+
+    int shardCount() {
+        return shards.size();
+    }
+
+    SearchResult search(String text, long timeoutNanos, boolean withMatches) {
+        return search(text, timeoutNanos, withMatches, () -> false);
+    }
+
+    /**
+     * searches every shard, waiting at most timeoutNanos for them. the result's ranked docs are
+     * global ids with rankedShards saying where each came from; results only has the hits when
+     * withMatches asked the shards for them, totalHits always counts them. once stale says the
+     * search isn't wanted any more the shards still running are cancelled and this throws
+     * CancellationException
+     */
+    SearchResult search(String text, long timeoutNanos, boolean withMatches, BooleanSupplier stale) {
+        long start = System.nanoTime();
+        long deadline = start + timeoutNanos;
+        List<java.util.concurrent.Future<ShardResult>> pending = new ArrayList<>();
+        for (Shard shard : shards) {
+            pending.add(executor.submit(() -> shard.search(text, deadline, withMatches)));
+        }
+        SearchResult merged = new SearchResult();
+        merged.shardCount = shards.size();
+        merged.missingShards = new ArrayList<>();
+        List<ShardResult> answered = new ArrayList<>();
+        List<Integer> answeredShards = new ArrayList<>();
+        for (int s = 0; s < shards.size(); s++) {
+            java.util.concurrent.Future<ShardResult> future = pending.get(s);
+            ShardResult result;
+            try {
+                result = await(future, deadline, stale);
+            } catch (java.util.concurrent.TimeoutException | CancellationException e) {
+                future.cancel(true);
+                merged.missingShards.add(shards.get(s).name() + " missed the deadline");
+                continue;
+            } catch (java.util.concurrent.ExecutionException e) {
+                Throwable cause = e.getCause();
+                merged.missingShards.add(shards.get(s).name() + (cause instanceof CancellationException
+                                                                  ? " missed the deadline" : " failed: " + cause.getMessage()));
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pending.forEach(f -> f.cancel(true));
+                throw new CancellationException();
+            }
+            if (result == null) {
+                pending.forEach(f -> f.cancel(true));
+                metrics.cancelledQueries.increment();
+                throw new CancellationException();
+            }
+            answered.add(result);
+            answeredShards.add(s);
+        }
+
+        List<long[]> hits = new ArrayList<>(); // {shard, rank}, sorted below by score then doc
+        for (int a = 0; a < answered.size(); a++) {
+            ShardResult result = answered.get(a);
+            if (merged.query.isEmpty()) {
+                merged.query = result.query;
+                merged.expandedQuery = result.expandedQuery;
+            }
+            merged.terms.addAll(result.terms);
+            merged.totalHits += result.hits;
+            if (result.matches != null) merged.results.or(result.matches);
+            for (int r = 0; r < result.ranked.size(); r++) {
+                hits.add(new long[] {a, r});
+            }
+        }
+        hits.sort((x, y) -> {
+            TopDocs a = answered.get((int) x[0]).ranked;
+            TopDocs b = answered.get((int) y[0]).ranked;
+            int cmp = Float.compare(b.scores[(int) y[1]], a.scores[(int) x[1]]);
+            return cmp != 0 ? cmp : Integer.compare(a.docs[(int) x[1]], b.docs[(int) y[1]]);
+        });
+        int k = Math.min(SearchEngine.TOP_K, hits.size());
+        int[] docs = new int[k];
+        float[] scores = new float[k];
+        merged.rankedShards = new int[k];
+        for (int i = 0; i < k; i++) {
+            TopDocs from = answered.get((int) hits.get(i)[0]).ranked;
+            docs[i] = from.docs[(int) hits.get(i)[1]];
+            scores[i] = from.scores[(int) hits.get(i)[1]];
+            merged.rankedShards[i] = answeredShards.get((int) hits.get(i)[0]);
+        }
+        merged.ranked = new TopDocs(docs, scores);
+        metrics.queries.record(System.nanoTime() - start);
+        if (!merged.missingShards.isEmpty()) partialResults.increment();
+        return merged;
+    }
+
+    /** future's result by deadline, checking stale as it waits and giving null once it's true */
+    private static ShardResult await(java.util.concurrent.Future<ShardResult> future, long deadline, BooleanSupplier stale)
+            throws InterruptedException, java.util.concurrent.ExecutionException, java.util.concurrent.TimeoutException {
+        while (true) {
+            if (stale.getAsBoolean()) return null;
+            long left = deadline - System.nanoTime();
+            try {
+                return future.get(Math.max(0, Math.min(left, STALE_CHECK_NANOS)), java.util.concurrent.TimeUnit.NANOSECONDS);
+            } catch (java.util.concurrent.TimeoutException e) {
+                if (left <= STALE_CHECK_NANOS) throw e;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /** collects the docs of one shard, or of every shard when only is -1, with their global ids */
+    private static final class Partition implements java.util.function.ObjIntConsumer<String> {
+        private final int shardCount;
+        private final int only;
+        private final List<List<String>> texts = new ArrayList<>();
+        private final int[][] ids;
+        private final int[] counts;
+
+        Partition(int shardCount, int only) {
+            this.shardCount = shardCount;
+            this.only = only;
+            ids = new int[shardCount][16];
+            counts = new int[shardCount];
+            for (int s = 0; s < shardCount; s++) {
+                texts.add(new ArrayList<>());
+            }
+        }
+
+        @Override
+        public void accept(String text, int doc) {
+            int shard = shardOf(doc, shardCount);
+            if (only >= 0 && shard != only) return;
+            if (counts[shard] == ids[shard].length) {
+                ids[shard] = Arrays.copyOf(ids[shard], counts[shard] * 2);
+            }
+            ids[shard][counts[shard]++] = doc;
+            texts.get(shard).add(text);
+        }
+
+        LocalShard build(int shard) {
+            String[] docs = texts.get(shard).toArray(new String[0]);
+            texts.set(shard, null);
+            return LocalShard.build("shard " + shard, docs, Arrays.copyOf(ids[shard], counts[shard]));
+        }
+
+        ShardedSearcher searcher() {
+            List<Shard> shards = new ArrayList<>();
+            for (int s = 0; s < shardCount; s++) {
+                shards.add(build(s));
+            }
+            return new ShardedSearcher(shards);
+        }
+    }
+}
+
+/**
+ * loopback http, one virtual thread per request. in front of a ShardedSearcher it answers
+ *
+ *   GET /search?q=quick+fox&timeout=50   json: the merged top hits with each one's shard, the
+ *                                         total hit count, and which shards were missing if any
+ *   GET /stats                           query latency and how many results were partial
+ *
+ * and a shard process answers GET /shard?q=...&timeout=...&matches=1 with a ShardResult, or
+ * DEADLINE_EXCEEDED if it ran out of time. timeouts are in ms, DEFAULT_TIMEOUT_MS if not given
+ */
+final class QueryServer implements java.io.Closeable {
+    static final int DEFAULT_TIMEOUT_MS = 100;
+    static final int DEADLINE_EXCEEDED = 504;
+
+    private final com.sun.net.httpserver.HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private QueryServer(int port) throws java.io.IOException {
+        server = com.sun.net.httpserver.HttpServer.create(
+            new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(executor);
+    }
+
+    /** serves merged searches over searcher's shards */
+    static QueryServer front(int port, ShardedSearcher searcher) throws java.io.IOException {
+        QueryServer queryServer = new QueryServer(port);
+        queryServer.server.createContext("/search", exchange -> queryServer.handle(exchange, params -> {
+            String text = params.getOrDefault("q", "");
+            SearchResult result = searcher.search(text, timeout(params) * 1_000_000L, false);
+            return json(text, result);
+        }));
+        queryServer.server.createContext("/stats", exchange -> queryServer.handle(exchange, params -> {
+            Metrics.Snapshot metrics = searcher.metrics.snapshot();
+            return String.format("queries: %,d at %,.1f qps, %s%npartial: %,d%nshards: %d%n", metrics.queries.count,
+                                 metrics.queriesPerSecond(), metrics.queries, searcher.partialResults.sum(),
+                                 searcher.shardCount());
+        }));
+        queryServer.server.start();
+        return queryServer;
+    }
+
+    /** serves one shard to a front server in another process */
+    static QueryServer shard(int port, Shard shard) throws java.io.IOException {
+        QueryServer queryServer = new QueryServer(port);
+        queryServer.server.createContext("/shard", exchange -> queryServer.handle(exchange, params -> {
+            long deadline = System.nanoTime() + timeout(params) * 1_000_000L;
+            return shard.search(params.getOrDefault("q", ""), deadline, params.containsKey("matches")).encode();
+        }));
+        queryServer.server.start();
+        return queryServer;
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private interface Handler {
+        String answer(Map<String, String> params) throws java.io.IOException;
+    }
+
+    private void handle(com.sun.net.httpserver.HttpExchange exchange, Handler handler) throws java.io.IOException {
+        int status = 200;
+        String body;
+        try {
+            body = handler.answer(params(exchange.getRequestURI().getRawQuery()));
+        } catch (CancellationException e) {
+            status = DEADLINE_EXCEEDED;
+            body = "deadline exceeded\n";
+        } catch (IllegalArgumentException e) {
+            status = 400;
+            body = e.getMessage() + "\n";
+        } catch (java.io.IOException | RuntimeException e) {
+            status = 500;
+            body = e + "\n";
+        }
+        byte[] bytes = body.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", body.startsWith("{") ? "application/json" : "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (java.io.OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> params(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null) return params;
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = java.net.URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), java.nio.charset.StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : java.net.URLDecoder.decode(pair.substring(eq + 1), java.nio.charset.StandardCharsets.UTF_8);
+            // queries are one line, the shard protocol is line based
+            params.put(key, value.replace('\n', ' ').replace('\r', ' '));
+        }
+        return params;
+    }
+
+    private static long timeout(Map<String, String> params) {
+        try {
+            long ms = Long.parseLong(params.getOrDefault("timeout", String.valueOf(DEFAULT_TIMEOUT_MS)));
+            if (ms <= 0) throw new NumberFormatException();
+            return ms;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("timeout must be a positive number of ms");
+        }
+    }
+
+    static String json(String text, SearchResult result) {
+        StringBuilder out = new StringBuilder("{\"q\":").append(jsonString(text))
+            .append(",\"query\":").append(jsonString(result.query))
+            .append(",\"total\":").append(result.totalHits)
+            .append(",\"partial\":").append(!result.missingShards.isEmpty())
+            .append(",\"shards\":").append(result.shardCount)
+            .append(",\"missing\":[");
+        for (int i = 0; i < result.missingShards.size(); i++) {
+            out.append(i > 0 ? "," : "").append(jsonString(result.missingShards.get(i)));
+        }
+        out.append("],\"hits\":[");
+        for (int r = 0; r < result.ranked.size(); r++) {
+            out.append(r > 0 ? "," : "").append("{\"doc\":").append(result.ranked.docs[r])
+               .append(",\"score\":").append(result.ranked.scores[r])
+               .append(",\"shard\":").append(result.rankedShards[r]).append('}');
+        }
+        return out.append("]}\n").toString();
+    }
+
+    private static String jsonString(String s) {
+        StringBuilder out = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                default -> {
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+                }
+            }
+        }
+        return out.append('"').toString();
+    }
+}
+
+/**
+ * generates documents whose words follow a zipf distribution, handy for
+ * measuring things on something bigger than four sentences
+ */
+final class SyntheticCorpus {
+    private final String[] vocabulary;
+    private final double[] cumulative;
+    private final Random random;
+
+    SyntheticCorpus(int vocabSize, double exponent, long seed) {
+        vocabulary = new String[vocabSize];
+        cumulative = new double[vocabSize];
+        double total = 0;
+        for (int rank = 0; rank < vocabSize; rank++) {
+            vocabulary[rank] = word(rank);
+            total += 1.0 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = total;
+        }
+        for (int rank = 0; rank < vocabSize; rank++) {
+            cumulative[rank] /= total;
+        }
+        random = new Random(seed);
+    }
+
+    /** letters only and never a stop word, e.g. 0 -> "qa", 27 -> "qbb" */
+    private static String word(int rank) {
+        StringBuilder sb = new StringBuilder("q");
+        do {
+            sb.append((char) ('a' + rank % 26));
+            rank /= 26;
+        } while (rank > 0);
+        return sb.toString();
+    }
+
+    String[] vocabulary() {
+        return vocabulary;
+    }
+
+    int nextTerm() {
+        int idx = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(idx < 0 ? -idx - 1 : idx, vocabulary.length - 1);
+    }
+
+    /** distinct term ranks for one document of the given length, sorted */
+    int[] nextDocumentTerms(int words) {
+        int[] terms = new int[words];
+        for (int i = 0; i < words; i++) {
+            terms[i] = nextTerm();
+        }
+        return Arrays.stream(terms).sorted().distinct().toArray();
+    }
+
+    String nextDocument(int words) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(vocabulary[nextTerm()]);
+        }
+        return sb.toString();
+    }
+}
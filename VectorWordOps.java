@@ -0,0 +1,68 @@
+package fts;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * WordOps on the incubating vector api, as many words per step as the widest register holds,
+ * popcounts included. only the gradle build compiles this (with --add-modules
+ * jdk.incubator.vector), `java FullTextSearchAnimation.java` runs on ScalarWordOps. WordOps is
+ * declared in that file, so rather than implement it from here these are static and
+ * WordOps.best() looks them up by name
+ */
+final class VectorWordOps {
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+    private VectorWordOps() {
+    }
+
+    static int and(long[] a, long[] b, long[] out) {
+        int i = 0;
+        LongVector counts = LongVector.zero(SPECIES);
+        for (int bound = SPECIES.loopBound(out.length); i < bound; i += SPECIES.length()) {
+            LongVector words = LongVector.fromArray(SPECIES, a, i).and(LongVector.fromArray(SPECIES, b, i));
+            words.intoArray(out, i);
+            counts = counts.add(words.lanewise(VectorOperators.BIT_COUNT));
+        }
+        long count = counts.reduceLanes(VectorOperators.ADD);
+        for (; i < out.length; i++) {
+            out[i] = a[i] & b[i];
+            count += Long.bitCount(out[i]);
+        }
+        return (int) count;
+    }
+
+    static int or(long[] a, long[] b, long[] out) {
+        int i = 0;
+        LongVector counts = LongVector.zero(SPECIES);
+        for (int bound = SPECIES.loopBound(out.length); i < bound; i += SPECIES.length()) {
+            LongVector words = LongVector.fromArray(SPECIES, a, i).or(LongVector.fromArray(SPECIES, b, i));
+            words.intoArray(out, i);
+            counts = counts.add(words.lanewise(VectorOperators.BIT_COUNT));
+        }
+        long count = counts.reduceLanes(VectorOperators.ADD);
+        for (; i < out.length; i++) {
+            out[i] = a[i] | b[i];
+            count += Long.bitCount(out[i]);
+        }
+        return (int) count;
+    }
+
+    static int andNot(long[] a, long[] b, long[] out) {
+        int i = 0;
+        LongVector counts = LongVector.zero(SPECIES);
+        for (int bound = SPECIES.loopBound(out.length); i < bound; i += SPECIES.length()) {
+            LongVector words = LongVector.fromArray(SPECIES, a, i)
+                .lanewise(VectorOperators.AND_NOT, LongVector.fromArray(SPECIES, b, i));
+            words.intoArray(out, i);
+            counts = counts.add(words.lanewise(VectorOperators.BIT_COUNT));
+        }
+        long count = counts.reduceLanes(VectorOperators.ADD);
+        for (; i < out.length; i++) {
+            out[i] = a[i] & ~b[i];
+            count += Long.bitCount(out[i]);
+        }
+        return (int) count;
+    }
+}
@@ -0,0 +1,68 @@
+package fts;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * text analysis on its own, per doc: the String path queries use, the streaming tokenizer
+ * indexing uses, and stemming per word. doesn't depend on corpus size so it runs on 10k docs
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalysisBenchmark {
+    private static final int DOCS = 10_000;
+    // real english words, the synthetic vocabulary hardly ever has a suffix to strip
+    private static final String[] WORDS = {
+        "jumps", "running", "quickly", "sleeps", "peacefully", "reflexes", "nature", "cleverest",
+        "barked", "faster", "dogs", "glass", "walked", "singing", "fox", "happiest"
+    };
+
+    private String[] docs;
+
+    @Setup
+    public void setUp() {
+        docs = Corpora.zipfian(DOCS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public void tokenizeAndFilter(Blackhole blackhole) {
+        for (String doc : docs) {
+            blackhole.consume(Analyzer.tokenizeAndFilter(doc));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public void streamingTokenizer(Blackhole blackhole) {
+        Tokenizer tokenizer = new Tokenizer();
+        Tokenizer.TokenConsumer sink = (buffer, length) -> blackhole.consume(length);
+        for (String doc : docs) {
+            tokenizer.tokenize(doc, sink);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(16)
+    public void simpleStem(Blackhole blackhole) {
+        for (String word : WORDS) {
+            blackhole.consume(Analyzer.simpleStem(word));
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package fts;
+
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * matching only, no ranking: the same boolean queries collected by iterating postings versus
+ * combining DocIdSets. run with -jvmArgsAppend -Dfts.vector=false for the scalar word loops
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BooleanBenchmark {
+    @Param({"1000000"})
+    public int docs;
+
+    // dense AND, dense OR, dense NOT, dense AND rare, prefix over ~2k terms
+    @Param({"qa qb", "qa OR qb", "qa -qb", "qa qc qzz", "qa*"})
+    public String query;
+
+    private IndexReader index;
+    private Query rewritten;
+
+    @Setup
+    public void setUp() {
+        index = new ParallelIndexBuilder(ForkJoinPool.commonPool()).build(Corpora.zipfian(docs));
+        rewritten = Query.parse(query, Analyzer::tokenizeAndFilter).rewrite(index);
+    }
+
+    @Benchmark
+    public BitSet iterators() {
+        return DocIterators.collect(rewritten.iterator(index), () -> false);
+    }
+
+    @Benchmark
+    public BitSet docIdSets() {
+        return rewritten.docIdSet(index, () -> false).toBitSet();
+    }
+}
@@ -0,0 +1,23 @@
+package fts;
+
+/**
+ * the synthetic corpora the benchmarks run on: zipfian term frequencies over a 50k word
+ * vocabulary, 40 words a doc, the same as the --build-report and --latency-report corpora.
+ * words are "qa", "qb", ... by frequency rank, so "qa" is in most docs and "qzz" in few
+ */
+final class Corpora {
+    static final int VOCABULARY = 50_000;
+    static final int WORDS_PER_DOC = 40;
+
+    private Corpora() {}
+
+    /** always the same docs for the same count */
+    static String[] zipfian(int count) {
+        SyntheticCorpus corpus = new SyntheticCorpus(VOCABULARY, 1.0, 42);
+        String[] docs = new String[count];
+        for (int i = 0; i < count; i++) {
+            docs[i] = corpus.nextDocument(WORDS_PER_DOC);
+        }
+        return docs;
+    }
+}
@@ -0,0 +1,56 @@
+package fts;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * building the whole index from scratch: the parallel builder behind SearchEngine.build (batch
+ * mode and shards), and the single threaded doc by doc addDocument path the ingester uses. the
+ * Build Index button is neither, it plays IndexBuildEvents one step per timer tick.
+ * 10M docs needs a big heap, e.g. -jvmArgsAppend -Xmx16g
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class IndexBuildBenchmark {
+    @Param({"10000", "1000000", "10000000"})
+    public int docs;
+
+    private String[] corpus;
+    private ParallelIndexBuilder builder;
+
+    @Setup
+    public void setUp() {
+        corpus = Corpora.zipfian(docs);
+        builder = new ParallelIndexBuilder(ForkJoinPool.commonPool());
+    }
+
+    @Benchmark
+    public InvertedIndex parallelBuild() {
+        return builder.build(corpus);
+    }
+
+    @Benchmark
+    public InvertedIndex sequentialBuild() {
+        InvertedIndex index = new InvertedIndex();
+        for (int i = 0; i < corpus.length; i++) {
+            index.addDocument(i, corpus[i]);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,56 @@
+package fts;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * one search the way the panel runs it minus the caches: parse, rewrite prefixes / wildcards /
+ * typos against the dictionary, collect every match as a bitset and rank the top 10 with bm25.
+ * the index is built once per fork, only the searching is measured
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+    @Param({"10000", "1000000", "10000000"})
+    public int docs;
+
+    // dense term, dense AND, OR, NOT, phrase, prefix over ~2k terms, typo
+    @Param({"qa", "qa qb", "qa OR qk", "qc -qa", "\"qa qb\"", "qa*", "qabd~"})
+    public String query;
+
+    private IndexReader index;
+
+    @Setup
+    public void setUp() {
+        index = new ParallelIndexBuilder(ForkJoinPool.commonPool()).build(Corpora.zipfian(docs));
+    }
+
+    @Benchmark
+    public void search(Blackhole blackhole) {
+        Query rewritten = Query.parse(query, Analyzer::tokenizeAndFilter).rewrite(index);
+        Set<String> terms = new HashSet<>();
+        rewritten.collectTerms(terms);
+        blackhole.consume(terms);
+        blackhole.consume(rewritten.docIdSet(index, () -> false).toBitSet());
+        blackhole.consume(Bm25Searcher.search(index, rewritten, 10));
+    }
+}
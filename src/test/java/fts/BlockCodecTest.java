@@ -0,0 +1,129 @@
+package fts;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * blocks and doc stores decompress to exactly what went in
+ */
+class BlockCodecTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void roundTripsEmptyAndShortInput() {
+        // everything up to where the first match is allowed, and a bit past it
+        Random random = new Random(1);
+        for (int length = 0; length <= 40; length++) {
+            byte[] repeated = new byte[length];
+            Arrays.fill(repeated, (byte) 'a');
+            assertRoundTrips(repeated);
+            byte[] noise = new byte[length];
+            random.nextBytes(noise);
+            assertRoundTrips(noise);
+        }
+    }
+
+    @Test
+    void roundTripsIncompressibleInput() {
+        Random random = new Random(2);
+        for (int length : new int[] {100, 4_096, 70_000, 300_000}) {
+            byte[] noise = new byte[length];
+            random.nextBytes(noise);
+            int compressed = assertRoundTrips(noise);
+            assertTrue(compressed <= BlockCodec.maxCompressedLength(length));
+        }
+    }
+
+    @Test
+    void roundTripsTextAndLongMatches() {
+        SyntheticCorpus corpus = new SyntheticCorpus(2_000, 1.0, 3);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 200_000) text.append(corpus.nextDocument(40)).append('\n');
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        assertTrue(assertRoundTrips(bytes) < bytes.length);
+
+        // long runs need the extra length bytes, and matches further back than an offset can reach
+        byte[] runs = new byte[150_000];
+        Random random = new Random(4);
+        for (int i = 0; i < runs.length; ) {
+            int run = 1 + random.nextInt(random.nextBoolean() ? 10 : 2_000);
+            Arrays.fill(runs, i, Math.min(runs.length, i + run), (byte) random.nextInt(4));
+            i += run;
+        }
+        assertRoundTrips(runs);
+        byte[] far = new byte[200_000];
+        byte[] chunk = new byte[70_000];
+        random.nextBytes(chunk);
+        System.arraycopy(chunk, 0, far, 0, chunk.length);
+        System.arraycopy(chunk, 0, far, 130_000, chunk.length);
+        assertRoundTrips(far);
+    }
+
+    @Test
+    void rejectsATruncatedBlock() {
+        byte[] bytes = "abcdabcdabcdabcdabcdabcdabcdabcd".getBytes(StandardCharsets.US_ASCII);
+        byte[] compressed = new byte[BlockCodec.maxCompressedLength(bytes.length)];
+        int length = BlockCodec.compress(bytes, bytes.length, compressed);
+        assertThrows(IllegalStateException.class,
+                     () -> BlockCodec.decompress(compressed, 0, length - 1, new byte[bytes.length]));
+    }
+
+    @Test
+    void docStoreGivesBackEveryDoc() throws IOException {
+        List<String> docs = new ArrayList<>();
+        SyntheticCorpus corpus = new SyntheticCorpus(3_000, 1.0, 5);
+        Random random = new Random(6);
+        for (int i = 0; i < 5_000; i++) {
+            switch (random.nextInt(20)) {
+                case 0 -> docs.add("");
+                case 1 -> docs.add("naïve café, 東京 and 😀 " + i);
+                case 2 -> docs.add(corpus.nextDocument(5_000)); // bigger than a block on its own
+                default -> docs.add(corpus.nextDocument(1 + random.nextInt(60)));
+            }
+        }
+        Path file = dir.resolve("docs.store");
+        try (DocStore.Writer writer = new DocStore.Writer(file)) {
+            for (String doc : docs) writer.add(doc);
+            writer.finish().close();
+        }
+        DocStore memory = DocStore.of(docs.toArray(new String[0]));
+        try (DocStore store = DocStore.open(file)) {
+            assertEquals(docs.size(), store.size());
+            assertEquals(memory.fingerprint(), store.fingerprint());
+            // out of order, so blocks get evicted and decompressed again
+            for (int i = 0; i < 20_000; i++) {
+                int doc = random.nextInt(docs.size());
+                assertEquals(docs.get(doc), store.get(doc));
+            }
+            List<String> all = new ArrayList<>();
+            store.forEach(0, docs.size(), (doc, id) -> {
+                assertEquals(all.size(), id);
+                all.add(doc);
+            });
+            assertEquals(docs, all);
+        }
+    }
+
+    /** returns the compressed length */
+    private static int assertRoundTrips(byte[] bytes) {
+        byte[] compressed = new byte[BlockCodec.maxCompressedLength(bytes.length)];
+        int length = BlockCodec.compress(bytes, bytes.length, compressed);
+        byte[] decompressed = new byte[bytes.length];
+        BlockCodec.decompress(compressed, 0, length, decompressed);
+        assertArrayEquals(bytes, decompressed, "length " + bytes.length);
+        return length;
+    }
+}
@@ -0,0 +1,124 @@
+package fts;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * DocIdSet's chunked set operations against BitSet, and queries answered from sets against their iterators
+ */
+class DocIdSetTest {
+    private static final double[] DENSITIES = {0.001, 0.05, 0.07, 0.5, 0.99};
+    private static final String[] QUERIES = {
+        "qa", "qa qb", "qa OR qb", "qa -qb", "qa qc qzz", "qa*", "qb* -qa", "qabd~", "\"qa qb\"",
+        "qa qb OR qc -qd", "qz* qa", "qzz qa", "qa -qb -qc OR qd", "qa NEAR/3 qb", "notaterm qa",
+    };
+
+    private static InvertedIndex index;
+
+    @BeforeAll
+    static void buildIndex() {
+        String[] docs = new String[30_000];
+        SyntheticCorpus corpus = new SyntheticCorpus(50_000, 1.0, 42);
+        for (int i = 0; i < docs.length; i++) docs[i] = corpus.nextDocument(40);
+        index = new ParallelIndexBuilder(ForkJoinPool.commonPool()).build(docs);
+        index.finish();
+    }
+
+    @Test
+    void setOpsMatchBitSet() {
+        Random random = new Random(1);
+        for (int i = 0; i < 300; i++) {
+            BitSet x = randomBits(random);
+            BitSet y = randomBits(random);
+            BitSet z = randomBits(random);
+            DocIdSet dx = DocIdSet.of(iterator(x));
+            DocIdSet dy = DocIdSet.of(iterator(y));
+            assertSame(x, dx);
+
+            BitSet expected = (BitSet) x.clone();
+            expected.and(y);
+            assertSame(expected, dx.and(dy));
+            expected = (BitSet) x.clone();
+            expected.or(y);
+            assertSame(expected, dx.or(dy));
+            expected = (BitSet) x.clone();
+            expected.andNot(y);
+            assertSame(expected, dx.andNot(dy));
+            expected = (BitSet) x.clone();
+            expected.or(y);
+            expected.or(z);
+            assertSame(expected, DocIdSet.union(List.of(dx, dy, DocIdSet.of(iterator(z)))));
+        }
+    }
+
+    @Test
+    void queriesMatchTheirIterators() {
+        assertTrue(index.postings("qa").docIdSet().hasBitmaps()); // so the bitmap paths are what's compared
+        for (String text : QUERIES) {
+            Query query = Query.parse(text, Analyzer::tokenizeAndFilter).rewrite(index);
+            BitSet expected = DocIterators.collect(query.iterator(index), () -> false);
+            assertEquals(expected, query.docIdSet(index, () -> false).toBitSet(), text);
+        }
+    }
+
+    @Test
+    void costComesFromDocFreqsLikeTheIterators() {
+        for (String text : QUERIES) {
+            Query query = Query.parse(text, Analyzer::tokenizeAndFilter).rewrite(index);
+            assertEquals(query.iterator(index).cost(), query.cost(index), text);
+        }
+    }
+
+    private static void assertSame(BitSet expected, DocIdSet actual) {
+        assertEquals(expected, actual.toBitSet());
+        assertEquals(expected.cardinality(), actual.cardinality());
+    }
+
+    /** a few 65536 doc chunks, each sparse enough for an array or dense enough for a bitmap */
+    private static BitSet randomBits(Random random) {
+        BitSet bits = new BitSet();
+        for (int chunks = 1 + random.nextInt(5); chunks > 0; chunks--) {
+            int key = random.nextInt(8);
+            double density = DENSITIES[random.nextInt(DENSITIES.length)];
+            if (random.nextInt(6) == 0) continue; // sometimes empty altogether
+            for (int i = 0; i < 65_536; i++) {
+                if (random.nextDouble() < density) bits.set(key * 65_536 + i);
+            }
+        }
+        return bits;
+    }
+
+    private static DocIterator iterator(BitSet bits) {
+        return new DocIterator() {
+            private int doc = -1;
+
+            @Override
+            public int docID() {
+                return doc;
+            }
+
+            @Override
+            public int nextDoc() {
+                return advance(doc + 1);
+            }
+
+            @Override
+            public int advance(int target) {
+                int next = bits.nextSetBit(target);
+                return doc = next < 0 ? NO_MORE_DOCS : next;
+            }
+
+            @Override
+            public long cost() {
+                return bits.cardinality();
+            }
+        };
+    }
+}
@@ -0,0 +1,45 @@
+package fts;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * searches that build their results from cached AND / NOT clauses find the same docs as working the query out whole
+ */
+class FilterCacheTest {
+    private static final String[] WORDS = {"qa", "qb", "qc", "qd", "qe", "qab", "qba", "qz*", "qa*", "qac~"};
+
+    @Test
+    void cachedClausesMatchTheWholeQuery() {
+        String[] docs = new String[20_000];
+        SyntheticCorpus corpus = new SyntheticCorpus(5_000, 1.0, 42);
+        for (int i = 0; i < docs.length; i++) docs[i] = corpus.nextDocument(30);
+        SearchEngine engine = new SearchEngine();
+        InvertedIndex index = engine.build(docs);
+
+        // few enough words that clauses come round again and get admitted, in every mix of cached and not
+        Random random = new Random(3);
+        int compared = 0;
+        for (int i = 0; i < 400; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int words = 2 + random.nextInt(3), w = 0; w < words; w++) {
+                if (w > 0 && random.nextInt(3) == 0) text.append('-');
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            Query query = Query.parse(text.toString().trim(), Analyzer::tokenizeAndFilter);
+            if (query == null) continue;
+            SearchResult result = engine.search(text.toString().trim());
+            if (!result.query.equals(query.toString())) continue; // nothing matched, it went fuzzy
+            BitSet expected = query.rewrite(index).docIdSet(index, () -> false).toBitSet();
+            assertEquals(expected, result.results, text.toString());
+            compared++;
+        }
+        assertTrue(compared > 300, "only compared " + compared);
+        String stats = engine.stats().filterCache;
+        assertTrue(Long.parseLong(stats.substring(0, stats.indexOf(' '))) > 0, stats);
+    }
+}
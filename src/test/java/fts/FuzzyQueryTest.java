@@ -0,0 +1,81 @@
+package fts;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * the automaton walk in FuzzyQuery.expand against measuring the distance to every term
+ */
+class FuzzyQueryTest {
+    private static final int WORDS = 100_000;
+
+    private static InvertedIndex index;
+    private static List<String> terms;
+
+    @BeforeAll
+    static void buildIndex() {
+        // random 7 letter words fill every early branch, which is what used to eat the visit budget
+        Random random = new Random(7);
+        String[] docs = new String[WORDS + 2];
+        for (int i = 0; i < WORDS; i++) docs[i] = word(random, 7);
+        docs[WORDS] = "zebrass";
+        docs[WORDS + 1] = "aebrass";
+        index = new ParallelIndexBuilder(ForkJoinPool.commonPool()).build(docs);
+        terms = new ArrayList<>();
+        for (Iterator<String> it = index.sortedTermIterator(); it.hasNext(); ) terms.add(it.next());
+    }
+
+    @Test
+    void findsVariantsAtBothEndsOfTheDictionary() {
+        FuzzyQuery query = new FuzzyQuery("zebrasz", 2);
+        assertEquals(Set.of("zebrass", "aebrass"), new HashSet<>(query.expand(index, 50)));
+        assertFalse(query.truncated);
+    }
+
+    @Test
+    void matchesBruteForce() {
+        Random random = new Random(3);
+        for (int i = 0; i < 300; i++) {
+            String term = i % 3 == 0 ? terms.get(random.nextInt(terms.size())) : word(random, 2 + random.nextInt(8));
+            int edits = 1 + random.nextInt(2);
+            FuzzyQuery query = new FuzzyQuery(term, edits);
+            Set<String> expected = new HashSet<>();
+            for (String candidate : terms) {
+                if (query.distance(candidate) <= edits) expected.add(candidate);
+            }
+            Set<String> found = new HashSet<>(query.expand(index, Integer.MAX_VALUE));
+            assertFalse(query.truncated, term);
+            if (expected.size() <= FuzzyQuery.MAX_VARIANTS) {
+                assertEquals(expected, found, term + "~" + edits);
+            } else {
+                // only the closest MAX_VARIANTS are kept, but they all have to be real matches
+                assertEquals(FuzzyQuery.MAX_VARIANTS, found.size(), term + "~" + edits);
+                assertTrue(expected.containsAll(found), term + "~" + edits);
+            }
+        }
+    }
+
+    @Test
+    void countsASwapAsOneEdit() {
+        FuzzyQuery query = new FuzzyQuery("zebrass", 1);
+        assertEquals(1, query.distance("ezbrass"));
+        assertEquals(Set.of("zebrass", "aebrass"), new HashSet<>(query.expand(index, 50)));
+    }
+
+    private static String word(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) chars[i] = (char) ('a' + random.nextInt(26));
+        return new String(chars);
+    }
+}
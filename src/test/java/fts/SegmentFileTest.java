@@ -0,0 +1,131 @@
+package fts;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * a segment written to disk and mapped back reads the same as the index it came from
+ */
+class SegmentFileTest {
+    private static InvertedIndex index;
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void buildIndex() {
+        // enough docs that common terms span many skip blocks
+        String[] docs = new String[30_000];
+        SyntheticCorpus corpus = new SyntheticCorpus(5_000, 1.0, 42);
+        for (int i = 0; i < docs.length; i++) docs[i] = corpus.nextDocument(30);
+        index = new ParallelIndexBuilder(ForkJoinPool.commonPool()).build(docs);
+    }
+
+    @Test
+    void roundTripsTermsAndPostings() throws IOException {
+        Path file = dir.resolve("index.seg");
+        SegmentFile.write(index, 1234, file);
+        MappedIndexReader mapped = SegmentFile.open(file);
+        mapped.verifyChecksums();
+
+        assertEquals(1234, mapped.fingerprint());
+        assertEquals(index.docCount(), mapped.docCount());
+        assertEquals(index.avgDocLength(), mapped.avgDocLength());
+        for (int doc = 0; doc < index.docCount(); doc += 97) {
+            assertEquals(index.docLength(doc), mapped.docLength(doc));
+        }
+        assertEquals(terms(index), terms(mapped));
+        for (String term : terms(index)) {
+            Postings expected = index.postings(term);
+            Postings actual = mapped.postings(term);
+            assertEquals(expected.docFreq(), actual.docFreq(), term);
+            assertEquals(expected.maxFreq(), actual.maxFreq(), term);
+            assertEquals(expected.minDocLength(), actual.minDocLength(), term);
+            assertEquals(expected.docIdSet().toBitSet(), actual.docIdSet().toBitSet(), term);
+        }
+        assertNull(mapped.postings("notaterm"));
+    }
+
+    @Test
+    void rewritingAMappedSegmentGivesTheSameBytes() throws IOException {
+        Path file = dir.resolve("index.seg");
+        Path copy = dir.resolve("copy.seg");
+        SegmentFile.write(index, 1, file);
+        SegmentFile.write(SegmentFile.open(file), 1, copy);
+        assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(copy));
+    }
+
+    @Test
+    void advancesLikeTheInMemoryPostings() throws IOException {
+        Path file = dir.resolve("index.seg");
+        SegmentFile.write(index, 1, file);
+        MappedIndexReader mapped = SegmentFile.open(file);
+        Random random = new Random(5);
+        for (String term : terms(index)) {
+            PostingsIterator expected = index.postings(term).iterator();
+            PostingsIterator actual = mapped.postings(term).iterator();
+            int target = 0;
+            while (true) {
+                // mostly short hops, now and then far enough to skip whole blocks
+                target = Math.max(target, expected.docID() + 1) + random.nextInt(random.nextInt(8) == 0 ? 5_000 : 20);
+                int doc = expected.advance(target);
+                assertEquals(doc, actual.advance(target), term);
+                if (doc == DocIterator.NO_MORE_DOCS) break;
+                assertEquals(expected.freq(), actual.freq(), term);
+                // read positions on some docs and not others, so skipping over them is covered too
+                if (index.postings(term).hasPositions() && random.nextBoolean()) {
+                    for (int i = 0; i < expected.freq(); i++) {
+                        assertEquals(expected.nextPosition(), actual.nextPosition(), term);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void detectsCorruptPostings() throws IOException {
+        Path file = dir.resolve("index.seg");
+        SegmentFile.write(index, 1, file);
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer footer = ByteBuffer.wrap(bytes, bytes.length - SegmentFile.FOOTER_SIZE, SegmentFile.FOOTER_SIZE).slice();
+        bytes[(int) footer.getLong(0) + 100] ^= 0x5A; // inside the postings
+        Files.write(file, bytes);
+
+        MappedIndexReader mapped = SegmentFile.open(file); // the dictionary is still fine
+        assertNotNull(mapped);
+        assertThrows(IOException.class, mapped::verifyChecksums);
+        assertThrows(IOException.class, () -> new SearchEngine().open(file));
+    }
+
+    @Test
+    void rejectsACorruptDictionaryOnOpen() throws IOException {
+        Path file = dir.resolve("index.seg");
+        SegmentFile.write(index, 1, file);
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[SegmentFile.HEADER_SIZE + 1] ^= 0x5A;
+        Files.write(file, bytes);
+        assertThrows(IOException.class, () -> SegmentFile.open(file));
+    }
+
+    private static List<String> terms(IndexReader reader) {
+        List<String> terms = new ArrayList<>();
+        for (Iterator<String> it = reader.sortedTermIterator(); it.hasNext(); ) terms.add(it.next());
+        return terms;
+    }
+}